@@ -0,0 +1,98 @@
+/*
+ * File name: GuardBenchmark.java
+ * File Description:
+ *      JMH benchmark of guard evaluation on integer variables:
+ *      the String interpreter, the compiled Node tree on boxed values, the primitive stack of EvaluationContext,
+ *      the generated bytecode (BytecodeCompiler)
+ *      Run with: gradle jmh
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@org.openjdk.jmh.annotations.State(Scope.Thread)  /* not io.ferdon.statespace.State */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GuardBenchmark {
+
+    private static final String GUARD = "x y + 5 == x 1 > && y 10 < &&";
+
+    private Interpreter interpreter;
+    private Map<String, String> vars;
+    private CompiledExpression compiledGuard;
+    private Interpreter.Value[] slotValues;
+    private EvaluationContext context;
+    private BytecodeCompiler.CompiledCode code;
+    private int xSlot;
+    private int ySlot;
+
+    @Setup
+    public void setUp() {
+        interpreter = new Interpreter();
+        vars = new HashMap<>();
+        vars.put("x", "2");
+        vars.put("y", "3");
+
+        Map<String, Integer> varSlots = new HashMap<>();
+        compiledGuard = CompiledExpression.compile(GUARD, varSlots);
+        xSlot = varSlots.get("x");
+        ySlot = varSlots.get("y");
+
+        slotValues = new Interpreter.Value[varSlots.size()];
+        slotValues[xSlot] = new Interpreter.IntegerExpression(2);
+        slotValues[ySlot] = new Interpreter.IntegerExpression(3);
+
+        context = new EvaluationContext();
+        context.reset(varSlots.size());
+        context.setSlot(xSlot, "2", vars);
+        context.setSlot(ySlot, "3", vars);
+        code = compiledGuard.getCode(context);
+    }
+
+    @Benchmark
+    public boolean stringInterpreter() {
+        return interpreter.interpret(GUARD.split(" "), vars).getBoolean();
+    }
+
+    @Benchmark
+    public boolean nodeTree() {
+        return compiledGuard.evaluate(slotValues).getBoolean();
+    }
+
+    @Benchmark
+    public boolean primitiveStack() {
+        return compiledGuard.evaluateBoolean(context);
+    }
+
+    @Benchmark
+    public boolean bytecode() {
+        return code.evaluate(context) && context.stackBooleans[0];
+    }
+
+    /* binding the String values of the token to the slots, then checking the guard */
+    @Benchmark
+    public boolean primitiveStackWithBinding() {
+        context.setSlot(xSlot, "2", vars);
+        context.setSlot(ySlot, "3", vars);
+        return compiledGuard.evaluateBoolean(context);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * File name: ParallelExplorerBenchmark.java
+ * File Description:
+ *      JMH benchmark of the scaling of ParallelExplorer with the number of workers:
+ *      each operation generates the 9261 states of 3 cycles of 3 places with 5 tokens, with a guard on every
+ *      transition so that firings go through the bindings, the firing cache and the shared state store
+ *      Run with: gradle jmh
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+@org.openjdk.jmh.annotations.State(Scope.Thread)  /* not io.ferdon.statespace.State */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelExplorerBenchmark {
+
+    private static final int NUM_CYCLES = 3;
+    private static final int NUM_TOKENS = 5;
+
+    @Param({"1", "2", "4", "8", "16"})
+    private int workers;
+
+    private Petrinet net;
+    private State startState;
+
+    @Setup
+    public void setUp() {
+        int numPlaces = 3 * NUM_CYCLES;
+        String[] markings = new String[numPlaces];
+        String[] guards = new String[numPlaces];
+        Object[][][] expressions = new Object[numPlaces][][];
+        Object[][][] variables = new Object[numPlaces][][];
+
+        for (int cycle = 0; cycle < NUM_CYCLES; cycle++) {
+            for (int i = 0; i < 3; i++) {
+                int placeID = 3 * cycle + i;
+                markings[placeID] = (i == 0) ? NUM_TOKENS + "~[]" : "";
+                guards[placeID] = "1 1 ==";
+                variables[placeID] = new Object[][]{{placeID, "[]"}};
+                expressions[placeID] = new Object[][]{{3 * cycle + (i + 1) % 3, "[]"}};
+            }
+        }
+
+        net = new Petrinet(numPlaces, new HashMap<>(), new int[0][], new int[0][],
+                markings, guards, expressions, variables);
+        startState = net.generateCurrentState();
+    }
+
+    /* whole state space, the number of states is returned so the generation is not eliminated */
+    @Benchmark
+    public int generateStateSpace() {
+        net.generateStateSpaceParallel(startState, workers);
+        return net.getStateSpace().getNumState();
+    }
+}
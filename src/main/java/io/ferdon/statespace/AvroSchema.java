@@ -71,6 +71,11 @@ public class AvroSchema {
     }
 
     public Schema createNodeSchema(String filename) {
+        return createNodeSchema(filename, "int");
+    }
+
+    /* keyType: type of the state ID, "long" for the 64-bit state keys of bitstate hashing */
+    public Schema createNodeSchema(String filename, String keyType) {
         String s = "";
         s = s + "{\n \"name\" : \"nodeSchema\" ,\n";
         s = s + " \"type\"  : \"record\" ,\n";
@@ -86,7 +91,7 @@ public class AvroSchema {
                 s = s + ",\n";
             s = s + fieldPlaceSchema("P" + k, obj.get(number).toString());
         }
-        s = s + ",{\"name\":\"id\", \"type\":\"int\"}\n";
+        s = s + ",{\"name\":\"id\", \"type\":\"" + keyType + "\"}\n";
         s = s + "]}";
 
         Schema.Parser parser = new Schema.Parser();
@@ -94,12 +99,17 @@ public class AvroSchema {
     }
 
     public Schema createArcSchema(){
+        return createArcSchema("int");
+    }
+
+    /* keyType: type of the state IDs, "long" for the 64-bit state keys of bitstate hashing */
+    public Schema createArcSchema(String keyType){
         String s =  "{\n" +
                 "        \"name\":\"arcSchema\",\n" +
                 "        \"type\": \"record\",\n" +
                 "        \"fields\": [\n" +
-                "        {\"name\":\"src\", \"type\":\"int\"},\n" +
-                "        {\"name\":\"dst\", \"type\":\"int\"},\n" +
+                "        {\"name\":\"src\", \"type\":\"" + keyType + "\"},\n" +
+                "        {\"name\":\"dst\", \"type\":\"" + keyType + "\"},\n" +
                 "        {\"name\":\"transition\", \"type\":\"int\"}\n" +
                 "        ]\n" +
                 "}";
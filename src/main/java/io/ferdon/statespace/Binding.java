@@ -53,8 +53,9 @@ public class Binding implements Serializable {
                 String varname = varNames.get(varIndex);
                 String tokenValue = token.get(varIndex);
 
-                if (vars.containsKey(varname)) return null;
-                vars.put(varname, tokenValue);
+                /* a variable shared by several arcs must have the same value on all of them */
+                String boundValue = vars.put(varname, tokenValue);
+                if (boundValue != null && !boundValue.equals(tokenValue)) return null;
             }
         }
 
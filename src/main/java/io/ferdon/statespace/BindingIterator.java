@@ -0,0 +1,395 @@
+/*
+ * File name: BindingIterator.java
+ * File Description:
+ *      Cursor over the bindings of a transition, enumerated lazily as a join of the tokens of its input places
+ *      advance() moves to the next binding, whose tokens are read with getToken() from one array that is reused
+ *      for all bindings, so no Binding (and no map) is created unless getBinding() is called. A search that only
+ *      needs one binding stops after the first advance().
+ *      Variables shared by several input arcs are join keys: tokens of each place are grouped (hash index) by
+ *      the values of their variables that are already bound by previous places, so only consistent bindings are
+ *      produced instead of the whole cartesian product.
+ *      Places are joined in order of selectivity: fewest tokens first, places sharing variables with the
+ *      already joined places before unrelated places.
+ *      When an evaluation context is given, guard conjuncts are pushed down into the join: a conjunct that only uses
+ *      variables of one input arc filters the tokens of that place before the join, other conjuncts are checked
+ *      as soon as the last of their variables is bound, so all produced bindings are fireable.
+ *      Each distinct token of a place is joined once, tokens with fewer copies than the weight of the arc are dropped,
+ *      so every binding is produced exactly once whatever the multiplicity of its tokens.
+ *      Counter markings (uncolored places) are not joined: the transition is enabled on them when they hold at least
+ *      the weight of the arc, and every binding takes the unit token from them.
+ *      When an evaluation context is given, its slots hold the values of the variables of the current binding
+ *      after advance() returns true, ready for evaluating the output expressions.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import com.google.common.collect.Multiset;
+
+import java.util.*;
+
+class BindingIterator {
+
+    /*
+     * markingPlaces: input places in the order of the given markings, tokens are indexed in this order
+     * tokens: tokens of the current binding, reused by all bindings
+     * numPlaces: number of joined places (not counter)
+     * */
+    private Transition transition;
+    private Place[] markingPlaces;
+    private Token[] tokens;
+    private int numPlaces;
+
+    /*
+     * places: input places in join order
+     * keyVars: for each place, variables that are bound by previous places (join key)
+     * newVarIndexes: for each place, positions (on the arc) of variables that are first bound by this place
+     * tokenIndexes: for each place, index of its token in tokens
+     * indexes: for each place, values of keyVars ~> tokens with these values
+     * tokenFilters: for each place, guard conjuncts that only use variables of this place
+     * partialChecks: for each place, guard conjuncts whose last variable is bound by this place
+     * */
+    private List<Place> places;
+    private List<List<String>> keyVars;
+    private List<List<Integer>> newVarIndexes;
+    private int[] tokenIndexes;
+    private List<Map<List<String>, List<Token>>> indexes;
+    private List<List<GuardConjunct>> tokenFilters;
+    private List<List<GuardConjunct>> partialChecks;
+
+    /*
+     * boundVars: variable name ~> value of the current partial binding
+     * context: evaluation context of the calling thread, its slots hold the values of boundVars
+     * cursors: for each place, tokens that have not been tried with the current partial binding
+     * depth: place whose token is changed by the next advance(), -1 when all bindings have been enumerated
+     * */
+    private Map<String, String> boundVars;
+    private EvaluationContext context;
+    private List<Iterator<Token>> cursors;
+    private int depth;
+    private boolean isStarted;
+
+    /**
+     * Enumerate consistent bindings, guard of transition is not checked
+     *
+     * @param transition Transition
+     * @param markings   markings of the input places of transition
+     */
+    BindingIterator(Transition transition, List<Marking> markings) {
+        this(transition, markings, null);
+    }
+
+    /**
+     * Enumerate fireable bindings: consistent bindings that pass the guard of transition
+     *
+     * @param transition Transition
+     * @param markings   markings of the input places of transition
+     * @param context    evaluation context for guard conjuncts, null for not checking the guard
+     */
+    BindingIterator(Transition transition, List<Marking> markings, EvaluationContext context) {
+
+        this.transition = transition;
+        this.markingPlaces = new Place[markings.size()];
+        this.tokens = new Token[markings.size()];
+        this.places = new ArrayList<>();
+        this.keyVars = new ArrayList<>();
+        this.newVarIndexes = new ArrayList<>();
+        this.indexes = new ArrayList<>();
+        this.tokenFilters = new ArrayList<>();
+        this.partialChecks = new ArrayList<>();
+        this.boundVars = new HashMap<>();
+        this.context = context;
+        if (context != null) context.reset(transition.getSlotNumber());
+        this.cursors = new ArrayList<>();
+
+        boolean isEnabled = true;
+        Map<Place, Integer> markingIndexes = new HashMap<>();
+        List<Marking> joinedMarkings = new ArrayList<>();
+        for (int index = 0; index < markings.size(); index++) {
+            Marking marking = markings.get(index);
+            markingPlaces[index] = marking.getPlace();
+            markingIndexes.put(marking.getPlace(), index);
+
+            if (!marking.isCounter()) {
+                joinedMarkings.add(marking);
+                continue;
+            }
+
+            /* every binding takes the unit token from counter markings */
+            tokens[index] = Token.unit();
+            if (marking.size() < transition.getVarNumber(marking.getPlace())) isEnabled = false;
+        }
+
+        this.numPlaces = joinedMarkings.size();
+        List<Marking> orderedMarkings = planJoin(joinedMarkings);
+        boolean isPassed = isEnabled && ((context == null) || pushDownGuard());
+
+        this.tokenIndexes = new int[numPlaces];
+        for (int placeIndex = 0; placeIndex < numPlaces; placeIndex++) {
+            tokenIndexes[placeIndex] = markingIndexes.get(places.get(placeIndex));
+            indexes.add(buildIndex(placeIndex, orderedMarkings.get(placeIndex)));
+        }
+
+        depth = isPassed ? 0 : -1;
+    }
+
+    private List<String> getVarNames(Place place) {
+        List<String> varNames = transition.getVars(place);
+        return (varNames == null) ? new ArrayList<>() : varNames;
+    }
+
+    /**
+     * Choose the join order of input places and the join key of each place
+     *
+     * @param markings markings of input places
+     * @return markings in join order
+     */
+    private List<Marking> planJoin(List<Marking> markings) {
+
+        List<Marking> orderedMarkings = new ArrayList<>();
+        List<Marking> remaining = new ArrayList<>(markings);
+        Set<String> joinedVars = new HashSet<>();
+
+        while (!remaining.isEmpty()) {
+
+            Marking best = null;
+            boolean bestHasKey = false;
+            for (Marking marking : remaining) {
+                boolean hasKey = !Collections.disjoint(joinedVars, getVarNames(marking.getPlace()));
+                if (best == null || (hasKey && !bestHasKey)
+                        || (hasKey == bestHasKey && marking.size() < best.size())) {
+                    best = marking;
+                    bestHasKey = hasKey;
+                }
+            }
+            remaining.remove(best);
+
+            Place place = best.getPlace();
+            List<String> varNames = getVarNames(place);
+            List<String> placeKeyVars = new ArrayList<>();
+            List<Integer> placeNewVarIndexes = new ArrayList<>();
+            Set<String> seenVars = new HashSet<>();
+
+            for (int varIndex = 0; varIndex < varNames.size(); varIndex++) {
+                String varName = varNames.get(varIndex);
+                if (!seenVars.add(varName)) continue;
+
+                if (joinedVars.contains(varName)) placeKeyVars.add(varName);
+                else placeNewVarIndexes.add(varIndex);
+            }
+
+            orderedMarkings.add(best);
+            places.add(place);
+            keyVars.add(placeKeyVars);
+            newVarIndexes.add(placeNewVarIndexes);
+            tokenFilters.add(new ArrayList<>());
+            partialChecks.add(new ArrayList<>());
+            joinedVars.addAll(varNames);
+        }
+
+        return orderedMarkings;
+    }
+
+    /**
+     * Attach each guard conjunct to the earliest place of the join order where it can be checked
+     *
+     * @return false if a conjunct without variables fails, so there is no fireable binding
+     */
+    private boolean pushDownGuard() {
+
+        for (GuardConjunct conjunct : transition.getGuardConjuncts()) {
+
+            int filterIndex = -1;
+            int checkIndex = -1;
+            Set<String> joinedVars = new HashSet<>();
+
+            for (int placeIndex = 0; placeIndex < numPlaces; placeIndex++) {
+                List<String> varNames = getVarNames(places.get(placeIndex));
+                if (filterIndex == -1 && varNames.containsAll(conjunct.getVars())) filterIndex = placeIndex;
+
+                joinedVars.addAll(varNames);
+                if (checkIndex == -1 && joinedVars.containsAll(conjunct.getVars())) checkIndex = placeIndex;
+            }
+
+            if (conjunct.getVars().isEmpty() || checkIndex == -1) {
+                /* constant conjunct (or unknown variables: evaluating reports them) */
+                if (!conjunct.isPassed(context)) return false;
+            } else if (filterIndex != -1) {
+                tokenFilters.get(filterIndex).add(conjunct);
+            } else {
+                partialChecks.get(checkIndex).add(conjunct);
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isPassed(List<GuardConjunct> conjuncts) {
+        for (GuardConjunct conjunct : conjuncts) {
+            if (!conjunct.isPassed(context)) return false;
+        }
+        return true;
+    }
+
+    /* check conjuncts with the variables of one token, slots of these variables are cleared after */
+    private boolean isPassed(List<GuardConjunct> conjuncts, Token token, List<String> varNames,
+                             Map<String, String> tokenVars) {
+
+        if (!token.isUnit()) {
+            for (int varIndex = 0; varIndex < varNames.size(); varIndex++) {
+                int slot = transition.getVarSlot(varNames.get(varIndex));
+                if (slot != -1) context.setSlot(slot, token, varIndex, tokenVars);
+            }
+        }
+
+        boolean result = isPassed(conjuncts);
+        for (String varName : tokenVars.keySet()) {
+            int slot = transition.getVarSlot(varName);
+            if (slot != -1) context.clearSlot(slot);
+        }
+
+        return result;
+    }
+
+    /**
+     * Group distinct tokens of marking by the values of key variables.
+     * Tokens with fewer copies than the weight of the arc, tokens that give different values to a variable
+     * appearing twice on the same arc, or that fail a guard conjunct of the place, are dropped.
+     */
+    private Map<List<String>, List<Token>> buildIndex(int placeIndex, Marking marking) {
+
+        Place place = places.get(placeIndex);
+        List<String> varNames = getVarNames(place);
+        List<String> placeKeyVars = keyVars.get(placeIndex);
+        List<GuardConjunct> placeFilters = tokenFilters.get(placeIndex);
+        int weight = transition.getVarNumber(place);
+
+        Map<List<String>, List<Token>> index = new HashMap<>();
+        for (Multiset.Entry<Token> entry : marking.getTokenEntries()) {
+            if (entry.getCount() < weight) continue;
+
+            Token token = entry.getElement();
+
+            Map<String, String> tokenVars = new HashMap<>();
+            boolean consistent = true;
+            if (!token.isUnit()) {
+                for (int varIndex = 0; varIndex < varNames.size(); varIndex++) {
+                    String oldValue = tokenVars.put(varNames.get(varIndex), token.get(varIndex));
+                    if (oldValue != null && !oldValue.equals(token.get(varIndex))) consistent = false;
+                }
+            }
+            if (!consistent) continue;
+            if (!placeFilters.isEmpty() && !isPassed(placeFilters, token, varNames, tokenVars)) continue;
+
+            List<String> key = new ArrayList<>();
+            for (String varName : placeKeyVars) key.add(tokenVars.get(varName));
+            index.computeIfAbsent(key, k -> new ArrayList<>()).add(token);
+        }
+
+        return index;
+    }
+
+    private Iterator<Token> lookup(int placeIndex) {
+
+        List<String> key = new ArrayList<>();
+        for (String varName : keyVars.get(placeIndex)) key.add(boundVars.get(varName));
+
+        List<Token> tokens = indexes.get(placeIndex).get(key);
+        return (tokens == null) ? Collections.emptyIterator() : tokens.iterator();
+    }
+
+    private void unbind(int placeIndex) {
+        Token token = tokens[tokenIndexes[placeIndex]];
+        tokens[tokenIndexes[placeIndex]] = null;
+        if (token == null || token.isUnit()) return;
+
+        List<String> varNames = getVarNames(places.get(placeIndex));
+        for (int varIndex : newVarIndexes.get(placeIndex)) {
+            String varName = varNames.get(varIndex);
+            boundVars.remove(varName);
+
+            int slot = transition.getVarSlot(varName);
+            if (slot != -1 && context != null) context.clearSlot(slot);
+        }
+    }
+
+    private void bind(int placeIndex, Token token) {
+        tokens[tokenIndexes[placeIndex]] = token;
+        if (token.isUnit()) return;
+
+        List<String> varNames = getVarNames(places.get(placeIndex));
+        for (int varIndex : newVarIndexes.get(placeIndex)) boundVars.put(varNames.get(varIndex), token.get(varIndex));
+
+        /* primitive fields are copied, others are parsed once per bound token, after all variables are bound */
+        for (int varIndex : newVarIndexes.get(placeIndex)) {
+            int slot = transition.getVarSlot(varNames.get(varIndex));
+            if (slot != -1 && context != null) context.setSlot(slot, token, varIndex, boundVars);
+        }
+    }
+
+    /**
+     * Move to the next binding, depth-first over the join order
+     *
+     * @return false if there is no more binding
+     */
+    boolean advance() {
+
+        if (!isStarted) {
+            isStarted = true;
+            if (depth == -1) return false;
+
+            if (numPlaces == 0) {
+                depth = -1;   /* transition without colored input place has one binding */
+                return true;
+            }
+            cursors.add(lookup(0));
+        }
+
+        while (depth >= 0) {
+            Iterator<Token> cursor = cursors.get(depth);
+            unbind(depth);
+
+            if (!cursor.hasNext()) {
+                cursors.remove(depth);
+                depth--;
+                continue;
+            }
+
+            bind(depth, cursor.next());
+            if (!isPassed(partialChecks.get(depth))) continue;
+
+            if (depth == numPlaces - 1) return true;
+
+            depth++;
+            cursors.add(lookup(depth));
+        }
+
+        return false;
+    }
+
+    /**
+     * @param index index of the place in the markings given to the constructor
+     * @return token of the place in the current binding
+     */
+    Token getToken(int index) {
+        return tokens[index];
+    }
+
+    /**
+     * @return map: variable name ~> value of the current binding, only valid until the next advance()
+     */
+    Map<String, String> getVarMapping() {
+        return Collections.unmodifiableMap(boundVars);
+    }
+
+    /**
+     * @return Binding holding the tokens of the current binding
+     */
+    Binding getBinding() {
+        Binding b = new Binding(transition);
+        for (int index = 0; index < tokens.length; index++) b.addToken(markingPlaces[index], tokens[index]);
+        return b;
+    }
+}
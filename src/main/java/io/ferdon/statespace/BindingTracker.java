@@ -0,0 +1,103 @@
+/*
+ * File name: BindingTracker.java
+ * File Description:
+ *      Carry the fireable bindings (as Firing: binding and produced tokens) of each transition from a parent state
+ *      to its child states
+ *      Fireable bindings of a transition only depend on the markings of its input places, and firing a transition
+ *      only changes the markings of its input and output places. So the bindings of a child state are the bindings
+ *      of its parent, except for the transitions that take tokens from a place changed by the fired transition
+ *      (found with Place.getOutTransition()), which are recomputed.
+ *      Recomputed firings are taken from a FiringCache, states that share the markings of the input places of a
+ *      transition share its firings.
+ *      BindingTracker can be shared by several threads, the firing lists it returns are not modified after they
+ *      are returned.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.*;
+
+class BindingTracker {
+
+    /*
+     * transitions: transitions in the order of Petrinet.getTransitions(), index of a transition in the binding lists
+     * affectedTransitions: for each transition, indexes of the transitions whose bindings can change when it fires
+     * */
+    private List<Transition> transitions;
+    private Map<Transition, int[]> affectedTransitions;
+    private FiringCache firingCache;
+
+    BindingTracker(Petrinet net, FiringCache firingCache) {
+
+        this.transitions = new ArrayList<>(net.getTransitions());
+        this.firingCache = firingCache;
+        this.affectedTransitions = new HashMap<>();
+
+        Map<Transition, Integer> transitionIndexes = new HashMap<>();
+        for (int index = 0; index < transitions.size(); index++) transitionIndexes.put(transitions.get(index), index);
+
+        for (Transition transition : transitions) {
+            Set<Integer> affected = new TreeSet<>();
+
+            List<Integer> changedPlaceIDs = new ArrayList<>();
+            for (int placeID : transition.getInPlaceArray()) changedPlaceIDs.add(placeID);
+            for (int placeID : transition.getOutPlaceArray()) changedPlaceIDs.add(placeID);
+
+            for (int placeID : changedPlaceIDs) {
+                for (Transition dependent : net.getPlace(placeID).getOutTransition()) {
+                    Integer index = transitionIndexes.get(dependent);
+                    if (index != null) affected.add(index);
+                }
+            }
+
+            int[] indexes = new int[affected.size()];
+            int i = 0;
+            for (int index : affected) indexes[i++] = index;
+            affectedTransitions.put(transition, indexes);
+        }
+    }
+
+    List<Transition> getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * Compute the firings of all transitions
+     *
+     * @param state   State
+     * @param context evaluation context of the calling thread
+     * @return for each transition (in the order of getTransitions()), its firings in state
+     */
+    List<List<Firing>> getFirings(State state, EvaluationContext context) {
+
+        List<List<Firing>> firings = new ArrayList<>(transitions.size());
+        for (Transition transition : transitions) {
+            firings.add(firingCache.getFirings(transition, state, context));
+        }
+
+        return firings;
+    }
+
+    /**
+     * Compute the firings of a child state from the firings of its parent
+     *
+     * @param childState      state reached by firing firedTransition
+     * @param parentFirings   result of getFirings() (or getChildFirings()) for the parent state
+     * @param firedTransition transition fired from the parent state
+     * @param context         evaluation context of the calling thread
+     * @return for each transition, its firings in childState
+     */
+    List<List<Firing>> getChildFirings(State childState, List<List<Firing>> parentFirings,
+                                       Transition firedTransition, EvaluationContext context) {
+
+        List<List<Firing>> firings = new ArrayList<>(parentFirings);
+        for (int index : affectedTransitions.get(firedTransition)) {
+            firings.set(index, firingCache.getFirings(transitions.get(index), childState, context));
+        }
+
+        return firings;
+    }
+}
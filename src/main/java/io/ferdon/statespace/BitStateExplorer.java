@@ -0,0 +1,105 @@
+/*
+ * File name: BitStateExplorer.java
+ * File Description:
+ *      Approximate exploration of a state space with bitstate hashing (supertrace), for nets whose state space does
+ *      not fit in memory. Visited states are marked in a BitStateSet instead of being stored in StateSpace, states
+ *      and edges are streamed to a StateSpaceListener.
+ *      The search is depth-first, as in supertrace: only the states of the current path (with their remaining
+ *      firings) are kept, so the memory is the bit array plus the depth of the search and the bounded firing cache.
+ *      States are not encoded, so no TokenDictionary grows during the search: the bits are taken from the
+ *      fingerprint of the state, and tokens are only referenced by the states of the path.
+ *      States wrongly considered visited by the bit array are not explored, the probability is reported by
+ *      BitStateSet.getOmissionProbability().
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+class BitStateExplorer {
+
+    /* seed of the second hash of the bit positions, the first one is the fingerprint of the state */
+    private static final long SEED = 0x5851f42d4c957f2dL;
+
+    private Petrinet net;
+    private BitStateSet visited;
+    private StateSpaceListener listener;
+    private BindingTracker tracker;
+    private EvaluationContext context;
+
+    /* state of the search path with its firings that have not been tried */
+    private static class Frame {
+        State state;
+        long fingerprint;
+        List<List<Firing>> firings;
+        int tranIndex;
+        int firingIndex;
+
+        Frame(State state, long fingerprint, List<List<Firing>> firings) {
+            this.state = state;
+            this.fingerprint = fingerprint;
+            this.firings = firings;
+        }
+    }
+
+    BitStateExplorer(Petrinet net, BitStateSet visited, StateSpaceListener listener, FiringCache firingCache) {
+        this.net = net;
+        this.visited = visited;
+        this.listener = listener;
+        this.tracker = new BindingTracker(net, firingCache);
+        this.context = new EvaluationContext();
+    }
+
+    /**
+     * Explore the states reachable from startState, each state found for the first time and each edge is
+     * given to listener
+     *
+     * @param startState initial state
+     */
+    void explore(State startState) {
+
+        List<Transition> transitions = tracker.getTransitions();
+        Deque<Frame> stack = new ArrayDeque<>();
+
+        long startFingerprint = startState.getFingerprint();
+        if (!visited.add(startFingerprint, Utils.mixHash64(startFingerprint ^ SEED))) return;
+
+        listener.stateFound(startFingerprint, startState);
+        stack.push(new Frame(startState, startFingerprint, tracker.getFirings(startState, context)));
+
+        while (!stack.isEmpty()) {
+            Frame parent = stack.peek();
+
+            while (parent.tranIndex < transitions.size()
+                    && parent.firingIndex >= parent.firings.get(parent.tranIndex).size()) {
+                parent.tranIndex++;
+                parent.firingIndex = 0;
+            }
+
+            if (parent.tranIndex == transitions.size()) {
+                stack.pop();
+                continue;
+            }
+
+            Transition transition = transitions.get(parent.tranIndex);
+            Firing firing = parent.firings.get(parent.tranIndex).get(parent.firingIndex++);
+
+            State childState = net.successor(parent.state, transition, firing);
+            long childFingerprint = childState.getFingerprint();
+            boolean isNew = visited.add(childFingerprint, Utils.mixHash64(childFingerprint ^ SEED));
+
+            if (isNew) {
+                listener.stateFound(childFingerprint, childState);
+                List<List<Firing>> childFirings =
+                        tracker.getChildFirings(childState, parent.firings, transition, context);
+                stack.push(new Frame(childState, childFingerprint, childFirings));
+            }
+            listener.edgeFound(parent.fingerprint, childFingerprint, transition);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * File name: BitStateSet.java
+ * File Description:
+ *      Visited set of bitstate hashing (supertrace): a fixed-size bit array, a state is marked by setting the bits
+ *      of k hash functions of its fingerprint, and it is considered visited when all of its k bits are set.
+ *      No state is stored, so the memory is the bit array whatever the number of states. A new state whose k bits
+ *      are already set by other states is wrongly considered visited, so it is not explored (with its successors).
+ *      The k bit positions are derived from two independent 64-bit hashes: h1 + i * h2 (i = 0 .. k-1).
+ *      The probability of this omission is estimated from the fraction of set bits and reported.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+class BitStateSet {
+
+    /* at most 2^36 bits (8 GB), the largest power of two length of a long[] is 2^30 */
+    static final int MAX_LOG2_BITS = 36;
+
+    /*
+     * bits: bit array, bit i is bit (i & 63) of bits[i >>> 6]
+     * mask: number of bits - 1
+     * numHashes: k, number of bits set for each state
+     * numStates: number of states added (not considered visited when they were added)
+     * numBitsSet: number of bits set to 1
+     * */
+    private long[] bits;
+    private long mask;
+    private int numHashes;
+    private long numStates;
+    private long numBitsSet;
+
+    /**
+     * @param log2Bits  number of bits of the array is 2^log2Bits, from 6 to MAX_LOG2_BITS
+     * @param numHashes number of hash functions, at least 1
+     */
+    BitStateSet(int log2Bits, int numHashes) {
+
+        if (log2Bits < 6 || log2Bits > MAX_LOG2_BITS) {
+            throw new IllegalArgumentException("log2Bits must be between 6 and " + MAX_LOG2_BITS);
+        }
+        if (numHashes < 1) throw new IllegalArgumentException("numHashes must be positive");
+
+        this.bits = new long[1 << (log2Bits - 6)];
+        this.mask = (1L << log2Bits) - 1;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Mark a state as visited
+     *
+     * @param h1 first hash of the state
+     * @param h2 second hash of the state, independent from h1
+     * @return true if the state was not visited (one of its bits was not set)
+     */
+    boolean add(long h1, long h2) {
+
+        h2 |= 1;   /* odd step, so the k positions differ */
+        boolean isNew = false;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = (h1 + i * h2) & mask;
+            int word = (int) (bit >>> 6);
+            long bitMask = 1L << bit;
+
+            if ((bits[word] & bitMask) == 0) {
+                bits[word] |= bitMask;
+                numBitsSet++;
+                isNew = true;
+            }
+        }
+
+        if (isNew) numStates++;
+        return isNew;
+    }
+
+    long getNumStates() {
+        return numStates;
+    }
+
+    long getNumBits() {
+        return mask + 1;
+    }
+
+    long getNumBitsSet() {
+        return numBitsSet;
+    }
+
+    /**
+     * Probability that a new state is considered visited when it is added to the current bit array:
+     * (fraction of set bits) ^ k
+     *
+     * @return probability of omission
+     */
+    double getOmissionProbability() {
+        return Math.pow((double) numBitsSet / getNumBits(), numHashes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BitStateSet: states = %d, bits = %d (%d MB), bits set = %d, hashes = %d, " +
+                        "omission probability = %.3e",
+                numStates, getNumBits(), getNumBits() >>> 23, numBitsSet, numHashes, getOmissionProbability());
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * File name: BytecodeCompiler.java
+ * File Description:
+ *      Optional backend that translates the postfix program of a CompiledExpression to JVM bytecode
+ *      (enabled with -Dstatespace.bytecode=true), so the JIT can inline hot guards into the binding loop.
+ *      Each expression becomes one class, specialized for the types of the variable slots seen at its first
+ *      evaluation, and loaded by its own class loader so it is unloaded with the expression.
+ *      Generated code checks the slot types first and returns false when they differ from the specialization,
+ *      or when the result must be decided by the Interpreter (division by zero, if without value):
+ *      the caller then runs the primitive program, so results and errors are the same.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class BytecodeCompiler implements Opcodes {
+
+    private static volatile boolean enabled = Boolean.getBoolean("statespace.bytecode");
+    private static final AtomicInteger classCounter = new AtomicInteger();
+
+    /* JVM locals of Code.evaluate() */
+    private static final int SLOT_TYPES = 1;
+    private static final int SLOT_LONGS = 2;
+    private static final int SLOT_DOUBLES = 3;
+    private static final int SLOT_BOOLEANS = 4;
+    private static final int RESULT_LONGS = 5;
+    private static final int RESULT_DOUBLES = 6;
+    private static final int RESULT_BOOLEANS = 7;
+    private static final int FIRST_TEMP = 8;
+
+    private static final String VALUE_TYPE = Type.getInternalName(Interpreter.ValueType.class);
+    private static final String CODE = Type.getInternalName(Code.class);
+    private static final String EVALUATE_DESCRIPTOR = "([L" + VALUE_TYPE + ";[J[D[Z[J[D[Z)Z";
+
+    /**
+     * Implemented by generated classes (public: they are defined by another class loader)
+     */
+    public interface Code {
+        /**
+         * @return true if the result is written at index 0 of the result arrays,
+         *         false if the expression must be evaluated by the primitive program
+         */
+        boolean evaluate(Interpreter.ValueType[] slotTypes, long[] slotLongs, double[] slotDoubles,
+                         boolean[] slotBooleans, long[] longs, double[] doubles, boolean[] booleans);
+    }
+
+    /**
+     * Generated code with the type of its result
+     */
+    static final class CompiledCode {
+        private Code code;
+        private Interpreter.ValueType resultType;
+
+        private CompiledCode(Code code, Interpreter.ValueType resultType) {
+            this.code = code;
+            this.resultType = resultType;
+        }
+
+        /**
+         * Evaluate with the slots of context, the result is put at the bottom of the value stack of context
+         *
+         * @return false if the primitive program must be run instead
+         */
+        boolean evaluate(EvaluationContext context) {
+            context.ensureStackDepth(1);
+            boolean isDone = code.evaluate(context.slotTypes, context.slotLongs, context.slotDoubles,
+                    context.slotBooleans, context.stackLongs, context.stackDoubles, context.stackBooleans);
+
+            if (isDone) context.stackTypes[0] = resultType;
+            return isDone;
+        }
+    }
+
+    private static final class ExpressionClassLoader extends ClassLoader {
+
+        ExpressionClassLoader() {
+            super(BytecodeCompiler.class.getClassLoader());
+        }
+
+        Class<?> define(String className, byte[] bytes) {
+            return defineClass(className, bytes, 0, bytes.length);
+        }
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void setEnabled(boolean isEnabled) {
+        enabled = isEnabled;
+    }
+
+    /*
+     * program, constants: see CompiledExpression
+     * slotTypes: types assumed for the slots used by program
+     * typeStack: types of the values on the JVM operand stack while translating
+     * nextTemp: next free JVM local
+     * */
+    private int[] program;
+    private Interpreter.ValueType[] constTypes;
+    private long[] constLongs;
+    private double[] constDoubles;
+    private boolean[] constBooleans;
+    private Interpreter.ValueType[] slotTypes;
+
+    private MethodVisitor mv;
+    private List<Interpreter.ValueType> typeStack;
+    private int nextTemp;
+
+    private BytecodeCompiler(int[] program, Interpreter.ValueType[] constTypes, long[] constLongs,
+                             double[] constDoubles, boolean[] constBooleans, Interpreter.ValueType[] slotTypes) {
+        this.program = program;
+        this.constTypes = constTypes;
+        this.constLongs = constLongs;
+        this.constDoubles = constDoubles;
+        this.constBooleans = constBooleans;
+        this.slotTypes = slotTypes;
+        this.typeStack = new ArrayList<>();
+        this.nextTemp = FIRST_TEMP;
+    }
+
+    /**
+     * Generate and load the class of a program
+     *
+     * @param program   instructions of CompiledExpression
+     * @param slotTypes types of the slots at the first evaluation, the code is specialized for them
+     * @return CompiledCode, null if the program cannot be specialized (string or missing slot, type error, ...)
+     */
+    static CompiledCode compile(int[] program, Interpreter.ValueType[] constTypes, long[] constLongs,
+                                double[] constDoubles, boolean[] constBooleans, Interpreter.ValueType[] slotTypes) {
+
+        BytecodeCompiler compiler = new BytecodeCompiler(program, constTypes, constLongs, constDoubles,
+                constBooleans, slotTypes.clone());
+        String className = "io/ferdon/statespace/GeneratedExpression" + classCounter.incrementAndGet();
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object", new String[]{CODE});
+
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        compiler.mv = cw.visitMethod(ACC_PUBLIC, "evaluate", EVALUATE_DESCRIPTOR, null, null);
+        compiler.mv.visitCode();
+        Interpreter.ValueType resultType = compiler.translate();
+        if (resultType == null) return null;
+        compiler.mv.visitMaxs(0, 0);
+        compiler.mv.visitEnd();
+        cw.visitEnd();
+
+        try {
+            Class<?> codeClass = new ExpressionClassLoader().define(className.replace('/', '.'), cw.toByteArray());
+            return new CompiledCode((Code) codeClass.getDeclaredConstructor().newInstance(), resultType);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * Translate program to the body of evaluate()
+     *
+     * @return type of the result, null if the program cannot be translated
+     */
+    private Interpreter.ValueType translate() {
+
+        if (!checkSlotTypes()) return null;
+
+        for (int pc = 0; pc < program.length; pc++) {
+            int instruction = program[pc];
+            int index = instruction >>> 4;
+
+            switch (instruction & 3) {
+                case 0:
+                    pushConstant(index);
+                    break;
+                case 1:
+                    pushVariable(index);
+                    break;
+                default: {
+                    Interpreter.OperationType operationType = Interpreter.OperationType.values()[index];
+                    boolean isLast = (pc == program.length - 1);
+                    if (!translateOperation(operationType, isLast)) return null;
+                }
+            }
+        }
+
+        /* the top of stack is the result, values under it (malformed expressions) are left on the stack */
+        Interpreter.ValueType resultType = pop();
+        int temp = store(resultType);
+        switch (resultType) {
+            case INTEGER:
+                mv.visitVarInsn(ALOAD, RESULT_LONGS);
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ILOAD, temp);
+                mv.visitInsn(I2L);
+                mv.visitInsn(LASTORE);
+                break;
+            case REAL:
+                mv.visitVarInsn(ALOAD, RESULT_DOUBLES);
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(DLOAD, temp);
+                mv.visitInsn(DASTORE);
+                break;
+            default:
+                mv.visitVarInsn(ALOAD, RESULT_BOOLEANS);
+                mv.visitInsn(ICONST_0);
+                mv.visitVarInsn(ILOAD, temp);
+                mv.visitInsn(BASTORE);
+        }
+
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(IRETURN);
+        return resultType;
+    }
+
+    /* the code starts by checking that the slots still have the types it is specialized for */
+    private boolean checkSlotTypes() {
+
+        int maxSlot = -1;
+        for (int instruction : program) {
+            if ((instruction & 3) != 1) continue;
+
+            int slot = instruction >>> 4;
+            if (slot >= slotTypes.length) return false;
+
+            Interpreter.ValueType type = slotTypes[slot];
+            if (type == null || type == Interpreter.ValueType.STRING) return false;
+            maxSlot = Math.max(maxSlot, slot);
+        }
+
+        if (maxSlot == -1) return true;
+
+        mv.visitVarInsn(ALOAD, SLOT_TYPES);
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitLdcInsn(maxSlot);
+        returnFalseIf(IF_ICMPLE);
+
+        boolean[] isChecked = new boolean[maxSlot + 1];
+        for (int instruction : program) {
+            if ((instruction & 3) != 1) continue;
+
+            int slot = instruction >>> 4;
+            if (isChecked[slot]) continue;
+            isChecked[slot] = true;
+
+            mv.visitVarInsn(ALOAD, SLOT_TYPES);
+            mv.visitLdcInsn(slot);
+            mv.visitInsn(AALOAD);
+            mv.visitFieldInsn(GETSTATIC, VALUE_TYPE, slotTypes[slot].name(), "L" + VALUE_TYPE + ";");
+            returnFalseIf(IF_ACMPNE);
+        }
+
+        return true;
+    }
+
+    private void pushConstant(int index) {
+        Interpreter.ValueType type = constTypes[index];
+        switch (type) {
+            case INTEGER:
+                mv.visitLdcInsn((int) constLongs[index]);
+                break;
+            case REAL:
+                mv.visitLdcInsn(constDoubles[index]);
+                break;
+            default:
+                mv.visitInsn(constBooleans[index] ? ICONST_1 : ICONST_0);
+        }
+        typeStack.add(type);
+    }
+
+    private void pushVariable(int slot) {
+        Interpreter.ValueType type = slotTypes[slot];
+        switch (type) {
+            case INTEGER:
+                mv.visitVarInsn(ALOAD, SLOT_LONGS);
+                mv.visitLdcInsn(slot);
+                mv.visitInsn(LALOAD);
+                mv.visitInsn(L2I);
+                break;
+            case REAL:
+                mv.visitVarInsn(ALOAD, SLOT_DOUBLES);
+                mv.visitLdcInsn(slot);
+                mv.visitInsn(DALOAD);
+                break;
+            default:
+                mv.visitVarInsn(ALOAD, SLOT_BOOLEANS);
+                mv.visitLdcInsn(slot);
+                mv.visitInsn(BALOAD);
+        }
+        typeStack.add(type);
+    }
+
+    /**
+     * Translate one operation with the semantics of Interpreter.operate
+     *
+     * @return false if the operation cannot be translated for the types of its operands
+     */
+    private boolean translateOperation(Interpreter.OperationType operationType, boolean isLast) {
+
+        switch (operationType) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case MOD:
+                return translateArithmetic(operationType);
+            case AND:
+            case OR:
+            case XOR: {
+                if (pop() != Interpreter.ValueType.BOOLEAN || pop() != Interpreter.ValueType.BOOLEAN) return false;
+                mv.visitInsn(operationType == Interpreter.OperationType.AND ? IAND
+                        : (operationType == Interpreter.OperationType.OR ? IOR : IXOR));
+                typeStack.add(Interpreter.ValueType.BOOLEAN);
+                return true;
+            }
+            case NOT:
+            case ISTRUE:
+            case ISFALSE: {
+                if (peek() != Interpreter.ValueType.BOOLEAN) return false;
+                if (operationType != Interpreter.OperationType.ISTRUE) {
+                    mv.visitInsn(ICONST_1);
+                    mv.visitInsn(IXOR);
+                }
+                return true;
+            }
+            case EQ:
+            case NEQ:
+            case GT:
+            case GTE:
+            case LT:
+            case LTE:
+                return translateComparison(operationType);
+            case IFELSE: {
+                Interpreter.ValueType elseType = pop();
+                Interpreter.ValueType thenType = pop();
+                if (thenType != elseType || pop() != Interpreter.ValueType.BOOLEAN) return false;
+
+                int elseTemp = store(elseType);
+                int thenTemp = store(thenType);
+                Label elseLabel = new Label();
+                Label endLabel = new Label();
+                mv.visitJumpInsn(IFEQ, elseLabel);
+                load(thenType, thenTemp);
+                mv.visitJumpInsn(GOTO, endLabel);
+                mv.visitLabel(elseLabel);
+                load(elseType, elseTemp);
+                mv.visitLabel(endLabel);
+                typeStack.add(thenType);
+                return true;
+            }
+            case IF: {
+                /* if that pushes nothing is only supported at the end of the expression, by the fallback */
+                Interpreter.ValueType valueType = pop();
+                if (!isLast || pop() != Interpreter.ValueType.BOOLEAN) return false;
+
+                int temp = store(valueType);
+                returnFalseIf(IFEQ);
+                load(valueType, temp);
+                typeStack.add(valueType);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    private boolean translateArithmetic(Interpreter.OperationType operationType) {
+
+        Interpreter.ValueType right = pop();
+        Interpreter.ValueType left = pop();
+        if (!isNumber(left) || !isNumber(right)) return false;
+
+        /* the left operand decides the type of the result */
+        if (left == Interpreter.ValueType.INTEGER) {
+            if (right == Interpreter.ValueType.REAL) mv.visitInsn(D2I);
+
+            if (operationType == Interpreter.OperationType.DIV || operationType == Interpreter.OperationType.MOD) {
+                mv.visitInsn(DUP);
+                returnFalseIf(IFEQ);  /* division by zero is reported by the Interpreter */
+            }
+            mv.visitInsn(arithmeticOpcode(operationType, IADD, ISUB, IMUL, IDIV, IREM));
+        } else {
+            if (right == Interpreter.ValueType.INTEGER) mv.visitInsn(I2D);
+            mv.visitInsn(arithmeticOpcode(operationType, DADD, DSUB, DMUL, DDIV, DREM));
+        }
+
+        typeStack.add(left);
+        return true;
+    }
+
+    private static int arithmeticOpcode(Interpreter.OperationType operationType, int add, int sub, int mul,
+                                        int div, int rem) {
+        switch (operationType) {
+            case ADD:
+                return add;
+            case SUB:
+                return sub;
+            case MUL:
+                return mul;
+            case DIV:
+                return div;
+            default:
+                return rem;
+        }
+    }
+
+    private boolean translateComparison(Interpreter.OperationType operationType) {
+
+        Interpreter.ValueType right = pop();
+        Interpreter.ValueType left = pop();
+        int jumpOpcode;
+
+        if (left == Interpreter.ValueType.INTEGER && isNumber(right)) {
+            if (right == Interpreter.ValueType.REAL) mv.visitInsn(D2I);
+            jumpOpcode = comparisonOpcode(operationType, IF_ICMPEQ, IF_ICMPNE, IF_ICMPGT, IF_ICMPGE, IF_ICMPLT, IF_ICMPLE);
+
+        } else if (left == Interpreter.ValueType.REAL && isNumber(right)) {
+            if (right == Interpreter.ValueType.INTEGER) mv.visitInsn(I2D);
+
+            /* NaN compares false except for != : dcmpl gives -1 for >, >=, dcmpg gives 1 for <, <= */
+            boolean isLess = (operationType == Interpreter.OperationType.LT || operationType == Interpreter.OperationType.LTE);
+            mv.visitInsn(isLess ? DCMPG : DCMPL);
+            jumpOpcode = comparisonOpcode(operationType, IFEQ, IFNE, IFGT, IFGE, IFLT, IFLE);
+
+        } else if (left == Interpreter.ValueType.BOOLEAN && right == Interpreter.ValueType.BOOLEAN) {
+            /* other comparisons of booleans throw, they are left to the Interpreter */
+            if (operationType == Interpreter.OperationType.EQ) jumpOpcode = IF_ICMPEQ;
+            else if (operationType == Interpreter.OperationType.NEQ) jumpOpcode = IF_ICMPNE;
+            else return false;
+
+        } else {
+            return false;
+        }
+
+        Label trueLabel = new Label();
+        Label endLabel = new Label();
+        mv.visitJumpInsn(jumpOpcode, trueLabel);
+        mv.visitInsn(ICONST_0);
+        mv.visitJumpInsn(GOTO, endLabel);
+        mv.visitLabel(trueLabel);
+        mv.visitInsn(ICONST_1);
+        mv.visitLabel(endLabel);
+
+        typeStack.add(Interpreter.ValueType.BOOLEAN);
+        return true;
+    }
+
+    private static int comparisonOpcode(Interpreter.OperationType operationType, int eq, int ne, int gt, int ge,
+                                        int lt, int le) {
+        switch (operationType) {
+            case EQ:
+                return eq;
+            case NEQ:
+                return ne;
+            case GT:
+                return gt;
+            case GTE:
+                return ge;
+            case LT:
+                return lt;
+            default:
+                return le;
+        }
+    }
+
+    /* return false (let the primitive program decide) when the jump condition holds */
+    private void returnFalseIf(int jumpOpcode) {
+        Label continueLabel = new Label();
+        Label falseLabel = new Label();
+        mv.visitJumpInsn(jumpOpcode, falseLabel);
+        mv.visitJumpInsn(GOTO, continueLabel);
+        mv.visitLabel(falseLabel);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(continueLabel);
+    }
+
+    private int store(Interpreter.ValueType type) {
+        int temp = nextTemp;
+        if (type == Interpreter.ValueType.REAL) {
+            mv.visitVarInsn(DSTORE, temp);
+            nextTemp += 2;
+        } else {
+            mv.visitVarInsn(ISTORE, temp);
+            nextTemp += 1;
+        }
+        return temp;
+    }
+
+    private void load(Interpreter.ValueType type, int temp) {
+        mv.visitVarInsn(type == Interpreter.ValueType.REAL ? DLOAD : ILOAD, temp);
+    }
+
+    private Interpreter.ValueType pop() {
+        if (typeStack.isEmpty()) return null;
+        return typeStack.remove(typeStack.size() - 1);
+    }
+
+    private Interpreter.ValueType peek() {
+        return typeStack.isEmpty() ? null : typeStack.get(typeStack.size() - 1);
+    }
+
+    private static boolean isNumber(Interpreter.ValueType type) {
+        return type == Interpreter.ValueType.INTEGER || type == Interpreter.ValueType.REAL;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * File name: ColorSet.java
+ * File Description:
+ *      Represent the color set of a place, for example INT*STRING*BOOL, parsed from placeToColor
+ *      The color set gives the declared type of each field of the tokens of the place, Token stores the fields
+ *      of these types in primitive form.
+ *      Color sets that are not given, UNIT color sets, and color sets whose number of fields differs from the
+ *      tokens have no declared types: the type of each field is then taken from its value.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+final class ColorSet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final ColorSet UNKNOWN = new ColorSet(null, false);
+
+    /*
+     * fieldTypes: declared type of each field, null if the color set is unknown or unit
+     * isUnit: true if the color set is UNIT (tokens without data)
+     * */
+    private Interpreter.ValueType[] fieldTypes;
+    private boolean isUnit;
+
+    private ColorSet(Interpreter.ValueType[] fieldTypes, boolean isUnit) {
+        this.fieldTypes = fieldTypes;
+        this.isUnit = isUnit;
+    }
+
+    /**
+     * Parse a color set, color names are case insensitive:
+     *      INT | INTEGER, REAL | DOUBLE, BOOL | BOOLEAN, STRING, UNIT
+     *
+     * @param color color set, fields are separated by '*'
+     * @return ColorSet, UNKNOWN if color is null or has an unknown color name
+     */
+    static ColorSet parse(String color) {
+
+        if (color == null || color.trim().isEmpty()) return UNKNOWN;
+        if (color.trim().equalsIgnoreCase("UNIT")) return new ColorSet(null, true);
+
+        String[] fields = color.split("\\*");
+        Interpreter.ValueType[] fieldTypes = new Interpreter.ValueType[fields.length];
+
+        for (int i = 0; i < fields.length; i++) {
+            fieldTypes[i] = getFieldType(fields[i].trim().toUpperCase());
+            if (fieldTypes[i] == null) return UNKNOWN;
+        }
+
+        return new ColorSet(fieldTypes, false);
+    }
+
+    private static Interpreter.ValueType getFieldType(String colorName) {
+        switch (colorName) {
+            case "INT":
+            case "INTEGER":
+                return Interpreter.ValueType.INTEGER;
+            case "REAL":
+            case "DOUBLE":
+                return Interpreter.ValueType.REAL;
+            case "BOOL":
+            case "BOOLEAN":
+                return Interpreter.ValueType.BOOLEAN;
+            case "STRING":
+                return Interpreter.ValueType.STRING;
+            default:
+                return null;
+        }
+    }
+
+    boolean isUnit() {
+        return isUnit;
+    }
+
+    /* true if the type of the fields is declared, false for unit and unknown color sets */
+    boolean hasFields() {
+        return fieldTypes != null;
+    }
+
+    /**
+     * Return the declared type of a field of a token
+     *
+     * @param index     index of the field
+     * @param numFields number of fields of the token
+     * @return ValueType, null if the type is not declared (type is taken from the value)
+     */
+    Interpreter.ValueType getFieldType(int index, int numFields) {
+        if (fieldTypes == null || fieldTypes.length != numFields) return null;
+        return fieldTypes[index];
+    }
+
+    /**
+     * Create a token of this color set from the String values of its fields
+     *
+     * @param values values of fields, null for unit token
+     * @return pooled Token
+     */
+    Token createToken(List<String> values) {
+
+        if (values == null) return Token.unit();
+
+        Token.Builder builder = new Token.Builder(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            builder.addData(values.get(i), getFieldType(i, values.size()));
+        }
+
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        if (isUnit) return "UNIT";
+        if (fieldTypes == null) return "UNKNOWN";
+
+        List<String> names = new ArrayList<>();
+        for (Interpreter.ValueType fieldType : fieldTypes) names.add(fieldType.toString());
+        return String.join("*", names);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * File name: CompactState.java
+ * File Description:
+ *      Packed representation of a State that is kept in StateStore
+ *      A state is encoded as the list of (placeID, tokenID, count) entries sorted by placeID then tokenID,
+ *      each number is written as a variable-length int (7 bits per byte), placeID is written as the difference
+ *      from the previous entry and empty places are skipped. The encoding of a marking is unique, so two states
+ *      are equal iff their bytes are equal.
+ *      States are only encoded when they are stored: visited sets look them up by State.getFingerprint(), and
+ *      compare a stored state with a new one by matches(), which reads the bytes without encoding the new state.
+ *      Full State objects are decoded on demand (exporting the state space)
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+final class CompactState {
+
+    private final byte[] data;
+    private final int hash;
+    private int stateID;
+
+    /* data: encoded markings, e.g. getData() of a CompactState read back from disk */
+    CompactState(byte[] data) {
+        this.data = data;
+        this.hash = Arrays.hashCode(data);
+        this.stateID = -1;
+    }
+
+    int getID() {
+        return stateID;
+    }
+
+    void setID(int stateID) {
+        this.stateID = stateID;
+    }
+
+    int size() {
+        return data.length;
+    }
+
+    /* encoded markings, must not be modified */
+    byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Compare the encoded markings with the markings of state without encoding state, e.g. for checking a stored
+     * state whose fingerprint is the fingerprint of state
+     *
+     * @param state           State
+     * @param tokenDictionary dictionary that used to encode this state
+     * @return true if state has the markings of this CompactState
+     */
+    boolean matches(State state, TokenDictionary tokenDictionary) {
+
+        int[] pos = new int[1];
+        int placeID = 0;
+        int numEntries = 0;
+        while (pos[0] < data.length) {
+            placeID += readInt(data, pos);
+            Token token = tokenDictionary.getToken(readInt(data, pos));
+            int count = readInt(data, pos);
+
+            Marking marking = state.getMarking(placeID);
+            if (marking == null || marking.getNumToken(token) != count) return false;
+            numEntries++;
+        }
+
+        /* every entry of this state is in state, state has no other entry */
+        return numEntries == state.getNumEntries();
+    }
+
+    /**
+     * Encode markings of state, tokens are translated to token IDs by tokenDictionary
+     *
+     * @param state           State
+     * @param tokenDictionary dictionary shared by all states of the state space
+     * @return CompactState
+     */
+    static CompactState encode(State state, TokenDictionary tokenDictionary) {
+
+        int numEntries = state.getNumEntries();
+
+        /* key = placeID (high 32 bits), tokenID (low 32 bits) */
+        long[] keys = new long[numEntries];
+        int[] counts = new int[numEntries];
+
+        int n = 0;
+        for (Place place : state.getPlaceSet()) {
+            for (Multiset.Entry<Token> entry : state.getMarking(place).getTokenEntries()) {
+                long key = ((long) place.getID() << 32) | tokenDictionary.getID(entry.getElement());
+                int count = entry.getCount();
+
+                /* insertion sort, a state usually has few entries */
+                int pos = n++;
+                while (pos > 0 && keys[pos - 1] > key) {
+                    keys[pos] = keys[pos - 1];
+                    counts[pos] = counts[pos - 1];
+                    pos--;
+                }
+                keys[pos] = key;
+                counts[pos] = count;
+            }
+        }
+
+        byte[] buffer = new byte[numEntries * 15];
+        int length = 0;
+        int lastPlaceID = 0;
+        for (int i = 0; i < numEntries; i++) {
+            int placeID = (int) (keys[i] >>> 32);
+            length = writeInt(buffer, length, placeID - lastPlaceID);
+            length = writeInt(buffer, length, (int) keys[i]);
+            length = writeInt(buffer, length, counts[i]);
+            lastPlaceID = placeID;
+        }
+
+        return new CompactState(Arrays.copyOf(buffer, length));
+    }
+
+    /**
+     * Decode to a full State, every place of places has a Marking (possibly empty) in the result
+     *
+     * @param places          map: placeID ~> place
+     * @param tokenDictionary dictionary that used to encode this state
+     * @return State, ID of the result is the ID of this CompactState
+     */
+    State decode(Map<Integer, Place> places, TokenDictionary tokenDictionary) {
+
+        Map<Integer, Multiset<Token>> tokens = new HashMap<>();
+        for (int placeID : places.keySet()) {
+            tokens.put(placeID, HashMultiset.create());
+        }
+
+        int[] pos = new int[1];
+        int placeID = 0;
+        while (pos[0] < data.length) {
+            placeID += readInt(data, pos);
+            Token token = tokenDictionary.getToken(readInt(data, pos));
+            int count = readInt(data, pos);
+            tokens.get(placeID).add(token, count);
+        }
+
+        Map<Place, Marking> markings = new HashMap<>();
+        for (Place place : places.values()) {
+            markings.put(place, new Marking(tokens.get(place.getID()), place));
+        }
+
+        return new State(stateID, markings);
+    }
+
+    private static int writeInt(byte[] buffer, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int readInt(byte[] buffer, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[pos[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof CompactState)) return false;
+
+        CompactState otherState = (CompactState) obj;
+        return hash == otherState.hash && Arrays.equals(data, otherState.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,648 @@
+/*
+ * File name: CompiledExpression.java
+ * File Description:
+ *      Postfix expression of the Interpreter language, compiled once into a tree of nodes
+ *      Constants are parsed at compile time and variables are resolved to slot indexes, so evaluating the expression
+ *      does not parse, split or match any String: values of variables are given as an array indexed by slot.
+ *      Each node knows the type of its result when it can be decided at compile time.
+ *      Expressions without strings are also compiled to a postfix program that runs on the primitive value stack
+ *      of an EvaluationContext without allocating, the Node tree is evaluated when the program cannot decide
+ *      (strings in slots, type errors, ...) so errors are the same as the Interpreter ones.
+ *      When the bytecode backend is enabled, the program is also translated to a JVM class (BytecodeCompiler)
+ *      at its first evaluation, and the program only runs when the generated code cannot decide.
+ *      Guards and output arc expressions of transitions are compiled when the Petrinet is loaded.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import java.util.*;
+
+class CompiledExpression {
+
+    interface Node {
+        /**
+         * @param slots values of variables, indexed by slot
+         * @return Value, null if the node is an if whose condition is false (it pushes nothing)
+         */
+        Interpreter.Value evaluate(Interpreter.Value[] slots);
+
+        /**
+         * @return type of the result, null if it is only known at evaluation
+         */
+        Interpreter.ValueType getType();
+    }
+
+    private static class ConstantNode implements Node {
+        private Interpreter.Value value;
+        private Interpreter.ValueType type;
+
+        ConstantNode(Interpreter.Value value, Interpreter.ValueType type) {
+            this.value = value;
+            this.type = type;
+        }
+
+        public Interpreter.Value evaluate(Interpreter.Value[] slots) {
+            return value;
+        }
+
+        public Interpreter.ValueType getType() {
+            return type;
+        }
+    }
+
+    private static class VariableNode implements Node {
+        private int slot;
+
+        VariableNode(int slot) {
+            this.slot = slot;
+        }
+
+        public Interpreter.Value evaluate(Interpreter.Value[] slots) {
+            Interpreter.Value value = (slot < slots.length) ? slots[slot] : null;
+            if (value == null) throw new IllegalArgumentException("Variable's values are not provided");
+            return value;
+        }
+
+        public Interpreter.ValueType getType() {
+            return null;
+        }
+    }
+
+    private static class OperatorNode implements Node {
+        private Interpreter.OperationType operationType;
+        private Node[] operands;
+        private Interpreter.ValueType type;
+
+        OperatorNode(Interpreter.OperationType operationType, Node[] operands) {
+            this.operationType = operationType;
+            this.operands = operands;
+            this.type = inferType(operationType, operands);
+        }
+
+        public Interpreter.Value evaluate(Interpreter.Value[] slots) {
+
+            Interpreter.Value[] args = new Interpreter.Value[operands.length];
+            for (int i = 0; i < operands.length; i++) {
+                args[i] = operands[i].evaluate(slots);
+                if (args[i] == null) throw new EmptyStackException();  /* operand is an if that pushed nothing */
+            }
+
+            return Interpreter.operate(operationType, args);
+        }
+
+        public Interpreter.ValueType getType() {
+            return type;
+        }
+    }
+
+    /* expression that cannot be compiled, the error is reported when it is evaluated (as the Interpreter does) */
+    private static class ErrorNode implements Node {
+        private RuntimeException error;
+
+        ErrorNode(RuntimeException error) {
+            this.error = error;
+        }
+
+        public Interpreter.Value evaluate(Interpreter.Value[] slots) {
+            throw error;
+        }
+
+        public Interpreter.ValueType getType() {
+            return null;
+        }
+    }
+
+    /* kinds of instructions of program */
+    private static final int CONSTANT = 0;
+    private static final int VARIABLE = 1;
+    private static final int OPERATION = 2;
+
+    /*
+     * expression: source of the expression
+     * roots: nodes left on the stack at the end of the expression, normally only one
+     * vars: names of the variables used by the expression
+     * program: instructions (index << 4 | number of operands << 2 | kind),
+     *          index is a constant index, a slot or an OperationType ordinal,
+     *          null if the expression has strings or cannot be compiled
+     * constTypes, constLongs, constDoubles, constBooleans: constants of program
+     * maxDepth: max depth of the value stack of program
+     * code: program translated by BytecodeCompiler, null if it cannot be translated
+     * isCodeCompiled: the translation has been tried
+     * */
+    private String expression;
+    private List<Node> roots;
+    private Set<String> vars;
+
+    private int[] program;
+    private Interpreter.ValueType[] constTypes;
+    private long[] constLongs;
+    private double[] constDoubles;
+    private boolean[] constBooleans;
+    private int maxDepth;
+
+    private volatile BytecodeCompiler.CompiledCode code;
+    private volatile boolean isCodeCompiled;
+
+    private static final Interpreter.OperationType[] operationTypes = Interpreter.OperationType.values();
+
+    private CompiledExpression(String expression, List<Node> roots, Set<String> vars) {
+        this.expression = expression;
+        this.roots = roots;
+        this.vars = vars;
+    }
+
+    String getExpression() {
+        return expression;
+    }
+
+    Set<String> getVars() {
+        return vars;
+    }
+
+    /**
+     * @return type of the result, null if it is only known at evaluation
+     */
+    Interpreter.ValueType getType() {
+        return roots.get(roots.size() - 1).getType();
+    }
+
+    /**
+     * Compile a postfix expression, tokens are separated by one space
+     *
+     * @param expression String
+     * @param varSlots   map: variable name ~> slot, variables that have no slot yet are added
+     * @return CompiledExpression
+     */
+    static CompiledExpression compile(String expression, Map<String, Integer> varSlots) {
+
+        Set<String> vars = new HashSet<>();
+        Deque<Node> nodeStack = new ArrayDeque<>();
+
+        List<Integer> program = new ArrayList<>();
+        List<Interpreter.Value> constants = new ArrayList<>();
+        boolean isPrimitive = true;
+        int depth = 0;
+        int maxDepth = 0;
+
+        try {
+            if (expression.isEmpty()) throw new IllegalArgumentException();
+
+            String[] tokens = StringEscapeUtils.escapeJava(expression).trim().split(" ");
+            for (String token : tokens) {
+
+                Interpreter.OperationType operationType = Interpreter.getOperationType(token);
+                if (operationType != null) {
+                    Node[] operands = new Node[Interpreter.getOperandNumber(operationType)];
+                    if (operands.length > nodeStack.size()) throw new EmptyStackException();
+                    for (int i = operands.length - 1; i >= 0; i--) operands[i] = nodeStack.pop();
+                    nodeStack.push(new OperatorNode(operationType, operands));
+
+                    isPrimitive &= isPrimitiveOperation(operationType);
+                    program.add(operationType.ordinal() << 4 | operands.length << 2 | OPERATION);
+                    depth -= operands.length - 1;
+                    continue;
+                }
+
+                Interpreter.ValueType valueType = Interpreter.getValueType(token);
+                if (valueType == Interpreter.ValueType.VARIABLE) {
+                    vars.add(token);
+                    int slot = varSlots.computeIfAbsent(token, k -> varSlots.size());
+                    nodeStack.push(new VariableNode(slot));
+                    program.add(slot << 4 | VARIABLE);
+                } else {
+                    Interpreter.Value value = Interpreter.parseValue(token, new HashMap<>());
+                    nodeStack.push(new ConstantNode(value, valueType));
+
+                    isPrimitive &= (valueType != Interpreter.ValueType.STRING);
+                    program.add(constants.size() << 4 | CONSTANT);
+                    constants.add(value);
+                }
+                maxDepth = Math.max(maxDepth, ++depth);
+            }
+
+            if (nodeStack.isEmpty()) throw new EmptyStackException();
+
+        } catch (RuntimeException e) {
+            nodeStack.clear();
+            nodeStack.push(new ErrorNode(e));
+            isPrimitive = false;
+        }
+
+        List<Node> roots = new ArrayList<>();
+        while (!nodeStack.isEmpty()) roots.add(nodeStack.removeLast());
+
+        CompiledExpression result = new CompiledExpression(expression, roots, vars);
+        if (isPrimitive) result.setProgram(program, constants, maxDepth);
+        return result;
+    }
+
+    private static boolean isPrimitiveOperation(Interpreter.OperationType operationType) {
+        switch (operationType) {
+            case SUBSTR:
+            case APPEND:
+            case ISEMPTY:
+            case TRIM:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void setProgram(List<Integer> instructions, List<Interpreter.Value> constants, int maxDepth) {
+
+        this.program = new int[instructions.size()];
+        for (int i = 0; i < program.length; i++) program[i] = instructions.get(i);
+
+        int numConstants = constants.size();
+        this.constTypes = new Interpreter.ValueType[numConstants];
+        this.constLongs = new long[numConstants];
+        this.constDoubles = new double[numConstants];
+        this.constBooleans = new boolean[numConstants];
+
+        for (int i = 0; i < numConstants; i++) {
+            Interpreter.Value value = constants.get(i);
+            if (value instanceof Interpreter.IntegerExpression) {
+                constTypes[i] = Interpreter.ValueType.INTEGER;
+                constLongs[i] = value.getInt();
+            } else if (value instanceof Interpreter.RealExpression) {
+                constTypes[i] = Interpreter.ValueType.REAL;
+                constDoubles[i] = value.getReal();
+            } else {
+                constTypes[i] = Interpreter.ValueType.BOOLEAN;
+                constBooleans[i] = value.getBoolean();
+            }
+        }
+
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Evaluate the expression
+     *
+     * @param slots values of variables, indexed by the slots given at compile time
+     * @return Value on the top of stack at the end of the expression
+     */
+    Interpreter.Value evaluate(Interpreter.Value[] slots) {
+
+        Interpreter.Value result = null;
+        for (Node root : roots) {
+            Interpreter.Value value = root.evaluate(slots);
+            if (value != null) result = value;
+        }
+
+        if (result == null) throw new EmptyStackException();
+        return result;
+    }
+
+    /**
+     * Evaluate the expression with the slots of context, as a condition
+     *
+     * @param context evaluation context of the calling thread, with the slots of the binding
+     * @return getBoolean() of the result
+     */
+    boolean evaluateBoolean(EvaluationContext context) {
+
+        int top = run(context) - 1;
+        if (top < 0) return evaluate(context.getSlotValues()).getBoolean();
+
+        switch (context.stackTypes[top]) {
+            case INTEGER:
+                return context.stackLongs[top] != 0;
+            case REAL:
+                return context.stackDoubles[top] != 0.000;
+            default:
+                return context.stackBooleans[top];
+        }
+    }
+
+    /**
+     * Evaluate the expression with the slots of context, as token data
+     *
+     * @param context evaluation context of the calling thread, with the slots of the binding
+     * @return getString() of the result
+     */
+    String evaluateString(EvaluationContext context) {
+
+        int top = run(context) - 1;
+        if (top < 0) return evaluate(context.getSlotValues()).getString();
+
+        switch (context.stackTypes[top]) {
+            case INTEGER:
+                return String.valueOf((int) context.stackLongs[top]);
+            case REAL:
+                return String.valueOf(context.stackDoubles[top]);
+            default:
+                return String.valueOf(context.stackBooleans[top]);
+        }
+    }
+
+    /**
+     * Run the generated code if there is one, else program
+     *
+     * @return size of the stack at the end, 0 if the Node tree must be evaluated
+     */
+    private int run(EvaluationContext context) {
+
+        if (program == null) return 0;
+
+        if (BytecodeCompiler.isEnabled()) {
+            BytecodeCompiler.CompiledCode compiledCode = getCode(context);
+            if (compiledCode != null && compiledCode.evaluate(context)) return 1;
+        }
+
+        return runProgram(context);
+    }
+
+    /**
+     * Return the generated code of program, it is specialized for the types of the slots of context
+     * when it is called for the first time
+     *
+     * @return CompiledCode, null if program cannot be translated
+     */
+    BytecodeCompiler.CompiledCode getCode(EvaluationContext context) {
+
+        if (!isCodeCompiled) {
+            synchronized (this) {
+                if (!isCodeCompiled && program != null) {
+                    code = BytecodeCompiler.compile(program, constTypes, constLongs, constDoubles, constBooleans,
+                            context.slotTypes);
+                }
+                isCodeCompiled = true;
+            }
+        }
+
+        return code;
+    }
+
+    /**
+     * Run program on the primitive value stack of context
+     *
+     * @return size of the stack at the end, 0 if the program cannot decide the result (the Node tree must be used)
+     */
+    private int runProgram(EvaluationContext context) {
+
+        if (program == null) return 0;
+        context.ensureStackDepth(maxDepth);
+
+        Interpreter.ValueType[] types = context.stackTypes;
+        long[] longs = context.stackLongs;
+        double[] doubles = context.stackDoubles;
+        boolean[] booleans = context.stackBooleans;
+        int sp = 0;
+
+        for (int pc = 0; pc < program.length; pc++) {
+            int instruction = program[pc];
+            int index = instruction >>> 4;
+
+            switch (instruction & 3) {
+                case CONSTANT: {
+                    Interpreter.ValueType type = constTypes[index];
+                    types[sp] = type;
+                    longs[sp] = constLongs[index];
+                    doubles[sp] = constDoubles[index];
+                    booleans[sp] = constBooleans[index];
+                    sp++;
+                    break;
+                }
+                case VARIABLE: {
+                    Interpreter.ValueType type = (index < context.slotTypes.length) ? context.slotTypes[index] : null;
+                    if (type == null || type == Interpreter.ValueType.STRING) return 0;
+                    types[sp] = type;
+                    longs[sp] = context.slotLongs[index];
+                    doubles[sp] = context.slotDoubles[index];
+                    booleans[sp] = context.slotBooleans[index];
+                    sp++;
+                    break;
+                }
+                default: {
+                    /* the stack always has the operands: the program is only run in full, as compiled */
+                    Interpreter.OperationType operationType = operationTypes[index];
+                    int base = sp - ((instruction >>> 2) & 3);
+                    sp = operate(operationType, base, types, longs, doubles, booleans);
+                    if (sp < 0) return 0;
+                    if (sp == base && pc < program.length - 1) return 0;  /* if pushed nothing, not at the end */
+                }
+            }
+        }
+
+        return sp;
+    }
+
+    /**
+     * Do one operation on the primitive stack, with the semantics of Interpreter.operate
+     *
+     * @param base position of the first operand
+     * @return stack size after the operation, -1 if it must be decided by Interpreter.operate (errors)
+     */
+    private static int operate(Interpreter.OperationType operationType, int base, Interpreter.ValueType[] types,
+                               long[] longs, double[] doubles, boolean[] booleans) {
+
+        switch (operationType) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case MOD:
+                return arithmetic(operationType, base, types, longs, doubles);
+            case AND:
+            case OR:
+            case XOR:
+            case NOT:
+            case ISTRUE:
+            case ISFALSE:
+                return logic(operationType, base, types, booleans);
+            case EQ:
+            case NEQ:
+            case GT:
+            case GTE:
+            case LT:
+            case LTE:
+                return compare(operationType, base, types, longs, doubles, booleans);
+            case IFELSE:
+            case IF:
+                return choose(operationType, base, types, longs, doubles, booleans);
+            default:
+                return -1;
+        }
+    }
+
+    private static int arithmetic(Interpreter.OperationType operationType, int base, Interpreter.ValueType[] types,
+                                  long[] longs, double[] doubles) {
+
+        Interpreter.ValueType left = types[base];
+        Interpreter.ValueType right = types[base + 1];
+        if (!isNumber(left) || !isNumber(right)) return -1;
+
+        /* the left operand decides the type of the result */
+        if (left == Interpreter.ValueType.INTEGER) {
+            int x = (int) longs[base];
+            int y = (right == Interpreter.ValueType.INTEGER) ? (int) longs[base + 1] : (int) doubles[base + 1];
+            if (y == 0 && (operationType == Interpreter.OperationType.DIV
+                    || operationType == Interpreter.OperationType.MOD)) return -1;
+            longs[base] = intOperate(operationType, x, y);
+        } else {
+            double y = (right == Interpreter.ValueType.INTEGER) ? longs[base + 1] : doubles[base + 1];
+            doubles[base] = realOperate(operationType, doubles[base], y);
+        }
+        return base + 1;
+    }
+
+    private static int logic(Interpreter.OperationType operationType, int base, Interpreter.ValueType[] types,
+                             boolean[] booleans) {
+
+        if (types[base] != Interpreter.ValueType.BOOLEAN) return -1;
+
+        switch (operationType) {
+            case NOT:
+            case ISFALSE:
+                booleans[base] = !booleans[base];
+                return base + 1;
+            case ISTRUE:
+                return base + 1;
+            default:
+                break;
+        }
+
+        if (types[base + 1] != Interpreter.ValueType.BOOLEAN) return -1;
+
+        boolean x = booleans[base];
+        boolean y = booleans[base + 1];
+        if (operationType == Interpreter.OperationType.AND) booleans[base] = x && y;
+        else if (operationType == Interpreter.OperationType.OR) booleans[base] = x || y;
+        else booleans[base] = x ^ y;
+        return base + 1;
+    }
+
+    private static int compare(Interpreter.OperationType operationType, int base, Interpreter.ValueType[] types,
+                               long[] longs, double[] doubles, boolean[] booleans) {
+
+        Interpreter.ValueType left = types[base];
+        Interpreter.ValueType right = types[base + 1];
+        int second = base + 1;
+        int comparison;
+
+        if (left == Interpreter.ValueType.INTEGER && isNumber(right)) {
+            int y = (right == Interpreter.ValueType.INTEGER) ? (int) longs[second] : (int) doubles[second];
+            comparison = Integer.compare((int) longs[base], y);
+        } else if (left == Interpreter.ValueType.REAL && isNumber(right)) {
+            double x = doubles[base];
+            double y = (right == Interpreter.ValueType.INTEGER) ? longs[second] : doubles[second];
+            if (x != x || y != y) return -1;  /* NaN: compare as Interpreter does */
+            comparison = (x < y) ? -1 : ((x > y) ? 1 : 0);
+        } else if (left == Interpreter.ValueType.BOOLEAN && right == Interpreter.ValueType.BOOLEAN) {
+            if (operationType != Interpreter.OperationType.EQ
+                    && operationType != Interpreter.OperationType.NEQ) return -1;
+            comparison = (booleans[base] == booleans[second]) ? 0 : 1;
+        } else {
+            return -1;
+        }
+
+        types[base] = Interpreter.ValueType.BOOLEAN;
+        booleans[base] = isComparisonTrue(operationType, comparison);
+        return second;
+    }
+
+    private static int choose(Interpreter.OperationType operationType, int base, Interpreter.ValueType[] types,
+                              long[] longs, double[] doubles, boolean[] booleans) {
+
+        if (types[base] != Interpreter.ValueType.BOOLEAN) return -1;
+
+        int chosen;
+        if (operationType == Interpreter.OperationType.IFELSE) {
+            chosen = booleans[base] ? base + 1 : base + 2;
+        } else {
+            if (!booleans[base]) return base;  /* if pushes nothing */
+            chosen = base + 1;
+        }
+
+        types[base] = types[chosen];
+        longs[base] = longs[chosen];
+        doubles[base] = doubles[chosen];
+        booleans[base] = booleans[chosen];
+        return base + 1;
+    }
+
+    private static boolean isNumber(Interpreter.ValueType type) {
+        return type == Interpreter.ValueType.INTEGER || type == Interpreter.ValueType.REAL;
+    }
+
+    private static int intOperate(Interpreter.OperationType operationType, int x, int y) {
+        switch (operationType) {
+            case ADD:
+                return x + y;
+            case SUB:
+                return x - y;
+            case MUL:
+                return x * y;
+            case DIV:
+                return x / y;
+            default:
+                return x % y;
+        }
+    }
+
+    private static double realOperate(Interpreter.OperationType operationType, double x, double y) {
+        switch (operationType) {
+            case ADD:
+                return x + y;
+            case SUB:
+                return x - y;
+            case MUL:
+                return x * y;
+            case DIV:
+                return x / y;
+            default:
+                return x % y;
+        }
+    }
+
+    private static boolean isComparisonTrue(Interpreter.OperationType operationType, int comparison) {
+        switch (operationType) {
+            case EQ:
+                return comparison == 0;
+            case NEQ:
+                return comparison != 0;
+            case GT:
+                return comparison > 0;
+            case GTE:
+                return comparison >= 0;
+            case LT:
+                return comparison < 0;
+            default:
+                return comparison <= 0;
+        }
+    }
+
+    private static Interpreter.ValueType inferType(Interpreter.OperationType operationType, Node[] operands) {
+
+        switch (operationType) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case MOD: {
+                /* the left operand decides the type of the result */
+                Interpreter.ValueType type = operands[0].getType();
+                boolean isNumber = (type == Interpreter.ValueType.INTEGER || type == Interpreter.ValueType.REAL);
+                return isNumber ? type : null;
+            }
+            case SUBSTR:
+            case APPEND:
+            case TRIM:
+                return Interpreter.ValueType.STRING;
+            case IF:
+                return operands[1].getType();
+            case IFELSE: {
+                Interpreter.ValueType type = operands[1].getType();
+                return (type == operands[2].getType()) ? type : null;
+            }
+            default:
+                return Interpreter.ValueType.BOOLEAN;
+        }
+    }
+}
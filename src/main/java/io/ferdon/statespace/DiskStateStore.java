@@ -0,0 +1,190 @@
+/*
+ * File name: DiskStateStore.java
+ * File Description:
+ *      Visited set that keeps the states on disk, for explorations whose states do not fit in the heap
+ *      Encoded states (CompactState) are appended to a memory-mapped records file, state ID ~> record offset is kept
+ *      in a mapped offsets file, and duplicates are found with an open addressing hash index (fingerprint, state ID)
+ *      in a mapped index file. The index is keyed by State.getFingerprint(), fingerprints are only used to find the
+ *      candidates: the record of a candidate is compared with the state by CompactState.matches(), so there is no
+ *      loss, and a state is only encoded when it is new. States are decoded lazily by get(stateID), e.g. for export.
+ *      Only the TokenDictionary is kept on the heap, the size of the heap does not depend on the number of states
+ *      but grows with the number of distinct tokens (see TokenDictionary): state IDs are given in BFS order, so
+ *      Petrinet.generateStateSpaceOnDisk() reads its queue back from this store, and streams the edges to a listener.
+ *      Files are created in the given directory and deleted by close().
+ *      DiskStateStore can be shared by several threads.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+class DiskStateStore implements VisitedSet, Closeable {
+
+    /* records and offsets are mapped in chunks of 64 MB, index in chunks of up to 64 MB */
+    private static final int CHUNK_BITS = 26;
+    private static final int SLOT_SIZE = 16;
+
+    /*
+     * records: [length (int), encoded state] of each state, a record does not cross the boundary of a chunk
+     * offsets: offset (long) of the record of each state ID
+     * index: slots of [fingerprint (long), state ID (long)], fingerprint 0 for empty slot (0 is stored as 1)
+     * */
+    private Path directory;
+    private Map<Integer, Place> places;
+    private TokenDictionary tokenDictionary;
+    private MappedStorage records;
+    private MappedStorage offsets;
+    private MappedStorage index;
+    private int indexGeneration;
+    private long indexCapacity;
+    private long recordsEnd;
+    private int numStates;
+
+    /**
+     * @param places    placeID ~> place, for decoding
+     * @param directory directory of the files, created if it does not exist
+     */
+    DiskStateStore(Map<Integer, Place> places, Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.places = places;
+        this.tokenDictionary = new TokenDictionary();
+        this.records = new MappedStorage(directory.resolve("states.dat"), CHUNK_BITS);
+        this.offsets = new MappedStorage(directory.resolve("offsets.dat"), CHUNK_BITS);
+        this.indexCapacity = 1 << 16;
+        this.index = createIndex(indexCapacity);
+    }
+
+    private MappedStorage createIndex(long capacity) throws IOException {
+        int chunkBits = Math.min(CHUNK_BITS, Long.numberOfTrailingZeros(capacity * SLOT_SIZE));
+        return new MappedStorage(directory.resolve("index-" + (indexGeneration++) + ".dat"), chunkBits);
+    }
+
+    @Override
+    public int putIfAbsent(State state) {
+
+        long fingerprint = state.getFingerprint();
+        if (fingerprint == 0) fingerprint = 1;
+
+        synchronized (this) {
+            long mask = indexCapacity - 1;
+            long slot = fingerprint & mask;
+            while (true) {
+                long slotFingerprint = index.getLong(slot * SLOT_SIZE);
+                if (slotFingerprint == 0) break;
+
+                if (slotFingerprint == fingerprint) {
+                    int stateID = (int) index.getLong(slot * SLOT_SIZE + 8);
+                    if (new CompactState(readRecord(stateID)).matches(state, tokenDictionary)) return stateID;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int stateID = numStates++;
+            offsets.putLong(8L * stateID, appendRecord(CompactState.encode(state, tokenDictionary).getData()));
+            index.putLong(slot * SLOT_SIZE, fingerprint);
+            index.putLong(slot * SLOT_SIZE + 8, stateID);
+            state.setID(stateID);
+
+            if (2L * numStates > indexCapacity) rehash();
+            return -1;
+        }
+    }
+
+    private long appendRecord(byte[] data) {
+
+        long chunkSize = records.getChunkSize();
+        if (data.length + 4 > chunkSize) throw new IllegalArgumentException("Encoded state is larger than a chunk");
+
+        /* records do not cross chunks */
+        long chunkEnd = (recordsEnd | (chunkSize - 1)) + 1;
+        if (recordsEnd + 4 + data.length > chunkEnd) recordsEnd = chunkEnd;
+
+        long offset = recordsEnd;
+        records.putInt(offset, data.length);
+        records.put(offset + 4, data);
+        recordsEnd = offset + 4 + data.length;
+        return offset;
+    }
+
+    private byte[] readRecord(int stateID) {
+        long offset = offsets.getLong(8L * stateID);
+        byte[] data = new byte[records.getInt(offset)];
+        records.get(offset + 4, data);
+        return data;
+    }
+
+    /* double the index in a new file, fingerprints are moved without reading the records */
+    private void rehash() {
+        try {
+            long newCapacity = indexCapacity * 2;
+            MappedStorage newIndex = createIndex(newCapacity);
+
+            for (long slot = 0; slot < indexCapacity; slot++) {
+                long fingerprint = index.getLong(slot * SLOT_SIZE);
+                if (fingerprint == 0) continue;
+
+                long newSlot = fingerprint & (newCapacity - 1);
+                while (newIndex.getLong(newSlot * SLOT_SIZE) != 0) newSlot = (newSlot + 1) & (newCapacity - 1);
+                newIndex.putLong(newSlot * SLOT_SIZE, fingerprint);
+                newIndex.putLong(newSlot * SLOT_SIZE + 8, index.getLong(slot * SLOT_SIZE + 8));
+            }
+
+            index.close();
+            index = newIndex;
+            indexCapacity = newCapacity;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read and decode a stored state
+     *
+     * @param stateID ID of stored state
+     * @return new State object with the markings of the stored state
+     */
+    @Override
+    public State get(int stateID) {
+        byte[] data;
+        synchronized (this) {
+            if (stateID < 0 || stateID >= numStates) throw new IndexOutOfBoundsException("State ID: " + stateID);
+            data = readRecord(stateID);
+        }
+
+        CompactState compactState = new CompactState(data);
+        compactState.setID(stateID);
+        return compactState.decode(places, tokenDictionary);
+    }
+
+    @Override
+    public synchronized int size() {
+        return numStates;
+    }
+
+    /* bytes written to the files */
+    synchronized long getDiskSize() {
+        return recordsEnd + 8L * numStates + SLOT_SIZE * indexCapacity;
+    }
+
+    /* files are deleted, the store cannot be used after */
+    @Override
+    public synchronized void close() throws IOException {
+        records.close();
+        offsets.close();
+        index.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DiskStateStore: states = %d, disk = %d MB, directory = %s",
+                numStates, getDiskSize() >>> 20, directory);
+    }
+}
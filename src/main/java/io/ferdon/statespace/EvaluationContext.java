@@ -0,0 +1,190 @@
+/*
+ * File name: EvaluationContext.java
+ * File Description:
+ *      Reusable memory for evaluating compiled expressions: values of the variable slots and the value stack
+ *      Integer, real and boolean values are kept in primitive arrays (integers in longs, with int semantics),
+ *      so binding token values and checking guards on these types does not allocate.
+ *      Strings (and values that cannot be parsed) are kept as Interpreter.Value.
+ *      A context is used by one thread at a time: each exploring thread (or each caller) owns one and passes it
+ *      explicitly, compiled expressions and transitions themselves are immutable after loading.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.Arrays;
+import java.util.Map;
+
+final class EvaluationContext {
+
+    /*
+     * slotTypes: type of the value of each slot (STRING for object values), null if the slot has no value
+     * slotLongs, slotDoubles, slotBooleans: values of INTEGER, REAL and BOOLEAN slots
+     * slotValues: values of STRING slots, and boxed primitive values when a Node tree is evaluated
+     * numSlots: number of slots of the transition being evaluated
+     * */
+    Interpreter.ValueType[] slotTypes;
+    long[] slotLongs;
+    double[] slotDoubles;
+    boolean[] slotBooleans;
+    private Interpreter.Value[] slotValues;
+    private int numSlots;
+
+    /* value stack of the postfix programs, same layout as slots */
+    Interpreter.ValueType[] stackTypes;
+    long[] stackLongs;
+    double[] stackDoubles;
+    boolean[] stackBooleans;
+
+    EvaluationContext() {
+        slotTypes = new Interpreter.ValueType[0];
+        slotLongs = new long[0];
+        slotDoubles = new double[0];
+        slotBooleans = new boolean[0];
+        slotValues = new Interpreter.Value[0];
+
+        stackTypes = new Interpreter.ValueType[0];
+        stackLongs = new long[0];
+        stackDoubles = new double[0];
+        stackBooleans = new boolean[0];
+    }
+
+    /**
+     * Clear all slots before evaluating expressions of another binding
+     *
+     * @param numSlots number of slots of the transition
+     */
+    void reset(int numSlots) {
+
+        if (numSlots > slotTypes.length) {
+            slotTypes = new Interpreter.ValueType[numSlots];
+            slotLongs = new long[numSlots];
+            slotDoubles = new double[numSlots];
+            slotBooleans = new boolean[numSlots];
+            slotValues = new Interpreter.Value[numSlots];
+        } else {
+            Arrays.fill(slotTypes, 0, numSlots, null);
+            Arrays.fill(slotValues, 0, numSlots, null);
+        }
+
+        this.numSlots = numSlots;
+    }
+
+    void ensureStackDepth(int depth) {
+        if (depth <= stackTypes.length) return;
+
+        stackTypes = new Interpreter.ValueType[depth];
+        stackLongs = new long[depth];
+        stackDoubles = new double[depth];
+        stackBooleans = new boolean[depth];
+    }
+
+    /**
+     * Set the value of a slot from the String value of a variable
+     *
+     * @param slot       slot of the variable
+     * @param value      String value (token data)
+     * @param varMapping map: variable name ~> value, for values that are names of other variables
+     */
+    void setSlot(int slot, String value, Map<String, String> varMapping) {
+
+        Interpreter.ValueType valueType = Interpreter.getValueType(value);
+        slotValues[slot] = null;
+        slotTypes[slot] = valueType;
+
+        try {
+            if (valueType == Interpreter.ValueType.INTEGER) {
+                slotLongs[slot] = Integer.parseInt(value);
+                return;
+            }
+            if (valueType == Interpreter.ValueType.REAL) {
+                slotDoubles[slot] = Double.parseDouble(value);
+                return;
+            }
+            if (valueType == Interpreter.ValueType.BOOLEAN) {
+                slotBooleans[slot] = Boolean.parseBoolean(value);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            slotTypes[slot] = null;
+            return;
+        }
+
+        /* strings, variables whose value is another variable, wrong grammar */
+        try {
+            slotValues[slot] = Interpreter.parseValue(value, varMapping);
+            slotTypes[slot] = Interpreter.ValueType.STRING;
+        } catch (IllegalArgumentException e) {
+            slotTypes[slot] = null;
+        }
+    }
+
+    /**
+     * Set the value of a slot from a field of a token, primitive fields are copied without parsing
+     *
+     * @param slot       slot of the variable
+     * @param token      Token
+     * @param field      index of the field in token
+     * @param varMapping map: variable name ~> value, for values that are names of other variables
+     */
+    void setSlot(int slot, Token token, int field, Map<String, String> varMapping) {
+
+        Interpreter.ValueType valueType = token.getType(field);
+        switch (valueType) {
+            case INTEGER:
+                slotLongs[slot] = token.getInteger(field);
+                break;
+            case REAL:
+                slotDoubles[slot] = token.getReal(field);
+                break;
+            case BOOLEAN:
+                slotBooleans[slot] = token.getBoolean(field);
+                break;
+            default:
+                setSlot(slot, token.get(field), varMapping);
+                return;
+        }
+
+        slotValues[slot] = null;
+        slotTypes[slot] = valueType;
+    }
+
+    /* value of a STRING slot, null if the slot holds no object value */
+    Interpreter.Value getSlotValue(int slot) {
+        return slotValues[slot];
+    }
+
+    void clearSlot(int slot) {
+        slotTypes[slot] = null;
+        slotValues[slot] = null;
+    }
+
+    /**
+     * Return values of slots as Interpreter.Value, for evaluating a Node tree.
+     * Primitive values are boxed here, only expressions that cannot run on the primitive stack need it.
+     *
+     * @return values indexed by slot, null if the slot has no value
+     */
+    Interpreter.Value[] getSlotValues() {
+
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (slotTypes[slot] == null || slotValues[slot] != null) continue;
+
+            switch (slotTypes[slot]) {
+                case INTEGER:
+                    slotValues[slot] = new Interpreter.IntegerExpression((int) slotLongs[slot]);
+                    break;
+                case REAL:
+                    slotValues[slot] = new Interpreter.RealExpression(slotDoubles[slot]);
+                    break;
+                case BOOLEAN:
+                    slotValues[slot] = new Interpreter.BooleanExpression(slotBooleans[slot]);
+                    break;
+            }
+        }
+
+        return slotValues;
+    }
+}
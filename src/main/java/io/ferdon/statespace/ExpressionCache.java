@@ -0,0 +1,200 @@
+/*
+ * File name: ExpressionCache.java
+ * File Description:
+ *      Bounded cache of the results of the expression of an output arc, keyed by the values of the variables used
+ *      by the expression (and only these), so bindings that differ in other variables share the produced token.
+ *      The key is read from the slots of the EvaluationContext (primitive values and Strings), so a lookup does not
+ *      allocate: the hash of the slot values selects one entry of a direct-mapped table, which is compared with the
+ *      slots. A new result replaces the entry of its position (counted as an eviction when the key differs).
+ *      Entries are immutable and the table is an AtomicReferenceArray, so lookups take no lock.
+ *      Slots holding other values (variables whose value is the name of another variable, resolved to a number)
+ *      are not cached. Hits, misses and evictions are counted for tuning the capacity.
+ *      ExpressionCache can be shared by several threads.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+class ExpressionCache {
+
+    /* default number of entries of each arc, can be changed with -Dstatespace.expressionCacheSize=... */
+    static final int DEFAULT_CAPACITY = Integer.getInteger("statespace.expressionCacheSize", 1024);
+
+    /* key of the bindings whose result is not cached */
+    static final long NO_KEY = 0;
+
+    /* values of the used slots of one binding and the token produced with them */
+    private static final class Entry {
+        final long key;
+        final Interpreter.ValueType[] types;
+        final long[] values;
+        final String[] strings;
+        final Token token;
+
+        Entry(long key, int[] slots, EvaluationContext context, Token token) {
+            this.key = key;
+            this.types = new Interpreter.ValueType[slots.length];
+            this.values = new long[slots.length];
+            this.strings = new String[slots.length];
+            this.token = token;
+
+            for (int i = 0; i < slots.length; i++) {
+                types[i] = context.slotTypes[slots[i]];
+                if (types[i] == Interpreter.ValueType.STRING) strings[i] = getString(context, slots[i]);
+                else values[i] = getPrimitive(context, slots[i]);
+            }
+        }
+
+        boolean matches(long key, int[] slots, EvaluationContext context) {
+            if (this.key != key) return false;
+
+            for (int i = 0; i < slots.length; i++) {
+                if (types[i] != context.slotTypes[slots[i]]) return false;
+                if (types[i] == Interpreter.ValueType.STRING) {
+                    if (!strings[i].equals(getString(context, slots[i]))) return false;
+                } else if (values[i] != getPrimitive(context, slots[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /*
+     * slots: slots of the variables used by the expression
+     * entries: direct-mapped table, the entry of a key is at (key & (length - 1)), null if empty
+     * hits, misses, evictions: statistics since the cache was created
+     * */
+    private int[] slots;
+    private int capacity;
+    private AtomicReferenceArray<Entry> entries;
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder evictions;
+
+    ExpressionCache(int[] slots) {
+        this(slots, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param slots    slots of the variables used by the expression
+     * @param capacity number of entries, rounded up to a power of two, 0 for not caching
+     */
+    ExpressionCache(int[] slots, int capacity) {
+        this.slots = slots;
+        this.capacity = (capacity <= 0) ? 0 : Integer.highestOneBit(capacity - 1) << 1;
+        this.entries = new AtomicReferenceArray<>(this.capacity);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    private static long getPrimitive(EvaluationContext context, int slot) {
+        switch (context.slotTypes[slot]) {
+            case INTEGER:
+                return context.slotLongs[slot];
+            case REAL:
+                return Double.doubleToLongBits(context.slotDoubles[slot]);
+            default:
+                return context.slotBooleans[slot] ? 1 : 0;
+        }
+    }
+
+    /* String of a STRING slot, null if the slot holds another value */
+    private static String getString(EvaluationContext context, int slot) {
+        Interpreter.Value value = context.getSlotValue(slot);
+        return (value instanceof Interpreter.StringExpression) ? value.getString() : null;
+    }
+
+    /**
+     * Return the key of the binding whose values are in the slots of context: hash of the values of the used slots
+     *
+     * @param context evaluation context, slots are set with the binding
+     * @return key, NO_KEY if the result of the binding must not be cached
+     */
+    long getKey(EvaluationContext context) {
+
+        if (capacity == 0) return NO_KEY;
+
+        long h = 0xcbf29ce484222325L;
+        for (int slot : slots) {
+            Interpreter.ValueType type = context.slotTypes[slot];
+            if (type == null) return NO_KEY;
+
+            long value;
+            if (type == Interpreter.ValueType.STRING) {
+                String s = getString(context, slot);
+                if (s == null) return NO_KEY;
+                value = s.hashCode();
+            } else {
+                value = getPrimitive(context, slot);
+            }
+
+            h = (h ^ type.ordinal()) * 0x100000001b3L;
+            h = (h ^ value) * 0x100000001b3L;
+        }
+
+        h = Utils.mixHash64(h);
+        return (h == NO_KEY) ? 1 : h;
+    }
+
+    /**
+     * @param context evaluation context, slots are set with the binding
+     * @param key     result of getKey(context)
+     * @return cached token, null if it is not cached
+     */
+    Token get(EvaluationContext context, long key) {
+        Entry entry = entries.get((int) key & (capacity - 1));
+        if (entry != null && entry.matches(key, slots, context)) {
+            hits.increment();
+            return entry.token;
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    void put(EvaluationContext context, long key, Token token) {
+        Entry oldEntry = entries.getAndSet((int) key & (capacity - 1), new Entry(key, slots, context, token));
+        if (oldEntry != null && !oldEntry.matches(key, slots, context)) evictions.increment();
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /* number of entries, the table is scanned */
+    int size() {
+        int size = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (entries.get(i) != null) size++;
+        }
+        return size;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        long numHits = getHitCount();
+        long lookups = numHits + getMissCount();
+        double hitRate = (lookups == 0) ? 0 : (double) numHits / lookups;
+        return String.format("ExpressionCache: size = %d/%d, hits = %d, misses = %d, evictions = %d, hit rate = %.2f%%",
+                size(), capacity, numHits, getMissCount(), getEvictionCount(), 100 * hitRate);
+    }
+}
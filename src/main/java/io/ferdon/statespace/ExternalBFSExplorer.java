@@ -0,0 +1,306 @@
+/*
+ * File name: ExternalBFSExplorer.java
+ * File Description:
+ *      Breadth-first exploration in external memory with delayed duplicate detection, for state spaces bounded
+ *      only by the size of the disk. No set of visited states and no queue are kept in memory:
+ *          - the states of the current BFS layer are read sequentially from a layer file,
+ *          - their successors are collected in a bounded buffer, sorted by encoded markings (CompactState bytes)
+ *            and written to sorted run files,
+ *          - at the end of the layer, the runs are merged with the sorted file of all visited states: successors
+ *            found in the visited file are duplicates, the others form the next layer and are merged into the
+ *            visited file.
+ *      Duplicates are only detected once per layer (delayed), every pass over the files is sequential.
+ *      State IDs are longs, given layer by layer, in the order of the encoded markings inside a layer (the start
+ *      state is 0). States and edges are given to a StateSpaceListener, keyed by state ID. Successors are sorted by
+ *      (encoded markings, parent state ID), so the merge gives one edge per (parent, child) pair, with the first
+ *      transition in the order of the runs, as the edges of StateSpace.
+ *      Only the run buffer, the TokenDictionary and the firing cache are kept in memory. The run buffer and the
+ *      firing cache are bounded, the TokenDictionary grows with the number of distinct tokens (see TokenDictionary).
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import com.google.common.primitives.UnsignedBytes;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+class ExternalBFSExplorer {
+
+    /* default number of successors sorted in memory for one run, can be changed with -Dstatespace.runSize=... */
+    static final int DEFAULT_RUN_SIZE = Integer.getInteger("statespace.runSize", 1 << 20);
+
+    private static final Comparator<byte[]> BYTES_ORDER = UnsignedBytes.lexicographicalComparator();
+
+    private Petrinet net;
+    private Map<Integer, Place> places;
+    private Path directory;
+    private StateSpaceListener listener;
+    private int runSize;
+
+    private List<Transition> transitions;
+    private FiringCache firingCache;
+    private TokenDictionary tokenDictionary;
+    private EvaluationContext context;
+    private int numFiles;
+    private long numStates;
+    private int numLayers;
+
+    /* record of a file: encoded state, state ID (or parent state ID) and transition ID of run records */
+    private static class Record {
+        byte[] data;
+        long value0;
+        int value1;
+
+        Record(byte[] data, long value0, int value1) {
+            this.data = data;
+            this.value0 = value0;
+            this.value1 = value1;
+        }
+    }
+
+    /* sequential reader of the records of a file, current() is null at the end */
+    private static class RecordReader implements Closeable {
+        private DataInputStream input;
+        private boolean hasParent;
+        private Record current;
+
+        RecordReader(Path file, boolean hasParent) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            this.hasParent = hasParent;
+            advance();
+        }
+
+        Record current() {
+            return current;
+        }
+
+        void advance() throws IOException {
+            int length;
+            try {
+                length = input.readInt();
+            } catch (EOFException e) {
+                current = null;
+                return;
+            }
+
+            byte[] data = new byte[length];
+            input.readFully(data);
+            long value0 = input.readLong();
+            int value1 = hasParent ? input.readInt() : 0;
+            current = new Record(data, value0, value1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private static DataOutputStream createWriter(Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+    }
+
+    private static void write(DataOutputStream output, byte[] data, long value) throws IOException {
+        output.writeInt(data.length);
+        output.write(data);
+        output.writeLong(value);
+    }
+
+    /* order of run records: encoded markings, then parent state ID */
+    private static int compare(Record r1, Record r2) {
+        int order = BYTES_ORDER.compare(r1.data, r2.data);
+        return (order != 0) ? order : Long.compare(r1.value0, r2.value0);
+    }
+
+    /**
+     * @param net       Petrinet
+     * @param places    placeID ~> place, for decoding the states
+     * @param directory directory of the layer and run files, created if it does not exist
+     * @param listener  receives each state and each edge
+     * @param runSize   number of successors sorted in memory for one run file
+     */
+    ExternalBFSExplorer(Petrinet net, Map<Integer, Place> places, Path directory, StateSpaceListener listener,
+                        int runSize) throws IOException {
+        this.net = net;
+        this.places = places;
+        this.directory = Files.createDirectories(directory);
+        this.listener = listener;
+        this.runSize = runSize;
+        this.transitions = new ArrayList<>(net.getTransitions());
+        this.firingCache = new FiringCache();
+        this.tokenDictionary = new TokenDictionary();
+        this.context = new EvaluationContext();
+    }
+
+    private Path newFile(String prefix) {
+        return directory.resolve(prefix + "-" + (numFiles++) + ".dat");
+    }
+
+    /**
+     * Explore all states reachable from startState, layer by layer
+     *
+     * @param startState initial state
+     */
+    void explore(State startState) throws IOException {
+
+        byte[] startData = CompactState.encode(startState, tokenDictionary).getData();
+        long startID = numStates++;
+        startState.setID((int) startID);
+        listener.stateFound(startID, startState);
+
+        Path layerFile = newFile("layer");
+        Path visitedFile = newFile("visited");
+        try (DataOutputStream layer = createWriter(layerFile); DataOutputStream visited = createWriter(visitedFile)) {
+            write(layer, startData, startID);
+            write(visited, startData, startID);
+        }
+
+        boolean isEmpty = false;
+        while (!isEmpty) {
+            numLayers++;
+            List<Path> runs = expandLayer(layerFile);
+            Files.delete(layerFile);
+
+            Path newLayerFile = newFile("layer");
+            Path newVisitedFile = newFile("visited");
+            isEmpty = mergeRuns(runs, visitedFile, newLayerFile, newVisitedFile);
+
+            for (Path run : runs) Files.delete(run);
+            Files.delete(visitedFile);
+            layerFile = newLayerFile;
+            visitedFile = newVisitedFile;
+        }
+
+        Files.delete(layerFile);
+        Files.delete(visitedFile);
+    }
+
+    /* write the successors of the states of layerFile to sorted run files */
+    private List<Path> expandLayer(Path layerFile) throws IOException {
+
+        List<Path> runs = new ArrayList<>();
+        List<Record> buffer = new ArrayList<>();
+
+        try (RecordReader layer = new RecordReader(layerFile, false)) {
+            for (Record parent = layer.current(); parent != null; layer.advance(), parent = layer.current()) {
+
+                State parentState = new CompactState(parent.data).decode(places, tokenDictionary);
+
+                for (Transition transition : transitions) {
+                    for (Firing firing : firingCache.getFirings(transition, parentState, context)) {
+                        State childState = net.successor(parentState, transition, firing);
+                        byte[] childData = CompactState.encode(childState, tokenDictionary).getData();
+                        buffer.add(new Record(childData, parent.value0, transition.getID()));
+
+                        if (buffer.size() >= runSize) {
+                            runs.add(writeRun(buffer));
+                            buffer.clear();
+                        }
+                    }
+                }
+            }
+        }
+
+        if (!buffer.isEmpty()) runs.add(writeRun(buffer));
+        return runs;
+    }
+
+    private Path writeRun(List<Record> buffer) throws IOException {
+        buffer.sort(ExternalBFSExplorer::compare);
+
+        Path run = newFile("run");
+        try (DataOutputStream output = createWriter(run)) {
+            for (Record record : buffer) {
+                write(output, record.data, record.value0);
+                output.writeInt(record.value1);
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Merge the sorted runs with the visited states: new states are written to the next layer, all states to the
+     * new visited file, edges and new states are given to listener. Successors of the same parent with the same
+     * markings are adjacent in the merge, only the first one gives an edge.
+     *
+     * @return true if there is no new state
+     */
+    private boolean mergeRuns(List<Path> runs, Path visitedFile, Path newLayerFile, Path newVisitedFile)
+            throws IOException {
+
+        PriorityQueue<RecordReader> runReaders = new PriorityQueue<>((r1, r2) -> compare(r1.current(), r2.current()));
+        List<RecordReader> readers = new ArrayList<>();
+        boolean isEmpty = true;
+
+        try (RecordReader visited = new RecordReader(visitedFile, false);
+             DataOutputStream newLayer = createWriter(newLayerFile);
+             DataOutputStream newVisited = createWriter(newVisitedFile)) {
+
+            for (Path run : runs) {
+                RecordReader reader = new RecordReader(run, true);
+                readers.add(reader);
+                if (reader.current() != null) runReaders.add(reader);
+            }
+
+            while (!runReaders.isEmpty()) {
+                byte[] childData = runReaders.peek().current().data;
+
+                /* visited states before the child are copied */
+                while (visited.current() != null && BYTES_ORDER.compare(visited.current().data, childData) < 0) {
+                    write(newVisited, visited.current().data, visited.current().value0);
+                    visited.advance();
+                }
+
+                long childID;
+                if (visited.current() != null && Arrays.equals(visited.current().data, childData)) {
+                    childID = visited.current().value0;
+                } else {
+                    childID = numStates++;
+                    write(newLayer, childData, childID);
+                    write(newVisited, childData, childID);
+                    isEmpty = false;
+
+                    /* the ID of the decoded state is not set, state IDs may exceed int */
+                    listener.stateFound(childID, new CompactState(childData).decode(places, tokenDictionary));
+                }
+
+                /* all successors with the same markings, ordered by parent */
+                long lastParentID = -1;
+                while (!runReaders.isEmpty() && Arrays.equals(runReaders.peek().current().data, childData)) {
+                    RecordReader reader = runReaders.poll();
+                    long parentID = reader.current().value0;
+                    if (parentID != lastParentID) {
+                        listener.edgeFound(parentID, childID, net.getTransition(reader.current().value1));
+                        lastParentID = parentID;
+                    }
+
+                    reader.advance();
+                    if (reader.current() != null) runReaders.add(reader);
+                }
+            }
+
+            while (visited.current() != null) {
+                write(newVisited, visited.current().data, visited.current().value0);
+                visited.advance();
+            }
+        } finally {
+            for (RecordReader reader : readers) reader.close();
+        }
+
+        return isEmpty;
+    }
+
+    long getNumStates() {
+        return numStates;
+    }
+
+    int getNumLayers() {
+        return numLayers;
+    }
+}
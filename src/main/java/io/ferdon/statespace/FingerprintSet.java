@@ -0,0 +1,113 @@
+/*
+ * File name: FingerprintSet.java
+ * File Description:
+ *      Visited set with hash compaction: only the 64-bit fingerprint of each state (State.getFingerprint(), updated
+ *      incrementally by the firings, so states are not encoded) is kept, in an open addressing table of longs with
+ *      the state IDs in a parallel int array, so a state costs 12 bytes per slot (16 to 24 bytes with the free
+ *      slots) instead of its encoded markings.
+ *      Two different states with the same fingerprint are taken as the same state, the second one is not explored.
+ *      The probability of such a collision among n states is about n^2 / 2^65, it is reported by
+ *      getCollisionProbability(). States cannot be decoded: get() is not supported.
+ *      FingerprintSet can be shared by several threads.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+class FingerprintSet implements VisitedSet {
+
+    /*
+     * fingerprints: open addressing table, 0 for empty slot (fingerprint 0 is stored as 1)
+     * stateIDs: ID of the state of each slot of fingerprints
+     * numStates: number of fingerprints in the table, the next state ID
+     * */
+    private long[] fingerprints;
+    private int[] stateIDs;
+    private int numStates;
+
+    FingerprintSet() {
+        this(1024);
+    }
+
+    /**
+     * @param expectedStates expected number of states, the table grows when it is 3/4 full
+     */
+    FingerprintSet(int expectedStates) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedStates + expectedStates / 3) - 1) << 1;
+        this.fingerprints = new long[capacity];
+        this.stateIDs = new int[capacity];
+    }
+
+    @Override
+    public int putIfAbsent(State state) {
+
+        long fingerprint = state.getFingerprint();
+        if (fingerprint == 0) fingerprint = 1;
+
+        synchronized (this) {
+            int mask = fingerprints.length - 1;
+            int slot = (int) fingerprint & mask;
+            while (fingerprints[slot] != 0) {
+                if (fingerprints[slot] == fingerprint) return stateIDs[slot];
+                slot = (slot + 1) & mask;
+            }
+
+            fingerprints[slot] = fingerprint;
+            stateIDs[slot] = numStates;
+            state.setID(numStates++);
+
+            if (4L * numStates > 3L * fingerprints.length) rehash();
+            return -1;
+        }
+    }
+
+    private void rehash() {
+        long[] oldFingerprints = fingerprints;
+        int[] oldStateIDs = stateIDs;
+        fingerprints = new long[oldFingerprints.length * 2];
+        stateIDs = new int[oldStateIDs.length * 2];
+
+        int mask = fingerprints.length - 1;
+        for (int i = 0; i < oldFingerprints.length; i++) {
+            if (oldFingerprints[i] == 0) continue;
+
+            int slot = (int) oldFingerprints[i] & mask;
+            while (fingerprints[slot] != 0) slot = (slot + 1) & mask;
+            fingerprints[slot] = oldFingerprints[i];
+            stateIDs[slot] = oldStateIDs[i];
+        }
+    }
+
+    @Override
+    public State get(int stateID) {
+        throw new UnsupportedOperationException("States are not kept with hash compaction");
+    }
+
+    @Override
+    public synchronized int size() {
+        return numStates;
+    }
+
+    /**
+     * Probability that two of the visited states have the same fingerprint (birthday bound): n(n-1) / 2^65
+     *
+     * @return probability that a state has been missed
+     */
+    synchronized double getCollisionProbability() {
+        double n = numStates;
+        return Math.min(1, n * (n - 1) / Math.pow(2, 65));
+    }
+
+    /* bytes used by the table */
+    synchronized long getMemorySize() {
+        return 12L * fingerprints.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("FingerprintSet: states = %d, table = %d slots (%d KB), collision probability = %.3e",
+                numStates, fingerprints.length, getMemorySize() >>> 10, getCollisionProbability());
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * File name: Firing.java
+ * File Description:
+ *      Represent the effect of firing a transition with a binding: the consumed token of each input place (the token
+ *      of the binding, as many copies as the weight of the arc) and the produced token of each output place.
+ *      Tokens are kept in arrays indexed like the input / output places of the transition, not in a Binding map.
+ *      Produced tokens only depend on the binding, so a Firing can be applied to every state that has the same
+ *      markings on the input places of the transition, without evaluating the arc expressions again.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+class Firing {
+
+    /*
+     * consumedTokens: consumed token of each input place (in the order of the input places of the transition)
+     * producedTokens: produced token of each output place (in the order of the output places of the transition),
+     *                 null if the arc expression gives no token
+     * */
+    private Token[] consumedTokens;
+    private Token[] producedTokens;
+
+    Firing(Token[] consumedTokens, Token[] producedTokens) {
+        this.consumedTokens = consumedTokens;
+        this.producedTokens = producedTokens;
+    }
+
+    Token getConsumedToken(int inPlaceIndex) {
+        return consumedTokens[inPlaceIndex];
+    }
+
+    Token getProducedToken(int outPlaceIndex) {
+        return producedTokens[outPlaceIndex];
+    }
+}
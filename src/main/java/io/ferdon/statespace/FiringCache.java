@@ -0,0 +1,92 @@
+/*
+ * File name: FiringCache.java
+ * File Description:
+ *      Bounded cache of the firings of transitions, keyed by the transition and the markings of its input places
+ *      Fireable bindings, guard results and produced tokens only depend on these markings, so states that share
+ *      the tokens of the input places of a transition share its firings. Entries are kept in a Guava Cache bounded by
+ *      size: it is split in segments with their own lock and reads do not lock, so the workers of ParallelExplorer
+ *      do not wait on each other. Eviction is least recently used inside a segment. Hits, misses and evictions are
+ *      counted by the cache (atomic counters) for reporting the savings.
+ *      FiringCache can be shared by several threads, firings are computed outside of the cache.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.javatuples.Pair;
+
+import java.util.List;
+
+class FiringCache {
+
+    /* default number of entries, can be changed with -Dstatespace.firingCacheSize=... */
+    static final int DEFAULT_CAPACITY = Integer.getInteger("statespace.firingCacheSize", 10000);
+
+    /* entries: [transition, markings of input places] ~> firings, with statistics since the cache was created */
+    private int capacity;
+    private Cache<Pair<Transition, List<Marking>>, List<Firing>> entries;
+
+    FiringCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    FiringCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(0, capacity))
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Return the firings of transition in state, computed if they are not cached
+     *
+     * @param transition Transition
+     * @param state      State
+     * @param context    evaluation context of the calling thread, for computing the firings
+     * @return list of Firing, must not be modified
+     */
+    List<Firing> getFirings(Transition transition, State state, EvaluationContext context) {
+
+        if (capacity <= 0) return transition.getFirings(state, context);
+
+        Pair<Transition, List<Marking>> key = new Pair<>(transition, transition.getPlaceMarkings(state));
+        List<Firing> firings = entries.getIfPresent(key);
+        if (firings != null) return firings;
+
+        /* two threads can compute the same firings, the second put() replaces an equal list */
+        firings = transition.getFirings(state, context);
+        entries.put(key, firings);
+        return firings;
+    }
+
+    long getHitCount() {
+        return entries.stats().hitCount();
+    }
+
+    long getMissCount() {
+        return entries.stats().missCount();
+    }
+
+    long getEvictionCount() {
+        return entries.stats().evictionCount();
+    }
+
+    long size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = entries.stats();
+        return String.format("FiringCache: size = %d/%d, hits = %d, misses = %d, evictions = %d, hit rate = %.2f%%",
+                entries.size(), capacity, stats.hitCount(), stats.missCount(), stats.evictionCount(),
+                100 * stats.hitRate());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * File name: FiringIterator.java
+ * File Description:
+ *      Cursor over the firings of a transition in a state, for callers that use each firing once and may stop early
+ *      advance() moves to the next fireable binding (BindingIterator) and fills the consumed and produced tokens of
+ *      one Firing whose arrays are reused for all bindings. Produced tokens are computed from the slots of the
+ *      evaluation context (and the expression caches), no Binding and no map of variables is built.
+ *      getFiring() returns the reused Firing, copyFiring() a Firing that can be kept (e.g. by FiringCache).
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.List;
+
+class FiringIterator {
+
+    /*
+     * bindings: fireable bindings, the slots of context hold the values of the current one
+     * consumedTokens, producedTokens: tokens of the current firing, arrays of firing
+     * */
+    private Transition transition;
+    private BindingIterator bindings;
+    private EvaluationContext context;
+    private Token[] consumedTokens;
+    private Token[] producedTokens;
+    private Firing firing;
+
+    /**
+     * @param transition Transition
+     * @param markings   markings of the input places of transition, in the order of its input places
+     * @param context    evaluation context of the calling thread
+     */
+    FiringIterator(Transition transition, List<Marking> markings, EvaluationContext context) {
+        this.transition = transition;
+        this.bindings = new BindingIterator(transition, markings, context);
+        this.context = context;
+        this.consumedTokens = new Token[transition.getNumInPlaces()];
+        this.producedTokens = new Token[transition.getNumOutPlaces()];
+        this.firing = new Firing(consumedTokens, producedTokens);
+    }
+
+    /**
+     * Move to the next firing
+     *
+     * @return false if there is no more fireable binding
+     */
+    boolean advance() {
+
+        if (!bindings.advance()) return false;
+
+        for (int index = 0; index < consumedTokens.length; index++) {
+            consumedTokens[index] = bindings.getToken(index);
+        }
+        transition.produceTokens(context, producedTokens);
+        return true;
+    }
+
+    /**
+     * @return current firing, its tokens are replaced by the next advance()
+     */
+    Firing getFiring() {
+        return firing;
+    }
+
+    /**
+     * @return copy of the current firing
+     */
+    Firing copyFiring() {
+        return new Firing(consumedTokens.clone(), producedTokens.clone());
+    }
+}
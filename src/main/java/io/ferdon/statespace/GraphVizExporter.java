@@ -0,0 +1,67 @@
+/*
+ * File name: GraphVizExporter.java
+ * File Description:
+ *      Build the GraphViz JSON of a state space (input / output places of the transitions, node labels and arcs),
+ *      as a StateSpaceListener, so the states and edges streamed by the explorations that do not keep the state
+ *      space (bitstate hashing, states on disk, external BFS) can be drawn. Petrinet.getGraphVizJson() uses it too.
+ *      Nodes are keyed by the state keys. The JSON is kept on the heap until getJson(): it is meant for state spaces
+ *      small enough to be drawn, ParquetExporter writes large state spaces without keeping them.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import org.json.JSONObject;
+
+class GraphVizExporter implements StateSpaceListener {
+
+    /*
+     * obj: GraphViz JSON, with inPlaces and outPlaces of each transition ID
+     * nodeObj: state key ~> label (key and number of tokens of each place)
+     * arcObj: parent key ~> child key, one child is kept for each parent
+     * */
+    private JSONObject obj;
+    private JSONObject nodeObj;
+    private JSONObject arcObj;
+
+    GraphVizExporter(Petrinet net) {
+        obj = new JSONObject();
+        nodeObj = new JSONObject();
+        arcObj = new JSONObject();
+
+        int[][] inputPlaces = new int[net.getNumTransitions()][];
+        int[][] outputPlaces = new int[net.getNumTransitions()][];
+        for (Transition transition : net.getTransitions()) {
+            inputPlaces[transition.getID()] = transition.getInPlaceArray();
+            outputPlaces[transition.getID()] = transition.getOutPlaceArray();
+        }
+
+        obj.put("inPlaces", inputPlaces);
+        obj.put("outPlaces", outputPlaces);
+    }
+
+    @Override
+    public void stateFound(long stateKey, State state) {
+        StringBuilder s = new StringBuilder();
+        for (Place place : state.getPlaceSet()) {
+            Marking m = state.getMarking(place);
+            s.append(m.size());
+            s.append(", ");
+        }
+        nodeObj.put(stateKey + "", stateKey + "\\n" + s.toString());
+    }
+
+    @Override
+    public void edgeFound(long parentKey, long childKey, Transition transition) {
+        arcObj.put(parentKey + "", childKey);
+    }
+
+    /* JSON of the states and edges received so far */
+    JSONObject getJson() {
+        obj.put("nodes", nodeObj);
+        obj.put("arc", arcObj);
+        return obj;
+    }
+}
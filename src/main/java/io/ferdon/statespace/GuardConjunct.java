@@ -0,0 +1,105 @@
+/*
+ * File name: GuardConjunct.java
+ * File Description:
+ *      One conjunct of a transition guard, the guard is the conjunction (&&) of all its conjuncts
+ *      Guards are split when they are added to transitions, so BindingIterator can check each conjunct
+ *      as soon as its variables are bound: conjuncts with variables of one input arc filter the tokens of that place,
+ *      other conjuncts are checked on partial bindings
+ *      Each conjunct is compiled with the variable slots of its transition
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.*;
+
+class GuardConjunct {
+
+    private CompiledExpression compiledExpression;
+
+    private GuardConjunct(List<String> tokens, Map<String, Integer> varSlots) {
+        this.compiledExpression = CompiledExpression.compile(String.join(" ", tokens), varSlots);
+    }
+
+    String getExpression() {
+        return compiledExpression.getExpression();
+    }
+
+    Set<String> getVars() {
+        return compiledExpression.getVars();
+    }
+
+    /**
+     * @param context evaluation context, with values of variables in the slots of the transition
+     * @return true if the conjunct is true with these values
+     */
+    boolean isPassed(EvaluationContext context) {
+        return compiledExpression.evaluateBoolean(context);
+    }
+
+    static List<GuardConjunct> split(String guard) {
+        return split(guard, new HashMap<>());
+    }
+
+    /**
+     * Split postfix guard at its top-level && operators
+     *
+     * @param guard    postfix expression
+     * @param varSlots map: variable name ~> slot, of the transition of guard
+     * @return conjuncts, empty if guard is empty, the whole guard if it cannot be split
+     */
+    static List<GuardConjunct> split(String guard, Map<String, Integer> varSlots) {
+
+        List<GuardConjunct> result = new ArrayList<>();
+        if (guard == null || guard.trim().isEmpty()) return result;
+
+        List<String> tokens = Arrays.asList(guard.trim().split("\\s+"));
+
+        /* each stack element is one sub-expression: [all tokens, tokens of each conjunct] */
+        Deque<List<List<String>>> conjunctStack = new ArrayDeque<>();
+        Deque<List<String>> tokenStack = new ArrayDeque<>();
+
+        for (String token : tokens) {
+
+            int numOperands = Interpreter.isOperator(token) ? Interpreter.getOperandNumber(token) : 0;
+            if (numOperands < 0 || numOperands > tokenStack.size()) {
+                result.add(new GuardConjunct(tokens, varSlots));
+                return result;
+            }
+
+            List<String> subTokens = new ArrayList<>();
+            List<List<String>> subConjuncts = new ArrayList<>();
+            LinkedList<List<String>> operandTokens = new LinkedList<>();
+            LinkedList<List<List<String>>> operandConjuncts = new LinkedList<>();
+
+            for (int i = 0; i < numOperands; i++) {
+                operandTokens.addFirst(tokenStack.pop());
+                operandConjuncts.addFirst(conjunctStack.pop());
+            }
+            for (List<String> operand : operandTokens) subTokens.addAll(operand);
+            subTokens.add(token);
+
+            if (token.equals("&&")) {
+                for (List<List<String>> operand : operandConjuncts) subConjuncts.addAll(operand);
+            } else {
+                subConjuncts.add(subTokens);
+            }
+
+            tokenStack.push(subTokens);
+            conjunctStack.push(subConjuncts);
+        }
+
+        if (tokenStack.size() != 1) {
+            result.add(new GuardConjunct(tokens, varSlots));
+            return result;
+        }
+
+        for (List<String> conjunct : conjunctStack.pop()) {
+            result.add(new GuardConjunct(conjunct, varSlots));
+        }
+
+        return result;
+    }
+}
@@ -3,13 +3,14 @@
  * File Description:
  *      The interpreter for execute code in expressions and guards of Petrinet
  *      Other new data types and operators can be easily implemented by implements interface
+ *      The operator table is immutable and the operand stack is local to each call, so one Interpreter
+ *      can be used by several threads at the same time. Compiled expressions use an EvaluationContext per thread.
  *
  * Copyright (c) 2019 - Ferdon Vietnam Limited
  * Author: Nguyen The Thong
  */
 
 package io.ferdon.statespace;
-import org.apache.commons.lang.StringEscapeUtils;
 
 import java.io.Serializable;
 import java.util.*;
@@ -94,7 +95,7 @@ class Interpreter implements Serializable {
         BooleanExpression isLessOrEqual(T x) throws IllegalArgumentException;
     }
 
-    class IntegerExpression implements ArithmeticValue, ComparableValue<ArithmeticValue> {
+    static class IntegerExpression implements ArithmeticValue, ComparableValue<ArithmeticValue> {
         private int value;
 
         IntegerExpression(String x) {
@@ -171,7 +172,7 @@ class Interpreter implements Serializable {
         }
     }
 
-    class RealExpression implements ArithmeticValue, ComparableValue<ArithmeticValue> {
+    static class RealExpression implements ArithmeticValue, ComparableValue<ArithmeticValue> {
         private double value;
 
         RealExpression(String x) {
@@ -248,7 +249,7 @@ class Interpreter implements Serializable {
         }
     }
 
-    class StringExpression implements StringValue, ComparableValue<StringValue> {
+    static class StringExpression implements StringValue, ComparableValue<StringValue> {
         private String value;
 
         StringExpression(String x) {
@@ -318,7 +319,7 @@ class Interpreter implements Serializable {
         }
     }
 
-    class BooleanExpression implements BooleanValue, ComparableValue<BooleanValue> {
+    static class BooleanExpression implements BooleanValue, ComparableValue<BooleanValue> {
         private boolean value;
 
         BooleanExpression(String x) {
@@ -400,15 +401,13 @@ class Interpreter implements Serializable {
     }
 
     /*
-     * operator: operation name ~> operationType
-     * variables: variable name ~> variable value
-     * valueStack: stack for store postfix operands
+     * operator: operation name ~> operationType, shared by all interpreters
      * */
-    private static Map<String, OperationType> operators = new HashMap<>();
-    private Map<String, String> variables = new HashMap<>();
-    private Stack<Object> valueStack = new Stack<>();
+    private static final Map<String, OperationType> operators = createOperators();
 
-    Interpreter() {
+    private static Map<String, OperationType> createOperators() {
+
+        Map<String, OperationType> operators = new HashMap<>();
         operators.put("+", OperationType.ADD);
         operators.put("-", OperationType.SUB);
         operators.put("*", OperationType.MUL);
@@ -435,26 +434,78 @@ class Interpreter implements Serializable {
         operators.put("<=", OperationType.LTE);
         operators.put("if", OperationType.IF);
         operators.put("ifelse", OperationType.IFELSE);
+
+        return Collections.unmodifiableMap(operators);
     }
 
+    Interpreter() {
+    }
 
     private boolean isOperatorToken(String token) {
         return operators.containsKey(token);
     }
 
-    private OperationType getOperationType(String token) {
+    static OperationType getOperationType(String token) {
         return operators.get(token);
     }
 
+    static boolean isOperator(String token) {
+        return operators.containsKey(token);
+    }
+
+    /**
+     * Return number of operands popped by an operator
+     *
+     * @param token String operator
+     * @return number of operands, -1 if token is not an operator or the operator does not always push one result (if)
+     */
+    static int getOperandNumber(String token) {
+
+        OperationType operationType = operators.get(token);
+        if (operationType == null) return -1;
+        if (operationType == OperationType.IF) return -1;
+
+        return getOperandNumber(operationType);
+    }
+
     /**
-     * Return ValueType of a String token by defined regex
+     * Return number of operands popped by an operation
+     *
+     * @param operationType OperationType
+     * @return number of operands (if pops 2 operands but pushes its result only when the condition is true)
+     */
+    static int getOperandNumber(OperationType operationType) {
+
+        switch (operationType) {
+            case NOT:
+            case ISTRUE:
+            case ISFALSE:
+            case ISEMPTY:
+            case TRIM:
+                return 1;
+            case SUBSTR:
+            case IFELSE:
+                return 3;
+            default:
+                return 2;
+        }
+    }
+
+    /**
+     * Return ValueType of a String token, the grammar of each type is:
+     *      INTEGER:  ^([+-]?[1-9]\d*|0)$
+     *      BOOLEAN:  True | False
+     *      REAL:     [+-]?([0-9]*[.])?[0-9]+
+     *      STRING:   [] | '...'
+     *      VARIABLE: ^[a-zA-Z_$][a-zA-Z_$0-9]*$
+     * Tokens are scanned by hand instead of matching the regexes, this is called for every value of every binding.
      *
      * @param token String
      * @return ValueType (INTEGER, BOOLEAN, ...), null if wrong token grammar
      */
     static public ValueType getValueType(String token) {
 
-        if (token.matches("^([+-]?[1-9]\\d*|0)$")) {
+        if (isIntegerToken(token)) {
             return ValueType.INTEGER;
         }
 
@@ -462,7 +513,7 @@ class Interpreter implements Serializable {
             return ValueType.BOOLEAN;
         }
 
-        if (token.matches("[+-]?([0-9]*[.])?[0-9]+")) {
+        if (isRealToken(token)) {
             return ValueType.REAL;
         }
 
@@ -470,174 +521,73 @@ class Interpreter implements Serializable {
             return ValueType.STRING;
         }
 
-        if (token.matches("^[a-zA-Z_$][a-zA-Z_$0-9]*$")) {
+        if (isVariableToken(token)) {
             return ValueType.VARIABLE;
         }
 
         return null;
     }
 
-    /**
-     * Receive String token and convert to operator, do operation with arguments popped from stack,
-     * push result back to stack after finish
-     *
-     * @param token String
-     */
-    private void doOperation(String token) throws ClassCastException, IllegalArgumentException {
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
 
-        OperationType operationType = getOperationType(token);
-        switch (operationType) {
-            case ADD: {
-                ArithmeticValue arg1 = (ArithmeticValue) valueStack.pop();
-                ArithmeticValue arg2 = (ArithmeticValue) valueStack.pop();
-                valueStack.push(arg2.add(arg1));
-                break;
-            }
-            case SUB: {
-                ArithmeticValue arg1 = (ArithmeticValue) valueStack.pop();
-                ArithmeticValue arg2 = (ArithmeticValue) valueStack.pop();
-                valueStack.push(arg2.sub(arg1));
-                break;
-            }
-            case MUL: {
-                ArithmeticValue arg1 = (ArithmeticValue) valueStack.pop();
-                ArithmeticValue arg2 = (ArithmeticValue) valueStack.pop();
-                valueStack.push(arg2.mul(arg1));
-                break;
-            }
-            case DIV: {
-                ArithmeticValue arg1 = (ArithmeticValue) valueStack.pop();
-                ArithmeticValue arg2 = (ArithmeticValue) valueStack.pop();
-                valueStack.push(arg2.div(arg1));
-                break;
-            }
-            case MOD: {
-                ArithmeticValue arg1 = (ArithmeticValue) valueStack.pop();
-                ArithmeticValue arg2 = (ArithmeticValue) valueStack.pop();
-                valueStack.push(arg2.mod(arg1));
-                break;
-            }
-            case AND: {
-                BooleanExpression arg1 = (BooleanExpression) valueStack.pop();
-                BooleanExpression arg2 = (BooleanExpression) valueStack.pop();
-                valueStack.push(arg2.and(arg1));
-                break;
-            }
-            case NOT: {
-                BooleanExpression arg1 = (BooleanExpression) valueStack.pop();
-                valueStack.push(arg1.not());
-                break;
-            }
-            case OR: {
-                BooleanExpression arg1 = (BooleanExpression) valueStack.pop();
-                BooleanExpression arg2 = (BooleanExpression) valueStack.pop();
-                valueStack.push(arg2.or(arg1));
-                break;
-            }
-            case XOR: {
-                BooleanExpression arg1 = (BooleanExpression) valueStack.pop();
-                BooleanExpression arg2 = (BooleanExpression) valueStack.pop();
-                valueStack.push(arg2.xor(arg1));
-                break;
-            }
-            case ISTRUE: {
-                BooleanExpression arg1 = (BooleanExpression) valueStack.pop();
-                valueStack.push(arg1.isTrue());
-                break;
-            }
-            case ISFALSE: {
-                BooleanExpression arg1 = (BooleanExpression) valueStack.pop();
-                valueStack.push(arg1.isFalse());
-                break;
-            }
-            case SUBSTR: {
-                IntegerExpression arg1 = (IntegerExpression) valueStack.pop();
-                IntegerExpression arg2 = (IntegerExpression) valueStack.pop();
-                StringValue arg3 = (StringValue) valueStack.pop();
-                valueStack.push(arg3.substr(arg2, arg1));
-                break;
-            }
-            case APPEND: {
-                StringValue arg1 = (StringValue) valueStack.pop();
-                StringValue arg2 = (StringValue) valueStack.pop();
-                valueStack.push(arg2.append(arg1));
-                break;
-            }
-            case ISEMPTY: {
-                StringValue arg1 = (StringValue) valueStack.pop();
-                valueStack.push(arg1.isEmpty());
-                break;
-            }
-            case TRIM: {
-                StringValue arg1 = (StringValue) valueStack.pop();
-                valueStack.push(arg1.trim());
-                break;
-            }
-            case EQ: {
-                ComparableValue arg1 = (ComparableValue) valueStack.pop();
-                ComparableValue arg2 = (ComparableValue) valueStack.pop();
-                valueStack.push(arg2.isEqual(arg1));
-                break;
-            }
-            case NEQ: {
-                ComparableValue arg1 = (ComparableValue) valueStack.pop();
-                ComparableValue arg2 = (ComparableValue) valueStack.pop();
-                valueStack.push(arg2.isNotEqual(arg1));
-                break;
-            }
-            case GT: {
-                ComparableValue arg1 = (ComparableValue) valueStack.pop();
-                ComparableValue arg2 = (ComparableValue) valueStack.pop();
-                valueStack.push(arg2.isGreater(arg1));
-                break;
-            }
-            case GTE: {
-                ComparableValue arg1 = (ComparableValue) valueStack.pop();
-                ComparableValue arg2 = (ComparableValue) valueStack.pop();
-                valueStack.push(arg2.isGreaterOrEqual(arg1));
-                break;
-            }
-            case LT: {
-                ComparableValue arg1 = (ComparableValue) valueStack.pop();
-                ComparableValue arg2 = (ComparableValue) valueStack.pop();
-                valueStack.push(arg2.isLess(arg1));
-                break;
-            }
-            case LTE: {
-                ComparableValue arg1 = (ComparableValue) valueStack.pop();
-                ComparableValue arg2 = (ComparableValue) valueStack.pop();
-                valueStack.push(arg2.isLessOrEqual(arg1));
-                break;
-            }
-            case IFELSE: {
-                Value arg1 = (Value) valueStack.pop();
-                Value arg2 = (Value) valueStack.pop();
-                BooleanExpression arg3 = (BooleanExpression) valueStack.pop();
-                if (arg3.isTrue().getBoolean()) {
-                    valueStack.push(arg2);
-                } else {
-                    valueStack.push(arg1);
-                }
-                break;
-            }
-            case IF: {
-                Value arg1 = (Value) valueStack.pop();
-                BooleanExpression arg2 = (BooleanExpression) valueStack.pop();
-                if (arg2.isTrue().getBoolean()) {
-                    valueStack.push(arg1);
-                }
-                break;
-            }
+    private static boolean isSign(char c) {
+        return c == '+' || c == '-';
+    }
+
+    private static boolean isIntegerToken(String token) {
+
+        int length = token.length();
+        if (length == 1 && token.charAt(0) == '0') return true;
+
+        int pos = (length > 0 && isSign(token.charAt(0))) ? 1 : 0;
+        if (pos == length || token.charAt(pos) < '1' || token.charAt(pos) > '9') return false;
+
+        for (pos++; pos < length; pos++) {
+            if (!isDigit(token.charAt(pos))) return false;
         }
+        return true;
+    }
+
+    private static boolean isRealToken(String token) {
+
+        int length = token.length();
+        int pos = (length > 0 && isSign(token.charAt(0))) ? 1 : 0;
+        int dotPos = -1;
+
+        for (int i = pos; i < length; i++) {
+            char c = token.charAt(i);
+            if (c == '.' && dotPos == -1) dotPos = i;
+            else if (!isDigit(c)) return false;
+        }
+
+        /* at least one digit after the dot (or at all when there is no dot) */
+        return (dotPos == -1) ? pos < length : dotPos < length - 1;
+    }
+
+    private static boolean isVariableToken(String token) {
+
+        int length = token.length();
+        if (length == 0) return false;
+
+        for (int pos = 0; pos < length; pos++) {
+            char c = token.charAt(pos);
+            boolean isLetter = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$';
+            if (!isLetter && (pos == 0 || !isDigit(c))) return false;
+        }
+        return true;
     }
 
     /**
-     * Receive String token and convert to suitable type, push to stack, wait for doing operation
+     * Convert a String operand (constant or variable) to Value
      *
-     * @param token String
-     * @throws Exception token's grammar is wrong
+     * @param token     String
+     * @param variables map: variable name ~> variable value
+     * @return Value
+     * @throws IllegalArgumentException token's grammar is wrong or the value of variable is not provided
      */
-    private void pushOperandToStack(String token) throws IllegalArgumentException {
+    static Value parseValue(String token, Map<String, String> variables) throws IllegalArgumentException {
 
         ValueType valueType = getValueType(token);
         if (valueType == null) throw new IllegalArgumentException("Syntax Error");
@@ -646,31 +596,104 @@ class Interpreter implements Serializable {
             case VARIABLE: {
                 String variableValue = variables.get(token);
                 if (variableValue == null) throw new IllegalArgumentException("Variable's values are not provided");
-                pushOperandToStack(variableValue);  /* change variable with value, so next time valueType != VARIABLE */
-                break;
-            }
-            case INTEGER: {
-                IntegerExpression arg = new IntegerExpression(token);
-                valueStack.push(arg);
-                break;
-            }
-            case REAL: {
-                RealExpression arg = new RealExpression(token);
-                valueStack.push(arg);
-                break;
-            }
-            case STRING: {
-                StringExpression arg = new StringExpression(token);
-                valueStack.push(arg);
-                break;
-            }
-            case BOOLEAN: {
-                BooleanExpression arg = new BooleanExpression(token);
-                valueStack.push(arg);
+                return parseValue(variableValue, variables);  /* change variable with value, so next time valueType != VARIABLE */
             }
+            case INTEGER:
+                return new IntegerExpression(token);
+            case REAL:
+                return new RealExpression(token);
+            case STRING:
+                return new StringExpression(token);
+            default:
+                return new BooleanExpression(token);
         }
     }
 
+    /**
+     * Do operation with its arguments
+     *
+     * @param operationType OperationType
+     * @param args          operands in the order of the postfix expression (the last one is on the top of stack)
+     * @return result, null if operation is if and the condition is false (nothing is pushed to stack)
+     */
+    static Value operate(OperationType operationType, Value[] args) throws ClassCastException, IllegalArgumentException {
+
+        switch (operationType) {
+            case ADD:
+                return ((ArithmeticValue) args[0]).add((ArithmeticValue) args[1]);
+            case SUB:
+                return ((ArithmeticValue) args[0]).sub((ArithmeticValue) args[1]);
+            case MUL:
+                return ((ArithmeticValue) args[0]).mul((ArithmeticValue) args[1]);
+            case DIV:
+                return ((ArithmeticValue) args[0]).div((ArithmeticValue) args[1]);
+            case MOD:
+                return ((ArithmeticValue) args[0]).mod((ArithmeticValue) args[1]);
+            case AND:
+                return ((BooleanExpression) args[0]).and((BooleanExpression) args[1]);
+            case NOT:
+                return ((BooleanExpression) args[0]).not();
+            case OR:
+                return ((BooleanExpression) args[0]).or((BooleanExpression) args[1]);
+            case XOR:
+                return ((BooleanExpression) args[0]).xor((BooleanExpression) args[1]);
+            case ISTRUE:
+                return ((BooleanExpression) args[0]).isTrue();
+            case ISFALSE:
+                return ((BooleanExpression) args[0]).isFalse();
+            case SUBSTR:
+                return ((StringValue) args[0]).substr((IntegerExpression) args[1], (IntegerExpression) args[2]);
+            case APPEND:
+                return ((StringValue) args[0]).append((StringValue) args[1]);
+            case ISEMPTY:
+                return ((StringValue) args[0]).isEmpty();
+            case TRIM:
+                return ((StringValue) args[0]).trim();
+            case EQ:
+                return ((ComparableValue) args[0]).isEqual(args[1]);
+            case NEQ:
+                return ((ComparableValue) args[0]).isNotEqual(args[1]);
+            case GT:
+                return ((ComparableValue) args[0]).isGreater(args[1]);
+            case GTE:
+                return ((ComparableValue) args[0]).isGreaterOrEqual(args[1]);
+            case LT:
+                return ((ComparableValue) args[0]).isLess(args[1]);
+            case LTE:
+                return ((ComparableValue) args[0]).isLessOrEqual(args[1]);
+            case IFELSE:
+                return ((BooleanExpression) args[0]).isTrue().getBoolean() ? args[1] : args[2];
+            case IF:
+                return ((BooleanExpression) args[0]).isTrue().getBoolean() ? args[1] : null;
+            default:
+                throw new IllegalArgumentException("Syntax Error");
+        }
+    }
+
+    private static Value pop(Deque<Value> valueStack) {
+        if (valueStack.isEmpty()) throw new EmptyStackException();
+        return valueStack.pop();
+    }
+
+    /**
+     * Receive String token and convert to operator, do operation with arguments popped from stack,
+     * push result back to stack after finish
+     *
+     * @param token      String
+     * @param valueStack operand stack of the running expression
+     */
+    private static void doOperation(String token, Deque<Value> valueStack) throws ClassCastException, IllegalArgumentException {
+
+        OperationType operationType = getOperationType(token);
+        Value[] args = new Value[getOperandNumber(operationType)];
+        for (int i = args.length - 1; i >= 0; i--) {
+            args[i] = pop(valueStack);
+        }
+
+        Value result = operate(operationType, args);
+        if (result != null) valueStack.push(result);
+    }
+
 
     /**
      * Function that run the list of string tokens
@@ -682,20 +705,21 @@ class Interpreter implements Serializable {
      */
     public Value interpret(String[] tokens, Map<String, String> variables) throws IllegalArgumentException {
 
-        this.variables = variables;
+        Deque<Value> valueStack = new ArrayDeque<>();
         for (String token : tokens) {
             if (isOperatorToken(token)) {
-                doOperation(token);
+                doOperation(token, valueStack);
             } else {
-                pushOperandToStack(token);
+                valueStack.push(parseValue(token, variables));
             }
         }
 
-        return (Value) valueStack.pop();
+        return pop(valueStack);
     }
 
     /**
-     * Interface for run expression from String
+     * Interface for run expression from String, the expression is compiled then evaluated
+     * (use CompiledExpression directly to evaluate the same expression many times)
      *
      * @param expression String
      * @param variables  map: variable name ~> variable value
@@ -704,11 +728,16 @@ class Interpreter implements Serializable {
     public Value interpretFromString(String expression, Map<String, String> variables) {
         if (expression.isEmpty()) throw new IllegalArgumentException();
 
-        String rawExpression = StringEscapeUtils.escapeJava(expression).trim();
-        this.valueStack.empty();
+        Map<String, Integer> varSlots = new HashMap<>();
+        CompiledExpression compiledExpression = CompiledExpression.compile(expression, varSlots);
+
+        Value[] slots = new Value[varSlots.size()];
+        for (Map.Entry<String, Integer> varSlot : varSlots.entrySet()) {
+            String variableValue = variables.get(varSlot.getKey());
+            if (variableValue != null) slots[varSlot.getValue()] = parseValue(variableValue, variables);
+        }
 
-        String[] tokens = rawExpression.split(" ");
-        return interpret(tokens, variables);
+        return compiledExpression.evaluate(slots);
     }
 
     public static void main(String args[]) throws IllegalArgumentException {
@@ -0,0 +1,142 @@
+/*
+ * File name: MappedStorage.java
+ * File Description:
+ *      Growable byte storage in a file, memory-mapped in chunks of fixed size, addressed by a long offset
+ *      Data is outside of the JVM heap (in the page cache), the file grows when a chunk is first used and
+ *      unused parts of the file read as zero. A value or a byte array must not cross the boundary of a chunk.
+ *      The file is deleted by close(), after its chunks are unmapped, so a file is never deleted while it is mapped
+ *      and no file is left to the JVM exit (there is no deleteOnExit() entry per file).
+ *      MappedStorage is not thread-safe, its owner synchronizes the accesses.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+class MappedStorage implements Closeable {
+
+    /*
+     * chunkBits: a chunk holds 2^chunkBits bytes, at most 2^30
+     * chunks: mapped chunks, chunk i maps bytes [i << chunkBits, (i + 1) << chunkBits) of the file
+     * */
+    private Path file;
+    private FileChannel channel;
+    private int chunkBits;
+    private List<MappedByteBuffer> chunks;
+
+    /**
+     * @param file      file of the storage, created (or truncated), deleted by close()
+     * @param chunkBits size of the chunks: 2^chunkBits bytes
+     */
+    MappedStorage(Path file, int chunkBits) throws IOException {
+        if (chunkBits < 3 || chunkBits > 30) throw new IllegalArgumentException("chunkBits must be from 3 to 30");
+
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.chunkBits = chunkBits;
+        this.chunks = new ArrayList<>();
+    }
+
+    long getChunkSize() {
+        return 1L << chunkBits;
+    }
+
+    private MappedByteBuffer getChunk(long offset) {
+        int chunkIndex = (int) (offset >>> chunkBits);
+
+        try {
+            while (chunks.size() <= chunkIndex) {
+                long position = (long) chunks.size() << chunkBits;
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, position, getChunkSize()));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return chunks.get(chunkIndex);
+    }
+
+    private int getPosition(long offset) {
+        return (int) (offset & (getChunkSize() - 1));
+    }
+
+    long getLong(long offset) {
+        return getChunk(offset).getLong(getPosition(offset));
+    }
+
+    void putLong(long offset, long value) {
+        getChunk(offset).putLong(getPosition(offset), value);
+    }
+
+    int getInt(long offset) {
+        return getChunk(offset).getInt(getPosition(offset));
+    }
+
+    void putInt(long offset, int value) {
+        getChunk(offset).putInt(getPosition(offset), value);
+    }
+
+    /* read data.length bytes at offset */
+    void get(long offset, byte[] data) {
+        ByteBuffer view = getChunk(offset).duplicate();
+        view.position(getPosition(offset));
+        view.get(data);
+    }
+
+    void put(long offset, byte[] data) {
+        ByteBuffer view = getChunk(offset).duplicate();
+        view.position(getPosition(offset));
+        view.put(data);
+    }
+
+    /**
+     * Unmap the chunks and delete the file, the storage must not be used after (an access to an unmapped chunk
+     * crashes the JVM). If the JVM cannot unmap the chunks, they are released by the garbage collector and the
+     * file is still deleted: the data is then only freed when the mappings are collected.
+     */
+    @Override
+    public void close() throws IOException {
+        for (MappedByteBuffer chunk : chunks) unmap(chunk);
+        chunks.clear();
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    /* release the mapping now instead of when buffer is collected: invokeCleaner (Java 9+) or cleaner (Java 8) */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* Java 8 */
+        }
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            /* left to the garbage collector */
+        }
+    }
+}
@@ -2,8 +2,16 @@
  * File name: Marking.java
  * File Description:
  *      Represent a list Token of a place
- *      Marking is usually deep copied by generating state space, so Marking data should be keep simple
+ *      Marking is immutable: removeToken() and addToken() return a new Marking, so States and Places can share
+ *      Marking objects without copying, only the places touched by a firing get new Markings
+ *      Markings of counted places (uncolored places, see Place.isCounted()) that only hold unit tokens are
+ *      stored as a number of unit tokens instead of a Multiset, adding and removing tokens is an addition.
  *      hashCode() and equals() is override for supporting State compare
+ *      The hash is a sum of one term per distinct token: hash(token) ^ count (as Multiset.hashCode()), so the Markings
+ *      returned by removeToken() and addToken() get their hash by replacing the term of the changed token,
+ *      without iterating over the other tokens.
+ *      The 64-bit fingerprint (used by State and the visited sets) is built the same way, as a sum of one term per
+ *      (place, token, count) entry, so it is also updated per changed token.
  *
  * Copyright (c) 2019 - Ferdon Vietnam Limited
  * Author: Nguyen The Thong
@@ -13,36 +21,76 @@ package io.ferdon.statespace;
 
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
 
-import java.io.*;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 public class Marking implements Serializable {
+
+    /*
+     * data: tokens of the marking, null for counter markings
+     * count: number of unit tokens of counter markings
+     * hash, fingerprint: computed on first use (0), or given by the marking this one is updated from
+     * */
     private Multiset<Token> data;
+    private int count;
     private Place place;
+    private int hash;
+    private long fingerprint;
 
     Marking(Place place) {
-        this.data = HashMultiset.create();
+        this.data = place.isCounted() ? null : HashMultiset.create();
         this.place = place;
     }
 
+    /* data is owned by the new Marking and must not be modified by the caller afterward */
     Marking(Multiset<Token> data, Place place) {
-        this.data = data;
         this.place = place;
+
+        if (place.isCounted() && data.elementSet().stream().allMatch(Token::isUnit)) {
+            this.count = data.size();
+        } else {
+            this.data = data;
+        }
     }
 
     Marking(Place place, Token token) {
-        this.data = HashMultiset.create();
-        this.data.add(token);
+        this(place);
+        if (isCounter() && token.isUnit()) {
+            count = 1;
+        } else {
+            if (data == null) data = HashMultiset.create();
+            data.add(token);
+        }
+    }
+
+    /* data is owned by the new Marking, hash and fingerprint: hashCode() and getFingerprint() of the new Marking */
+    private Marking(Multiset<Token> data, Place place, int hash, long fingerprint) {
+        this(data, place);
+        this.hash = hash;
+        this.fingerprint = fingerprint;
+    }
+
+    /* counter marking of count unit tokens, place must be counted */
+    Marking(Place place, int count) {
         this.place = place;
+        this.count = count;
+    }
+
+    boolean isCounter() {
+        return data == null;
     }
 
     boolean containToken(Token token) {
-        return data.contains(token);
+        return getNumToken(token) > 0;
     }
 
     int getNumToken(Token token) {
+        if (isCounter()) return token.isUnit() ? count : 0;
         return data.count(token);
     }
 
@@ -51,50 +99,132 @@ public class Marking implements Serializable {
     }
 
     List<Token> getTokenList() {
+        if (isCounter()) return new ArrayList<>(Collections.nCopies(count, Token.unit()));
         return new ArrayList<>(data);
     }
 
+    Set<Multiset.Entry<Token>> getTokenEntries() {
+        if (isCounter()) {
+            if (count == 0) return Collections.emptySet();
+            return Collections.singleton(Multisets.immutableEntry(Token.unit(), count));
+        }
+        return data.entrySet();
+    }
+
     int size() {
-        return data.size();
+        return isCounter() ? count : data.size();
     }
 
-    void removeToken(Token token, int num) {
-        data.remove(token, num);
+    /* number of distinct tokens */
+    int getNumEntries() {
+        if (isCounter()) return (count == 0) ? 0 : 1;
+        return data.elementSet().size();
     }
 
-    void addToken(Token token, int num) {
-        data.add(token, num);
+    Marking removeToken(Token token, int num) {
+        if (isCounter()) {
+            return token.isUnit() ? new Marking(place, Math.max(0, count - num)) : this;
+        }
+
+        Multiset<Token> newData = HashMultiset.create(data);
+        int oldCount = newData.remove(token, num);
+        int newCount = Math.max(0, oldCount - num);
+        return new Marking(newData, place, updateHash(token, oldCount, newCount),
+                updateFingerprint(token, oldCount, newCount));
     }
 
-    Marking deepCopy() throws IOException, ClassNotFoundException {
+    Marking addToken(Token token, int num) {
+        if (isCounter() && token.isUnit()) return new Marking(place, count + num);
 
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        new ObjectOutputStream(os).writeObject(data);
-        byte[] buf = os.toByteArray();
+        Multiset<Token> newData = getTokens();
+        int oldCount = newData.add(token, num);
+        return new Marking(newData, place, updateHash(token, oldCount, oldCount + num),
+                updateFingerprint(token, oldCount, oldCount + num));
+    }
 
-        ByteArrayInputStream is = new ByteArrayInputStream(buf);
-        Object clonedData = new ObjectInputStream(is).readObject();
+    /* hash of this marking after the count of token changes from oldCount to newCount */
+    private int updateHash(Token token, int oldCount, int newCount) {
+        return hashCode() - getHashTerm(token, oldCount) + getHashTerm(token, newCount);
+    }
+
+    private static int getHashTerm(Token token, int count) {
+        return (count == 0) ? 0 : token.hashCode() ^ count;
+    }
+
+    /* fingerprint of this marking after the count of token changes from oldCount to newCount */
+    private long updateFingerprint(Token token, int oldCount, int newCount) {
+        long oldTerm = getFingerprintTerm(place, token, oldCount);
+        return getFingerprint() - oldTerm + getFingerprintTerm(place, token, newCount);
+    }
 
-        return new Marking((Multiset<Token>) clonedData, place);
+    /**
+     * Term of one (place, token, count) entry in the fingerprint of a marking (Zobrist-style hashing: the
+     * fingerprint of a marking is the sum of the terms of its tokens, the fingerprint of a state is the sum of
+     * the fingerprints of its markings).
+     *
+     * @return 64-bit term, 0 if count is 0 so absent tokens do not change the sum
+     */
+    static long getFingerprintTerm(Place place, Token token, int count) {
+        if (count == 0) return 0;
+        long h = Utils.mixHash64(token.getFingerprint() ^ (place.getID() * 0x9e3779b97f4a7c15L));
+        return Utils.mixHash64(h + count * 0xc2b2ae3d27d4eb4fL);
+    }
 
+    /**
+     * 64-bit hash of the place and tokens, equal markings have the same fingerprint.
+     * Computed once, or updated from the marking this one is created from by removeToken() and addToken().
+     */
+    long getFingerprint() {
+        if (fingerprint == 0) {
+            if (isCounter()) return getFingerprintTerm(place, Token.unit(), count);
+
+            long result = 0;
+            for (Multiset.Entry<Token> entry : data.entrySet()) {
+                result += getFingerprintTerm(place, entry.getElement(), entry.getCount());
+            }
+            fingerprint = result;
+        }
+        return fingerprint;
+    }
+
+    /* copy of the tokens as a Multiset */
+    private Multiset<Token> getTokens() {
+        if (!isCounter()) return HashMultiset.create(data);
+
+        Multiset<Token> tokens = HashMultiset.create();
+        tokens.add(Token.unit(), count);
+        return tokens;
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof Marking)) return false;
+
         Marking otherMarking = (Marking) obj;
+        if (place.getID() != otherMarking.getPlace().getID()) return false;
+        if (hashCode() != otherMarking.hashCode()) return false;
+        if (isCounter() && otherMarking.isCounter()) return count == otherMarking.count;
 
-        if (!place.equals(otherMarking.getPlace())) return false;
-        for (Token token : data) {
-            if (otherMarking.getNumToken(token) != data.count(token)) return false;
-        }
+        /* Multiset.equals() compares the count of every token of both sides */
+        if (!isCounter() && !otherMarking.isCounter()) return data.equals(otherMarking.data);
+        return getTokens().equals(otherMarking.getTokens());
+    }
 
-        return true;
+    @Override
+    public int hashCode() {
+        /* same as Multiset.hashCode() of the unit tokens, so a counter marking equals the same Multiset marking */
+        if (hash == 0) {
+            int tokensHash = isCounter() ? ((count == 0) ? 0 : Token.unit().hashCode() ^ count) : data.hashCode();
+            hash = 37 * place.getID() + tokensHash;
+        }
+        return hash;
     }
 
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder();
-        for (Token token : data) {
+        for (Token token : getTokenList()) {
             s.append(token.toString());
             s.append(",");
         }
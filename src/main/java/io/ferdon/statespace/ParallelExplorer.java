@@ -0,0 +1,112 @@
+/*
+ * File name: ParallelExplorer.java
+ * File Description:
+ *      Generate the state space with a work-stealing ForkJoinPool
+ *      Each state is expanded by one task, new child states are forked as new tasks so idle workers can steal them
+ *      Workers never modify the places of Petrinet, child states are computed by Petrinet.successor()
+ *      Each task receives the firings of its state, derived from its parent's firings by BindingTracker
+ *      Visited states are interned by the (thread-safe) StateStore of StateSpace
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import org.javatuples.Triplet;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+
+class ParallelExplorer {
+
+    private Petrinet net;
+    private int parallelism;
+    private StateSpace stateSpace;
+
+    /*
+     * firedEdges: [parentID, childID, transition] collected by all workers
+     * contexts: evaluation context of each worker thread
+     * */
+    private Queue<Triplet<Integer, Integer, Transition>> firedEdges;
+    private ThreadLocal<EvaluationContext> contexts;
+    private BindingTracker tracker;
+
+    ParallelExplorer(Petrinet net, int parallelism, StateSpace stateSpace, FiringCache firingCache) {
+        this.net = net;
+        this.parallelism = parallelism;
+        this.stateSpace = stateSpace;
+        this.firedEdges = new ConcurrentLinkedQueue<>();
+        this.contexts = ThreadLocal.withInitial(EvaluationContext::new);
+        this.tracker = new BindingTracker(net, firingCache);
+    }
+
+    /**
+     * Explore all states reachable from startState, edges are added to stateSpace after all workers finish
+     *
+     * @param startState initial state
+     */
+    void explore(State startState) {
+
+        stateSpace.putIfAbsent(startState);
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ExpandTask(null, startState, null));
+        } finally {
+            pool.shutdown();
+        }
+
+        for (Triplet<Integer, Integer, Transition> edge : firedEdges) {
+            stateSpace.addEdge(edge.getValue0(), edge.getValue1(), edge.getValue2());
+        }
+    }
+
+    private class ExpandTask extends CountedCompleter<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private State parentState;
+        private List<List<Firing>> parentFirings;
+
+        /* parentFirings: firings of parentState, null to compute them */
+        ExpandTask(CountedCompleter<?> completer, State parentState, List<List<Firing>> parentFirings) {
+            super(completer);
+            this.parentState = parentState;
+            this.parentFirings = parentFirings;
+        }
+
+        @Override
+        public void compute() {
+
+            EvaluationContext context = contexts.get();
+            if (parentFirings == null) parentFirings = tracker.getFirings(parentState, context);
+
+            List<Transition> transitions = tracker.getTransitions();
+            for (int tranIndex = 0; tranIndex < transitions.size(); tranIndex++) {
+                Transition transition = transitions.get(tranIndex);
+
+                for (Firing firing : parentFirings.get(tranIndex)) {
+
+                    State childState = net.successor(parentState, transition, firing);
+                    int childID = stateSpace.putIfAbsent(childState);
+                    if (childID == -1) {
+                        childID = childState.getID();
+                        List<List<Firing>> childFirings =
+                                tracker.getChildFirings(childState, parentFirings, transition, context);
+                        addToPendingCount(1);
+                        new ExpandTask(this, childState, childFirings).fork();
+                    }
+
+                    firedEdges.add(new Triplet<>(parentState.getID(), childID, transition));
+                }
+            }
+
+            parentFirings = null;
+            tryComplete();
+        }
+    }
+}
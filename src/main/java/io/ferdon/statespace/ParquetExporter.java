@@ -0,0 +1,197 @@
+/*
+ * File name: ParquetExporter.java
+ * File Description:
+ *      Write the states and edges of a state space in parquet format for GraphX (node file and arc file, schemas of
+ *      AvroSchema), as a StateSpaceListener: each state and each edge is written as it is found, so explorations that
+ *      do not keep the state space (bitstate hashing, states on disk, external BFS) can be exported, and the memory
+ *      does not depend on the number of states. StateSpace.parquetWriteNode() / parquetWriteArc() use it as well.
+ *      The "id", "src" and "dst" fields receive the state keys: the schema must declare them "long" for the 64-bit
+ *      fingerprints of bitstate hashing (AvroSchema.createNodeSchema(filename, "long")).
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericArray;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+class ParquetExporter implements StateSpaceListener, Closeable {
+
+    /*
+     * nodeSchema, nodeWriter: schema and writer of the node file, null if nodes are not written
+     * arcSchema, arcWriter: schema and writer of the arc file, null if arcs are not written
+     * listTokenSchema, tokenSchema: schema of field "P<placeID>" (list of tokens) and of its tokens
+     * colSet: field names of the tokens of each place, e.g. int_0, string_1
+     * */
+    private Schema nodeSchema;
+    private Schema arcSchema;
+    private ParquetWriter<GenericRecord> nodeWriter;
+    private ParquetWriter<GenericRecord> arcWriter;
+    private Schema[] listTokenSchema;
+    private Schema[] tokenSchema;
+    private List<List<String>> colSet;
+
+    /**
+     * Existing files are replaced
+     *
+     * @param nodeSchema schema of nodes (AvroSchema.createNodeSchema()), null for not writing nodes
+     * @param nodeFile   node file
+     * @param arcSchema  schema of arcs (AvroSchema.createArcSchema()), null for not writing arcs
+     * @param arcFile    arc file
+     * @param numPlaces  number of places of the net
+     */
+    ParquetExporter(Schema nodeSchema, String nodeFile, Schema arcSchema, String arcFile, int numPlaces)
+            throws IOException {
+        this.nodeSchema = nodeSchema;
+        this.arcSchema = arcSchema;
+
+        if (nodeSchema != null) {
+            listTokenSchema = new Schema[numPlaces];
+            tokenSchema = new Schema[numPlaces];
+            colSet = new ArrayList<>();
+            for (int i = 0; i < numPlaces; ++i) {
+                listTokenSchema[i] = nodeSchema.getField("P" + i).schema();
+                tokenSchema[i] = listTokenSchema[i].getElementType();
+                List<String> oneSet = new ArrayList<>();
+                for (Schema.Field color : tokenSchema[i].getFields()) {
+                    oneSet.add(color.name());
+                }
+                colSet.add(oneSet);
+            }
+            nodeWriter = parquetWriter(nodeFile, nodeSchema);
+        }
+
+        if (arcSchema != null) arcWriter = parquetWriter(arcFile, arcSchema);
+    }
+
+    private static ParquetWriter<GenericRecord> parquetWriter(String outputFile, Schema schema) throws IOException {
+        new File(outputFile).delete();
+
+        return AvroParquetWriter.
+                <GenericRecord>builder(new Path(outputFile))
+                .withRowGroupSize(ParquetWriter.DEFAULT_BLOCK_SIZE)
+                .withPageSize(ParquetWriter.DEFAULT_PAGE_SIZE)
+                .withSchema(schema)
+                .withConf(new Configuration())
+                .withCompressionCodec(CompressionCodecName.SNAPPY)
+                .withValidation(false)
+                .withDictionaryEncoding(false)
+                .build();
+    }
+
+    /* value of a key field: int or long, as declared by the schema */
+    private static Object getKey(Schema schema, String field, long key) {
+        if (schema.getField(field).schema().getType() == Schema.Type.LONG) return key;
+        return Math.toIntExact(key);
+    }
+
+    private static String getType(String ty) {
+        String[] s = ty.split("_");
+        return s[0];
+    }
+
+    private static Object getValue(String input, String type) {
+        type = getType(type);
+        if (type.equals("int")) {
+            return Integer.parseInt(input);
+        }
+        if (type.equals("string")) {
+            boolean isQuoted = input.length() >= 2 && input.startsWith("'") && input.endsWith("'");
+            return isQuoted ? input.substring(1, input.length() - 1) : input;
+        }
+        if (type.equals("double") || type.equals("real")) {
+            return Double.parseDouble(input);
+        }
+        if (type.equals("bool")) {
+            return Boolean.parseBoolean(input);
+        }
+        //type is unit
+        return null;
+    }
+
+    /* list of the tokens of marking, a unit place is a single record with its number of tokens */
+    private GenericArray<GenericRecord> getListToken(Marking marking) {
+        int placeID = marking.getPlace().getID();
+        List<String> fields = colSet.get(placeID);
+
+        if (getType(fields.get(0)).equals("unit")) {
+            GenericArray<GenericRecord> listToken = new GenericData.Array<>(1, listTokenSchema[placeID]);
+            GenericRecord token = new GenericData.Record(tokenSchema[placeID]);
+            token.put("unit_0", marking.size());
+            listToken.add(token);
+            return listToken;
+        }
+
+        GenericArray<GenericRecord> listToken = new GenericData.Array<>(marking.size(), listTokenSchema[placeID]);
+        for (Token data : marking.getTokenList()) {
+            GenericRecord token = new GenericData.Record(tokenSchema[placeID]);
+            for (int i = 0; i < fields.size(); ++i) {
+                token.put(fields.get(i), getValue(data.get(i), fields.get(i)));
+            }
+            listToken.add(token);
+        }
+        return listToken;
+    }
+
+    @Override
+    public void stateFound(long stateKey, State state) {
+        if (nodeWriter == null) return;
+
+        GenericRecord petriNet = new GenericData.Record(nodeSchema);
+        petriNet.put("id", getKey(nodeSchema, "id", stateKey));
+        for (int placeID = 0; placeID < listTokenSchema.length; placeID++) {
+            Marking marking = state.getMarking(placeID);
+            petriNet.put("P" + placeID, (marking == null)
+                    ? new GenericData.Array<GenericRecord>(0, listTokenSchema[placeID])
+                    : getListToken(marking));
+        }
+
+        try {
+            nodeWriter.write(petriNet);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void edgeFound(long parentKey, long childKey, Transition transition) {
+        if (arcWriter == null) return;
+
+        GenericRecord record = new GenericData.Record(arcSchema);
+        record.put("src", getKey(arcSchema, "src", parentKey));
+        record.put("dst", getKey(arcSchema, "dst", childKey));
+        record.put("transition", transition.getID());
+
+        try {
+            arcWriter.write(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* flush and close the files */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (nodeWriter != null) nodeWriter.close();
+        } finally {
+            if (arcWriter != null) arcWriter.close();
+        }
+    }
+}
@@ -13,22 +13,22 @@ import org.javatuples.Pair;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.*;
 
-import static io.ferdon.statespace.Utils.generateAllBinding;
 import static io.ferdon.statespace.main.parseJson;
 
 public class Petrinet implements Serializable {
 
     private int numPlaces;
     private int numTransitions;
-    private int numStates;
 
     private Map<Integer, Place> places;
     private Map<Integer, Transition> transitions;
 
     private StateSpace stateSpace;
-    private static Interpreter interpreter;
+    private transient FiringCache firingCache;
+    private transient BitStateSet bitStateSet;
 
     public Petrinet(int T,
                     Map<String, String> placeToColor,
@@ -39,7 +39,6 @@ public class Petrinet implements Serializable {
                     Object[][][] expressions,
                     Object[][][] variables) {
 
-        this.numStates = 0;
         this.numTransitions = T;
         this.numPlaces = markings.length;
         this.transitions = new HashMap<>();
@@ -49,7 +48,7 @@ public class Petrinet implements Serializable {
         for (int i = 0; i < numPlaces; i++) addPlace(i);
 
         for (int i = 0; i < numTransitions; i++) transitions.get(i).addGuard(guards[i]);
-        for (int i = 0; i < numPlaces; i++) places.get(i).setMarking(markings[i]);
+        setColorSets(placeToColor, null, null);
 
         for (int tranID = 0; tranID < expressions.length; tranID++) {
             for (int j = 0; j < expressions[tranID].length; j++) {
@@ -71,8 +70,10 @@ public class Petrinet implements Serializable {
             }
         }
 
-        stateSpace = new StateSpace(numPlaces);
-        interpreter = new Interpreter();
+        setCountedPlaces();
+        for (int i = 0; i < numPlaces; i++) places.get(i).setMarking(markings[i]);
+
+        stateSpace = new StateSpace(places);
     }
 
     public int getNumPlaces() {
@@ -85,7 +86,6 @@ public class Petrinet implements Serializable {
 
     public Petrinet(PetrinetModel model) {
 
-        this.numStates = 0;
         this.numTransitions = model.T;
         this.numPlaces = model.Markings.length;
         this.transitions = new HashMap<>();
@@ -95,7 +95,7 @@ public class Petrinet implements Serializable {
         for (int i = 0; i < numPlaces; i++) addPlace(i);
 
         for (int i = 0; i < numTransitions; i++) transitions.get(i).addGuard(model.Guards[i]);
-        for (int i = 0; i < numPlaces; i++) places.get(i).setMarking(model.Markings[i]);
+        setColorSets(model.placeToColor, model.placeToType, model.typeToColor);
 
         for (int tranID = 0; tranID < model.Expressions.length; tranID++) {
             for (int j = 0; j < model.Expressions[tranID].length; j++) {
@@ -117,9 +117,59 @@ public class Petrinet implements Serializable {
             }
         }
 
-        stateSpace = new StateSpace(numPlaces);
-        interpreter = new Interpreter();
+        setCountedPlaces();
+        for (int i = 0; i < numPlaces; i++) places.get(i).setMarking(model.Markings[i]);
 
+        stateSpace = new StateSpace(places);
+    }
+
+    /**
+     * Set the color set of each place, the color of a place is taken from placeToColor,
+     * or from the color of its type when the place is only given a type
+     *
+     * @param placeToColor map: place ID ~> color set (INT*STRING*BOOL, UNIT, ...), can be null
+     * @param placeToType  map: place ID ~> type name, can be null
+     * @param typeToColor  map: type name ~> color set, can be null
+     */
+    private void setColorSets(Map<String, String> placeToColor,
+                              Map<String, String> placeToType,
+                              Map<String, String> typeToColor) {
+
+        for (Place place : places.values()) {
+            String placeID = String.valueOf(place.getID());
+            String color = (placeToColor == null) ? null : placeToColor.get(placeID);
+
+            if (color == null && placeToType != null && typeToColor != null) {
+                String type = placeToType.get(placeID);
+                if (type != null) color = typeToColor.get(type);
+            }
+
+            place.setColorSet(ColorSet.parse(color));
+        }
+    }
+
+    /**
+     * Find uncolored places: places without declared fields whose input and output arcs only carry unit tokens [].
+     * Markings of these places are counters, enabling is a check of the number of tokens against the arc weight.
+     */
+    private void setCountedPlaces() {
+
+        for (Place place : places.values()) {
+            boolean isCounted = !place.getColorSet().hasFields();
+
+            for (Transition transition : place.getOutTransition()) {
+                isCounted &= isUnitArc(transition.getVars(place));
+            }
+            for (Transition transition : place.getInTransition()) {
+                isCounted &= isUnitArc(transition.getExpression(place));
+            }
+
+            place.setCounted(isCounted);
+        }
+    }
+
+    private static boolean isUnitArc(List<String> data) {
+        return data != null && data.size() == 1 && data.get(0).trim().equals("[]");
     }
 
     public Place getPlace(int placeID) {
@@ -130,6 +180,14 @@ public class Petrinet implements Serializable {
         return transitions.get(tranID);
     }
 
+    Collection<Transition> getTransitions() {
+        return transitions.values();
+    }
+
+    Collection<Place> getPlaces() {
+        return places.values();
+    }
+
     public void addPlace(int placeID) {
         Place place = new Place(placeID);
         places.put(placeID, place);
@@ -173,109 +231,315 @@ public class Petrinet implements Serializable {
         places.get(placeID).addInputTransition(transition);
     }
 
-    public State generateCurrentState() throws IOException, ClassNotFoundException {
+    public State generateCurrentState() {
         Map<Place, Marking> data = new HashMap<>();
 
         for(Place place: places.values()) {
-            Marking marking = place.getMarking().deepCopy();
-            data.put(place, marking);
+            data.put(place, place.getMarking());
         }
 
-        State state = new State(numStates, data);
-        numStates++;
-        return state;
+        return new State(data);
     }
     public StateSpace getStateSpace() {
         return stateSpace;
     }
 
-    public void applyState(State state) throws IOException, ClassNotFoundException {
+    public void applyState(State state) {
 
         for (Place place : places.values()) {
-            Marking marking = state.getMarking(place).deepCopy();
-            place.setMarking(marking);
+            place.setMarking(state.getMarking(place));
         }
     }
 
-    public void generateStateSpace(State startState) throws ClassNotFoundException, IOException {
+    /**
+     * Generate the state space reachable from startState with a breadth-first search.
+     * Place/transition nets (only uncolored places, no guard) are explored by VectorExplorer, their states are
+     * kept as int vectors (VectorStore), other nets keep their states in a StateStore.
+     *
+     * @param startState initial state
+     * @throws IllegalStateException if the vectors of a place/transition net do not fit in the arrays of
+     *                               VectorStore, generateStateSpaceOnDisk() explores it with bindings on disk
+     */
+    public void generateStateSpace(State startState) {
+
+        if (VectorExplorer.isApplicable(this, startState)) {
+            stateSpace = new StateSpace(places, new VectorStore(getPlaces().toArray(new Place[0])));
+        } else {
+            stateSpace = new StateSpace(places);
+        }
+        explore(startState);
+    }
 
-        Queue<State> stateQueue = new LinkedList<>();
-        stateQueue.add(startState);
-        stateSpace.addState(startState);
+    /* generate the state space from startState in the current (empty) stateSpace */
+    private void explore(State startState) {
 
-        while (!stateQueue.isEmpty()) {
-            State parentState = stateQueue.remove();
-            applyState(parentState);
+        if (stateSpace.getVisitedSet() instanceof VectorStore) {
+            new VectorExplorer(this, stateSpace).explore(startState);
+            return;
+        }
 
-            System.out.println("Parent state: \n" + parentState.toString());  /* !!! */
+        EvaluationContext context = new EvaluationContext();
+        firingCache = new FiringCache();
+        BindingTracker tracker = new BindingTracker(this, firingCache);
+        List<Transition> transitionList = tracker.getTransitions();
 
-            for (Transition transition : transitions.values()) {
+        /* each queued state carries its firings, computed from the firings of its parent */
+        Queue<Pair<State, List<List<Firing>>>> stateQueue = new LinkedList<>();
+        stateQueue.add(new Pair<>(startState, tracker.getFirings(startState, context)));
+        stateSpace.putIfAbsent(startState);
 
-                List<Marking> markings = transition.getPlaceMarkings();
-                List<Binding> newBindings = generateAllBinding(markings, transition);
+        while (!stateQueue.isEmpty()) {
+            Pair<State, List<List<Firing>>> parent = stateQueue.remove();
+            State parentState = parent.getValue0();
+            List<List<Firing>> parentFirings = parent.getValue1();
 
-                for (Binding b : newBindings) {
+            for (int tranIndex = 0; tranIndex < transitionList.size(); tranIndex++) {
+                Transition transition = transitionList.get(tranIndex);
 
-                    State childState = executeWithBinding(transition, b);
-                    if (!stateSpace.containState(childState)) {
-                        stateSpace.addState(childState);
-                        stateQueue.add(childState);
+                for (Firing firing : parentFirings.get(tranIndex)) {
+
+                    State childState = successor(parentState, transition, firing);
+                    int childID = stateSpace.putIfAbsent(childState);
+                    if (childID == -1) {
+                        childID = childState.getID();
+                        stateQueue.add(new Pair<>(childState,
+                                tracker.getChildFirings(childState, parentFirings, transition, context)));
                     }
-                    stateSpace.addEdge(parentState, childState, transition);
-                    applyState(parentState);
+                    stateSpace.addEdge(parentState.getID(), childID, transition);
                 }
             }
         }
     }
 
-    public State executeWithBinding(Transition transition, Binding b) throws IOException, ClassNotFoundException  {
-        transition.executeWithBinding(b, interpreter);
-        return generateCurrentState();
+    /**
+     * Compute the state reached by firing transition with binding b from state.
+     * Places of this Petrinet and state are not modified, it can be called from several threads.
+     *
+     * @param state      parent state
+     * @param transition fired transition
+     * @param b          binding of the tokens of state, e.g. from transition.getFireableBinding(state, ...)
+     * @return child state (its ID is assigned when it is added to StateSpace), null if b is not fireable
+     */
+    public State successor(State state, Transition transition, Binding b) {
+        return successor(state, transition, b, new EvaluationContext());
     }
 
-    public State executeWithID(int tranID, int bindID) throws IOException, ClassNotFoundException  {
-        transitions.get(tranID).executeWithID(bindID, interpreter);
-        return generateCurrentState();
+    State successor(State state, Transition transition, Binding b, EvaluationContext context) {
+        return transition.fire(state, b, context);
     }
 
-    JSONObject getGraphVizJson() {
-        JSONObject obj = new JSONObject();
-        JSONObject nodeObj = new JSONObject();
-        JSONObject arcObj = new JSONObject();
+    State successor(State state, Transition transition, Firing firing) {
+        return transition.fire(state, firing);
+    }
+
+    /**
+     * Return true if no transition is enabled in state, bindings are enumerated until the first fireable one
+     *
+     * @param state State
+     * @return true if state is a deadlock
+     */
+    public boolean isDeadlock(State state) {
 
-        int[][] inputPlaces = new int[numTransitions][];
-        int[][] outputPlaces = new int[numTransitions][];
+        EvaluationContext context = new EvaluationContext();
         for (Transition transition : transitions.values()) {
-            inputPlaces[transition.getID()] = transition.getInPlaceArray();
-            outputPlaces[transition.getID()] = transition.getOutPlaceArray();
+            if (transition.isEnabled(state, context)) return false;
         }
 
-        obj.put("inPlaces", inputPlaces);
-        obj.put("outPlaces", outputPlaces);
+        return true;
+    }
+
+    /**
+     * Generate the same state space as generateStateSpace() with a pool of worker threads.
+     * Places of this Petrinet are not modified during the generation.
+     *
+     * @param startState  initial state
+     * @param parallelism number of worker threads
+     */
+    public void generateStateSpaceParallel(State startState, int parallelism) {
+        stateSpace = new StateSpace(places);
+        firingCache = new FiringCache();
+        new ParallelExplorer(this, parallelism, stateSpace, firingCache).explore(startState);
+    }
 
-        Map<Integer, State> nodes = stateSpace.getNodes();
-        for (State parentState : nodes.values()) {
+    /**
+     * Generate the state space as generateStateSpace(), but visited states are only kept as 64-bit fingerprints
+     * (hash compaction): edges and state IDs are kept in StateSpace, states cannot be decoded for export (the
+     * GraphViz and parquet node exports throw IllegalStateException).
+     * Two states with the same fingerprint are merged, the probability is reported by
+     * getHashCompactionStatistics().
+     * Place/transition nets are also explored with bindings here, so their states are only kept as fingerprints
+     * (VectorExplorer keeps every state as an int vector). The FingerprintSet is only used by this run, the next
+     * generation starts a new StateSpace.
+     *
+     * @param startState initial state
+     */
+    public void generateStateSpaceHashCompaction(State startState) {
+        stateSpace = new StateSpace(places, new FingerprintSet());
+        explore(startState);
+    }
 
-            StringBuilder s = new StringBuilder();
-            for (Place place : parentState.getPlaceSet()) {
-                Marking m = parentState.getMarking(place);
-                s.append(m.size());
-                s.append(", ");
+    /**
+     * Generate the state space as generateStateSpace(), but the states are stored in memory-mapped files of
+     * directory instead of the heap (DiskStateStore), they are read back when they are exported.
+     * The heap does not grow with the state space: the BFS queue is read back from the store (state IDs are given
+     * in BFS order, firings of each state are computed when it is read), each new state and each edge is given to
+     * listener instead of being kept in StateSpace. Place/transition nets are explored the same way.
+     * Files of the previous disk exploration are deleted.
+     *
+     * @param startState initial state, its ID is 0
+     * @param directory  directory of the state files
+     * @param listener   receives each state found (key: state ID) and each firing, e.g. ParquetExporter
+     */
+    public void generateStateSpaceOnDisk(State startState, String directory, StateSpaceListener listener)
+            throws IOException {
+        closeStateSpace();
+        stateSpace = new StateSpace(places, new DiskStateStore(places, Paths.get(directory)), listener);
+
+        EvaluationContext context = new EvaluationContext();
+        firingCache = new FiringCache();
+        BindingTracker tracker = new BindingTracker(this, firingCache);
+        List<Transition> transitionList = tracker.getTransitions();
+        stateSpace.putIfAbsent(startState);
+
+        for (int parentID = 0; parentID < stateSpace.getNumState(); parentID++) {
+            State parentState = stateSpace.getState(parentID);
+            List<List<Firing>> parentFirings = tracker.getFirings(parentState, context);
+
+            for (int tranIndex = 0; tranIndex < transitionList.size(); tranIndex++) {
+                Transition transition = transitionList.get(tranIndex);
+
+                for (Firing firing : parentFirings.get(tranIndex)) {
+                    State childState = successor(parentState, transition, firing);
+                    int childID = stateSpace.putIfAbsent(childState);
+                    stateSpace.addEdge(parentID, (childID == -1) ? childState.getID() : childID, transition);
+                }
             }
-            nodeObj.put(parentState.getID() + "", parentState.getID() + "\\n" + s.toString());
         }
+    }
+
+    /**
+     * Explore the state space breadth-first in external memory with delayed duplicate detection, for state spaces
+     * bounded by the size of the disk: the BFS layers and the visited states are sorted files of directory (deleted
+     * at the end), duplicates are removed by merging once per layer. States are not kept in StateSpace, they are
+     * given to listener with their state ID as key.
+     *
+     * @param startState initial state, its ID is 0
+     * @param directory  directory of the temporary files
+     * @param listener   receives each state found and each edge, e.g. ParquetExporter
+     */
+    public void generateStateSpaceExternal(State startState, String directory, StateSpaceListener listener)
+            throws IOException {
+        new ExternalBFSExplorer(this, places, Paths.get(directory), listener, ExternalBFSExplorer.DEFAULT_RUN_SIZE)
+                .explore(startState);
+    }
 
-        Map<State, Set<State>> edges = stateSpace.getEdges();
-        for (State parentState : edges.keySet()) {
-            Set<State> childSet = edges.get(parentState);
-            for(State childState: childSet)
-            arcObj.put(parentState.getID() + "", childState.getID());
+    /**
+     * Release the files of a state space generated by generateStateSpaceOnDisk(), the state space is reset to
+     * an empty one
+     */
+    public void closeStateSpace() throws IOException {
+        VisitedSet visitedSet = stateSpace.getVisitedSet();
+        stateSpace = new StateSpace(places);
+        if (visitedSet instanceof Closeable) ((Closeable) visitedSet).close();
+    }
+
+    /**
+     * Return the number of states, the size of the table and the probability of collision of the last
+     * exploration with hash compaction
+     *
+     * @return statistics, empty if the state space does not use hash compaction
+     */
+    public String getHashCompactionStatistics() {
+        VisitedSet visitedSet = stateSpace.getVisitedSet();
+        return (visitedSet instanceof FingerprintSet) ? visitedSet.toString() : "";
+    }
+
+    /**
+     * Explore the state space with bitstate hashing (supertrace), for state spaces that do not fit in memory.
+     * States are not kept in StateSpace, they are given to listener as they are found. A state can be missed
+     * with a small probability, reported by getBitStateStatistics().
+     *
+     * @param startState initial state
+     * @param log2Bits   size of the bit array: 2^log2Bits bits, e.g. 33 for 1 GB
+     * @param numHashes  number of bits set for each state, e.g. 3
+     * @param listener   receives each state found and each edge, e.g. ParquetExporter
+     */
+    public void generateStateSpaceBitState(State startState, int log2Bits, int numHashes,
+                                           StateSpaceListener listener) {
+        firingCache = new FiringCache();
+        bitStateSet = new BitStateSet(log2Bits, numHashes);
+        new BitStateExplorer(this, bitStateSet, listener, firingCache).explore(startState);
+    }
+
+    /**
+     * Return the number of states, the fill of the bit array and the probability of omission of the last
+     * bitstate exploration
+     *
+     * @return statistics, empty if there has been no bitstate exploration
+     */
+    public String getBitStateStatistics() {
+        return (bitStateSet == null) ? "" : bitStateSet.toString();
+    }
+
+    /**
+     * Return hit / miss statistics of the firing cache of the last state space generation
+     *
+     * @return statistics, empty if no state space has been generated with bindings
+     */
+    public String getFiringCacheStatistics() {
+        return (firingCache == null) ? "" : firingCache.toString();
+    }
+
+    /**
+     * Return hit / miss statistics of the caches of output arc expressions, summed over all arcs
+     *
+     * @return statistics
+     */
+    public String getExpressionCacheStatistics() {
+
+        long size = 0, capacity = 0, hits = 0, misses = 0, evictions = 0;
+        for (Transition transition : transitions.values()) {
+            for (ExpressionCache cache : transition.getExpressionCaches()) {
+                size += cache.size();
+                capacity += cache.getCapacity();
+                hits += cache.getHitCount();
+                misses += cache.getMissCount();
+                evictions += cache.getEvictionCount();
+            }
+        }
+
+        double hitRate = (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+        return String.format("ExpressionCache: size = %d/%d, hits = %d, misses = %d, evictions = %d, hit rate = %.2f%%",
+                size, capacity, hits, misses, evictions, 100 * hitRate);
+    }
+
+    public State executeWithBinding(Transition transition, Binding b) {
+        transition.executeWithBinding(b, new EvaluationContext());
+        return generateCurrentState();
+    }
+
+    public State executeWithID(int tranID, int bindID) {
+        transitions.get(tranID).executeWithID(bindID, new EvaluationContext());
+        return generateCurrentState();
+    }
+
+    /* not for a state space generated with hash compaction, its states cannot be decoded */
+    JSONObject getGraphVizJson() {
+        stateSpace.checkStatesKept();
+
+        GraphVizExporter exporter = new GraphVizExporter(this);
+        for (int stateID = 0; stateID < stateSpace.getNumState(); stateID++) {
+            exporter.stateFound(stateID, stateSpace.getState(stateID));
         }
 
-        obj.put("nodes", nodeObj);
-        obj.put("arc", arcObj);
+        Map<Integer, Set<Integer>> edges = stateSpace.getEdges();
+        for (int parentID : edges.keySet()) {
+            for (int childID : edges.get(parentID)) {
+                exporter.edgeFound(parentID, childID, stateSpace.getFiredTransition(parentID, childID));
+            }
+        }
 
-        return obj;
+        return exporter.getJson();
     }
 
     public static void main(String[] args) throws Exception {
@@ -288,6 +552,6 @@ public class Petrinet implements Serializable {
         Petrinet net = new Petrinet(model);
 
         net.generateStateSpace(net.generateCurrentState());
-        System.out.println("Num state: " + net.stateSpace.getNodes().size());
+        System.out.println("Num state: " + net.stateSpace.getNumState());
     }
 }
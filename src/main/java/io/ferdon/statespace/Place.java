@@ -10,6 +10,8 @@
 
 package io.ferdon.statespace;
 
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
 import org.javatuples.Pair;
 
 import java.util.ArrayList;
@@ -20,11 +22,14 @@ public class Place extends Node {
     private List<Transition> inTransition;
     private List<Transition> outTransition;
     private Marking marking;
+    private ColorSet colorSet;
+    private boolean isCounted;
 
     Place(int nodeID) {
         super(nodeID);
         inTransition = new ArrayList<>();
         outTransition = new ArrayList<>();
+        colorSet = ColorSet.UNKNOWN;
     }
 
     public List<Transition> getInTransition() {
@@ -43,6 +48,28 @@ public class Place extends Node {
         outTransition.add(transition);
     }
 
+    ColorSet getColorSet() {
+        return colorSet;
+    }
+
+    /* must be set before the marking, tokens are typed by the color set */
+    void setColorSet(ColorSet colorSet) {
+        this.colorSet = colorSet;
+    }
+
+    /**
+     * Return true if the place is uncolored: its color set has no field and all its arcs carry unit tokens [].
+     * Markings of counted places are stored as a number of unit tokens.
+     */
+    boolean isCounted() {
+        return isCounted;
+    }
+
+    /* must be set before the marking */
+    void setCounted(boolean isCounted) {
+        this.isCounted = isCounted;
+    }
+
     public void setMarking(Marking marking) {
         this.marking = marking;
     }
@@ -52,24 +79,26 @@ public class Place extends Node {
     }
 
     void removeToken(Token token, int num) {
-        marking.removeToken(token, num);
+        marking = marking.removeToken(token, num);
     }
 
     void addToken(Token token, int num) {
-        marking.addToken(token, num);
+        marking = marking.addToken(token, num);
     }
 
     public void setMarking(String s) {
 
-        marking = new Marking(this);
-        if (s.isEmpty()) return;
-
-        String[] e = s.replace("]", "]@").split("@");
-        for (String t : e) {
-            Pair<List<String>, Integer> tokenData = Utils.parseTokenWithNumber(t);
-            Token token = new Token(tokenData.getValue0());
-            marking.addToken(token, tokenData.getValue1());
+        Multiset<Token> data = HashMultiset.create();
+        if (!s.isEmpty()) {
+            String[] e = s.replace("]", "]@").split("@");
+            for (String t : e) {
+                Pair<List<String>, Integer> tokenData = Utils.parseTokenWithNumber(t);
+                Token token = colorSet.createToken(tokenData.getValue0());
+                data.add(token, tokenData.getValue1());
+            }
         }
+
+        marking = new Marking(data, this);
     }
 
     @Override
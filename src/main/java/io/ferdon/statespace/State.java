@@ -3,6 +3,12 @@
  * File Description:
  *      Represent a State in state space
  *      State implement hashCode() and equals() functions for supporting search State in visited State set in BFS
+ *      Markings are kept in an array indexed by place ID, split in chunks of 2^CHUNK_BITS places: a child state
+ *      is built by State.Builder, which copies the array of chunks and only the chunks of the places changed by
+ *      the firing, the other chunks (and all Markings) are shared with the parent state.
+ *      The 64-bit fingerprint of a state is the sum of the fingerprints of its markings, i.e. a sum of one term
+ *      per (place, token, count) entry (Zobrist-style), so the fingerprint of a child state is updated from the
+ *      fingerprint of its parent with the changed entries only. It is the hash key of the visited sets.
  *
  * Copyright (c) 2019 - Ferdon Vietnam Limited
  * Author: Nguyen The Thong
@@ -10,38 +16,176 @@
 
 package io.ferdon.statespace;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 public class State extends Node {
-    private Map<Place, Marking> markingMap;
+
+    private static final int CHUNK_BITS = 4;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /*
+     * chunks: marking of place ID p is chunks[p >> CHUNK_BITS][p & (CHUNK_SIZE - 1)], null if p has no marking
+     * fingerprint: sum of getFingerprint() of the markings
+     * */
+    private Marking[][] chunks;
+    private long fingerprint;
 
     State(int stateID) {
         super(stateID);
-        markingMap = new HashMap<>();
+        chunks = new Marking[0][];
     }
 
     State(int stateID, Map<Place, Marking> data) {
-        super(stateID);
-        markingMap = data;
+        this(stateID);
+
+        Builder builder = new Builder(this);
+        for (Marking marking : data.values()) builder.setMarking(marking.getPlace(), marking);
+        chunks = builder.chunks;
+        fingerprint = builder.fingerprint;
+    }
+
+    /* ID of this state is assigned when it is stored to StateStore */
+    State(Map<Place, Marking> data) {
+        this(-1, data);
+    }
+
+    private State(Marking[][] chunks, long fingerprint) {
+        super(-1);
+        this.chunks = chunks;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Build a child state by replacing markings of a parent state, the parent state is not modified.
+     * A builder must not be used after build().
+     */
+    static final class Builder {
+
+        /*
+         * parentChunks: chunks of the parent state, shared until a marking of the chunk is replaced
+         * chunks, fingerprint: markings and fingerprint of the state being built
+         * */
+        private final Marking[][] parentChunks;
+        private Marking[][] chunks;
+        private long fingerprint;
+
+        Builder(State parent) {
+            this.parentChunks = parent.chunks;
+            this.chunks = parent.chunks.clone();
+            this.fingerprint = parent.fingerprint;
+        }
+
+        Marking getMarking(Place place) {
+            return State.getMarking(chunks, place.getID());
+        }
+
+        Builder setMarking(Place place, Marking marking) {
+            int placeID = place.getID();
+            int chunkIndex = placeID >>> CHUNK_BITS;
+
+            if (chunkIndex >= chunks.length) chunks = Arrays.copyOf(chunks, chunkIndex + 1);
+            if (chunks[chunkIndex] == null) {
+                chunks[chunkIndex] = new Marking[CHUNK_SIZE];
+            } else if (chunkIndex < parentChunks.length && chunks[chunkIndex] == parentChunks[chunkIndex]) {
+                chunks[chunkIndex] = chunks[chunkIndex].clone();
+            }
+
+            Marking[] chunk = chunks[chunkIndex];
+            Marking oldMarking = chunk[placeID & (CHUNK_SIZE - 1)];
+            if (oldMarking != null) fingerprint -= oldMarking.getFingerprint();
+            fingerprint += marking.getFingerprint();
+            chunk[placeID & (CHUNK_SIZE - 1)] = marking;
+            return this;
+        }
+
+        State build() {
+            return new State(chunks, fingerprint);
+        }
+    }
+
+    private static Marking getMarking(Marking[][] chunks, int placeID) {
+        int chunkIndex = placeID >>> CHUNK_BITS;
+        if (chunkIndex >= chunks.length || chunks[chunkIndex] == null) return null;
+        return chunks[chunkIndex][placeID & (CHUNK_SIZE - 1)];
+    }
+
+    void setID(int stateID) {
+        nodeID = stateID;
     }
 
     Marking getMarking(Place place) {
-        return markingMap.get(place);
+        return getMarking(chunks, place.getID());
+    }
+
+    /* marking of the place whose ID is placeID, null if the place has no marking */
+    Marking getMarking(int placeID) {
+        return getMarking(chunks, placeID);
+    }
+
+    /* number of distinct (place, token) entries of the markings */
+    int getNumEntries() {
+        int numEntries = 0;
+        for (Marking[] chunk : chunks) {
+            if (chunk == null) continue;
+            for (Marking marking : chunk) {
+                if (marking != null) numEntries += marking.getNumEntries();
+            }
+        }
+        return numEntries;
     }
 
+    /* places that have a marking, in the order of place IDs */
     Set<Place> getPlaceSet() {
-        return markingMap.keySet();
+        Set<Place> places = new LinkedHashSet<>();
+        for (Marking[] chunk : chunks) {
+            if (chunk == null) continue;
+            for (Marking marking : chunk) {
+                if (marking != null) places.add(marking.getPlace());
+            }
+        }
+        return places;
+    }
+
+    /* new map: place ~> marking */
+    Map<Place, Marking> getMarkingMap() {
+        Map<Place, Marking> markingMap = new HashMap<>();
+        for (Place place : getPlaceSet()) markingMap.put(place, getMarking(place));
+        return markingMap;
+    }
+
+    /**
+     * 64-bit hash of the markings, states with the same markings have the same fingerprint.
+     * Different states have the same fingerprint with probability about 2^-64.
+     */
+    long getFingerprint() {
+        return fingerprint;
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof State)) return false;
+
         State otherState = (State) obj;
+        if (fingerprint != otherState.fingerprint) return false;
+
+        Marking[][] otherChunks = otherState.chunks;
+        int numChunks = Math.max(chunks.length, otherChunks.length);
+        for (int chunkIndex = 0; chunkIndex < numChunks; chunkIndex++) {
+            Marking[] chunk = (chunkIndex < chunks.length) ? chunks[chunkIndex] : null;
+            Marking[] otherChunk = (chunkIndex < otherChunks.length) ? otherChunks[chunkIndex] : null;
+            if (chunk == otherChunk) continue;
 
-        for(Place place: markingMap.keySet()) {
-            if (!markingMap.containsKey(place)) return false;
-            if (!markingMap.get(place).equals(otherState.getMarking(place))) return false;
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                Marking marking = (chunk == null) ? null : chunk[i];
+                Marking otherMarking = (otherChunk == null) ? null : otherChunk[i];
+                if (!Objects.equals(marking, otherMarking)) return false;
+            }
         }
 
         return true;
@@ -49,22 +193,17 @@ public class State extends Node {
 
     @Override
     public int hashCode() {
-        int result = 37;
-        for (Place place: markingMap.keySet()) {
-            result += 37 * place.hashCode() + markingMap.get(place).hashCode();
-        }
-
-        return result;
+        return Long.hashCode(fingerprint);
     }
 
     @Override
     public String toString() {
 
         StringBuilder s = new StringBuilder();
-        for(Place place: markingMap.keySet()) {
+        for(Place place: getPlaceSet()) {
             s.append(String.format("Place %s:", place.getID()));
             s.append(" ~> ");
-            s.append(markingMap.get(place).toString());
+            s.append(getMarking(place).toString());
             s.append("\n");
         }
 
@@ -10,72 +10,96 @@
 package io.ferdon.statespace;
 
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericArray;
-import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
-import org.apache.parquet.avro.AvroParquetWriter;
-import org.apache.parquet.hadoop.ParquetWriter;
-import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 import org.javatuples.Pair;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
 class StateSpace {
 
     private int P;
-    private Map<Integer, State> nodes;
-    private List<State> visitedState;
-    private Map<State, Set<State>> edges;
-    private Map<Pair<State, State>, Transition> firedTransitions;  /* [src,dst] ~> arc data  */
-
-    StateSpace(int numPlaces) {
-        P = numPlaces;
-        nodes = new HashMap<>();
-        visitedState = new ArrayList<>();
-        edges = new HashMap<>();
-        firedTransitions = new HashMap<>();
+    private VisitedSet nodes;
+    private StateSpaceListener listener;  /* receives new states and edges, null if edges are kept */
+    private Map<Integer, Set<Integer>> edges;
+    private Map<Pair<Integer, Integer>, Transition> firedTransitions;  /* [src,dst] ~> arc data  */
+
+    StateSpace(Map<Integer, Place> places) {
+        this(places, new StateStore(places));
     }
 
-    void addState(State newState) {
-        nodes.put(newState.getID(), newState);
-        visitedState.add(newState);
+    /**
+     * @param places placeID ~> place
+     * @param nodes  visited set, e.g. FingerprintSet for not keeping the states
+     */
+    StateSpace(Map<Integer, Place> places, VisitedSet nodes) {
+        this(places, nodes, null);
     }
 
-    boolean containState(State state) {
-        for(State s: visitedState) {
-            if (s.equals(state)) return true;
-        }
+    /**
+     * State space whose edges are streamed to listener instead of being kept, e.g. when the states are on disk
+     *
+     * @param places   placeID ~> place
+     * @param nodes    visited set
+     * @param listener receives each new state (key: state ID) and each edge, null for keeping the edges
+     */
+    StateSpace(Map<Integer, Place> places, VisitedSet nodes, StateSpaceListener listener) {
+        P = places.size();
+        this.nodes = nodes;
+        this.listener = listener;
+        edges = new HashMap<>();
+        firedTransitions = new HashMap<>();
+    }
 
-        return false;
+    /**
+     * Add state to the state space if it has not been visited
+     *
+     * @param state new state, receives the next state ID if it is added
+     * @return ID of the visited state with the same markings, -1 if state is added
+     */
+    int putIfAbsent(State state) {
+        int stateID = nodes.putIfAbsent(state);
+        if (stateID == -1 && listener != null) listener.stateFound(state.getID(), state);
+        return stateID;
     }
 
     int getNumState() {
         return nodes.size();
     }
 
-    void addEdge(State parentState, State childState, Transition transition) {
-
-        if (edges.containsKey(parentState)) {
-            edges.get(parentState).add(childState);
-        } else {
-            Set<State> stateSet = new HashSet<>();
-            stateSet.add(childState);
-            edges.put(parentState, stateSet);
-        }
-        firedTransitions.put(new Pair<>(parentState, childState), transition);
+    /**
+     * Decode a visited state, states are stored in compact form so each call returns a new State object
+     *
+     * @param stateID state ID
+     * @return State
+     * @throws UnsupportedOperationException if the visited set does not keep the states (hash compaction)
+     */
+    State getState(int stateID) {
+        return nodes.get(stateID);
     }
 
-    Map<Integer, State> getNodes() {
+    VisitedSet getVisitedSet() {
         return nodes;
     }
 
-    Map<State, Set<State>> getEdges() {
+    /* the edge is given to the listener if there is one, it is not kept */
+    void addEdge(int parentID, int childID, Transition transition) {
+
+        if (listener != null) {
+            listener.edgeFound(parentID, childID, transition);
+            return;
+        }
+
+        if (edges.containsKey(parentID)) {
+            edges.get(parentID).add(childID);
+        } else {
+            Set<Integer> stateSet = new HashSet<>();
+            stateSet.add(childID);
+            edges.put(parentID, stateSet);
+        }
+        firedTransitions.put(new Pair<>(parentID, childID), transition);
+    }
+
+    Map<Integer, Set<Integer>> getEdges() {
         return edges;
     }
 
@@ -111,140 +135,42 @@ class StateSpace {
 //        return result;
 //    }
 
-    private static String getType(String ty) {
-        String[] s = ty.split("_");
-        return s[0];
-    }
-
-    private static Object getValue(String input, String type) {
-        type = getType(type);
-        if (type.equals("int")) {
-            return Integer.parseInt(input);
-        }
-        if (type.equals("string")) {
-            return input;
-        }
-        if (type.equals("double")) {
-            return Double.parseDouble(input);
-        }
-        if (type.equals("bool")) {
-            return Boolean.parseBoolean(input);
-        }
-        //type is unit
-        return null;
-    }
-
-    private ParquetWriter<GenericRecord> parquetWriter(String outputFile, Schema schema) {
-        ParquetWriter<GenericRecord> writer = null;
-        try {
-            writer = AvroParquetWriter.
-                    <GenericRecord>builder(new Path(outputFile))
-                    .withRowGroupSize(ParquetWriter.DEFAULT_BLOCK_SIZE)
-                    .withPageSize(ParquetWriter.DEFAULT_PAGE_SIZE)
-                    .withSchema(schema)
-                    .withConf(new Configuration())
-                    .withCompressionCodec(CompressionCodecName.SNAPPY)
-                    .withValidation(false)
-                    .withDictionaryEncoding(false)
-                    .build();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return writer;
+    /* transition fired from parentID to childID, null if there is no such edge */
+    Transition getFiredTransition(int parentID, int childID) {
+        return firedTransitions.get(new Pair<>(parentID, childID));
     }
 
     /* write Arc in parquet format */
     void parquetWriteArc(Schema schema, String outputFile) {
-        GenericRecord record = null;
-        try {
-            record = new GenericData.Record(schema);
-            File t = new File(outputFile);
-            t.delete();
-
-            ParquetWriter<GenericRecord> writer = parquetWriter(outputFile, schema);
-            for (Pair<State, State> edge : firedTransitions.keySet()) {
-                record.put("src", edge.getValue0().getID());
-                record.put("dst", edge.getValue1().getID());
-                record.put("transition", firedTransitions.get(edge).getID());
-                writer.write(record);
+        try (ParquetExporter exporter = new ParquetExporter(null, null, schema, outputFile, P)) {
+            for (Pair<Integer, Integer> edge : firedTransitions.keySet()) {
+                exporter.edgeFound(edge.getValue0(), edge.getValue1(), firedTransitions.get(edge));
             }
-            writer.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
-
+    /**
+     * Check that the states can be decoded for export
+     *
+     * @throws IllegalStateException if the state space has been generated with hash compaction (FingerprintSet)
+     */
+    void checkStatesKept() {
+        if (nodes instanceof FingerprintSet) {
+            throw new IllegalStateException("States of a state space generated with hash compaction are only kept "
+                    + "as fingerprints, they cannot be exported");
+        }
     }
 
-    /* write Node in parquet format */
+    /* write Node in parquet format, not for a state space generated with hash compaction */
     void parquetWriteNode(Schema schema, String outputFile) {
-        Schema listTokenSchema[] = new Schema[(int) P]; // schema of listTokenace = list of Token
-        Schema tokenSchema[] = new Schema[(int) P]; // schema of token in listTokenace i-th.
-        GenericRecord petriNet;
-        GenericArray listToken[] = new GenericData.Array[(int) P];
-        GenericRecord token[] = new GenericRecord[(int) P];
-        List<List<String>> colSet = new ArrayList<>();
-        List<String> oneSet;
-
-        try {
-            for (int i = 0; i < P; ++i) {
-                listTokenSchema[i] = schema.getField("P" + i).schema();
-                tokenSchema[i] = listTokenSchema[i].getElementType();
-                oneSet = new ArrayList<>();
-                for (Schema.Field color : tokenSchema[i].getFields()) {
-                    oneSet.add(color.name());
-                }
-                colSet.add(oneSet);
-            }
-            petriNet = new GenericData.Record(schema);
-            //System.out.println(schema);
-            File t = new File(outputFile);
-            t.delete();
-
-            ParquetWriter<GenericRecord> writer = parquetWriter(outputFile, schema);
-
-            for (State state : nodes.values()) {
-                for (Place place: state.getPlaceSet()) {
-                    int numTokens = place.getMarking().size();
-                    int placeID = place.getID();
-                    if (getType(colSet.get(placeID).get(0)).equals("unit")) {
-                        listToken[placeID] = new GenericData.Array(1, listTokenSchema[placeID]);
-                        token[placeID] = new GenericData.Record(tokenSchema[placeID]);
-                        token[placeID].put("unit_0", numTokens);
-                        listToken[placeID].add(0, token[placeID]);
-                    } else {
-                        String content = place.getMarking().toString();
-                        if (content.equals("[[]]")) continue;
-
-                        JSONObject object = new JSONObject("{\"listToken\":" + content + "}");
-                        JSONArray array = object.getJSONArray("listToken");
-
-                        int tokenID = 0;
-                        listToken[placeID] = new GenericData.Array(numTokens, listTokenSchema[placeID]);
-                        for (Object element : array) {
-
-                            if (element.equals("[[]]"))  continue;
-                            JSONObject subObj = new JSONObject("{\"Token\":" + element + "}");
-                            JSONArray subArr = subObj.getJSONArray("Token");
-                            token[placeID] = new GenericData.Record(tokenSchema[placeID]);
-
-                            int n = colSet.get(placeID).size();
-                            for (int i = 0; i < n; ++i) {
-                                Object value = getValue(subArr.get(i).toString(), colSet.get(placeID).get(i));
-                                token[placeID].put(colSet.get(placeID).get(i), value);
-                            }
-                            listToken[placeID].add(tokenID, token[placeID]);
-                            tokenID++;
-                        }
-                    }
-                    petriNet.put("id", state.getID());
-                    petriNet.put("P" + place, listToken[placeID]);
-                }
-                //  System.out.println(petriNet);
-                writer.write(petriNet);
-            }
+        checkStatesKept();
 
-            writer.close();
+        try (ParquetExporter exporter = new ParquetExporter(schema, outputFile, null, null, P)) {
+            for (int stateID = 0; stateID < nodes.size(); stateID++) {
+                exporter.stateFound(stateID, nodes.get(stateID));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
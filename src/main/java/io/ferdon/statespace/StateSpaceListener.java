@@ -0,0 +1,35 @@
+/*
+ * File name: StateSpaceListener.java
+ * File Description:
+ *      Receive the states and edges of a state space while it is explored, for explorations that do not keep
+ *      the state space in memory (bitstate hashing, states on disk, external BFS): exporters write them as they
+ *      come instead of reading StateSpace (ParquetExporter for the GraphX parquet files, GraphVizExporter)
+ *      States are identified by a key: the 64-bit fingerprint of their markings for bitstate hashing (there is no
+ *      dense state ID because visited states are not stored), the state ID for states on disk and external BFS.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+public interface StateSpaceListener {
+
+    /**
+     * Called once for each state found for the first time
+     *
+     * @param stateKey key of state
+     * @param state    State, not kept by the explorer
+     */
+    void stateFound(long stateKey, State state);
+
+    /**
+     * Called for each firing, also when the child state has already been visited. External BFS gives one edge for
+     * each (parent, child) pair.
+     *
+     * @param parentKey  key of the parent state
+     * @param childKey   key of the child state
+     * @param transition fired transition
+     */
+    void edgeFound(long parentKey, long childKey, Transition transition);
+}
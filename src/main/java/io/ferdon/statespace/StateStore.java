@@ -0,0 +1,121 @@
+/*
+ * File name: StateStore.java
+ * File Description:
+ *      Keep one canonical copy of each distinct marking of the state space
+ *      States are stored as CompactState (packed bytes + shared TokenDictionary), not as State objects,
+ *      full State objects are decoded on demand by get(stateID)
+ *      Duplicate detection is a hash lookup on State.getFingerprint() (updated incrementally by the firings), the
+ *      stored state with the same fingerprint is compared with CompactState.matches(), so only new states are
+ *      encoded. States whose fingerprint is the fingerprint of another stored state (probability about 2^-64 per
+ *      pair) are kept in a separate map keyed by the encoded bytes, so there is no loss.
+ *      Each new state receives a dense ID: 0, 1, 2, ... in the order it is stored
+ *      StateStore can be shared by several threads
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+class StateStore implements VisitedSet {
+
+    /*
+     * places: placeID ~> place, for decoding
+     * canonicalStates: fingerprint ~> the first stored encoded state with this fingerprint (which holds the ID)
+     * collisions: encoded state ~> stored encoded state, for the other states of a fingerprint (guarded by states)
+     * states: state ID ~> encoded state
+     * */
+    private Map<Integer, Place> places;
+    private TokenDictionary tokenDictionary;
+    private ConcurrentMap<Long, CompactState> canonicalStates;
+    private Map<CompactState, CompactState> collisions;
+    private List<CompactState> states;
+
+    StateStore(Map<Integer, Place> places) {
+        this.places = places;
+        this.tokenDictionary = new TokenDictionary();
+        this.canonicalStates = new ConcurrentHashMap<>();
+        this.collisions = new HashMap<>();
+        this.states = new ArrayList<>();
+    }
+
+    /**
+     * Store state if there is no stored state with the same markings
+     *
+     * @param state new state, its ID is assigned by the store if it is stored
+     * @return ID of the stored state with the same markings, -1 if state is new and has been stored
+     */
+    public int putIfAbsent(State state) {
+
+        CompactState storedState = canonicalStates.get(state.getFingerprint());
+        if (storedState == null) {
+            CompactState[] newState = new CompactState[1];
+            storedState = canonicalStates.computeIfAbsent(state.getFingerprint(), fingerprint -> {
+                newState[0] = store(CompactState.encode(state, tokenDictionary));
+                return newState[0];
+            });
+
+            if (storedState == newState[0]) {
+                state.setID(storedState.getID());
+                return -1;
+            }
+        }
+
+        if (storedState.matches(state, tokenDictionary)) return storedState.getID();
+        return putCollision(state);
+    }
+
+    /* state has the fingerprint of another stored state */
+    private int putCollision(State state) {
+        CompactState compactState = CompactState.encode(state, tokenDictionary);
+        synchronized (states) {
+            CompactState storedState = collisions.get(compactState);
+            if (storedState != null) return storedState.getID();
+
+            collisions.put(compactState, store(compactState));
+        }
+
+        state.setID(compactState.getID());
+        return -1;
+    }
+
+    /* give the next state ID to compactState */
+    private CompactState store(CompactState compactState) {
+        synchronized (states) {
+            compactState.setID(states.size());
+            states.add(compactState);
+        }
+        return compactState;
+    }
+
+    /**
+     * Decode the stored state
+     *
+     * @param stateID ID of stored state
+     * @return new State object with the markings of the stored state
+     */
+    public State get(int stateID) {
+        CompactState compactState;
+        synchronized (states) {
+            compactState = states.get(stateID);
+        }
+        return compactState.decode(places, tokenDictionary);
+    }
+
+    public int size() {
+        synchronized (states) {
+            return states.size();
+        }
+    }
+
+    TokenDictionary getTokenDictionary() {
+        return tokenDictionary;
+    }
+}
@@ -1,8 +1,16 @@
 /*
  * File name: Token.java
  * File Description:
- *      Represent a Token in Petrinet, store in String, Unit token: []
- *      hashCode() and equals() is overriding to compare Token
+ *      Represent a Token in Petrinet, Unit token: []
+ *      Fields are typed according to the color set of their place: INTEGER, REAL and BOOLEAN values are stored
+ *      inline in primitive form, other values are stored as interned Strings. A value is stored in primitive form
+ *      only when its String is the canonical form of its type (for example "7", "1.5", "True") and the Interpreter
+ *      reads it as this type, so get() returns the same String as before and evaluating the primitive value
+ *      gives the same result as evaluating the String.
+ *      Token is immutable and interned: Token.Builder and valueOf() return the single instance of each value
+ *      from a global pool (weak, unused tokens are collected), so the same token produced by different firings
+ *      is shared by the whole state space. The hash (and the 64-bit fingerprint used for the fingerprints of
+ *      markings) is computed once, and equals() of two pooled tokens is a reference comparison.
  *
  * Copyright (c) 2019 - Ferdon Vietnam Limited
  * Author: Nguyen The Thong
@@ -10,66 +18,245 @@
 
 package io.ferdon.statespace;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-public class Token implements Serializable {
+public final class Token implements Serializable {
+
+    private static final Interner<Token> pool = Interners.newWeakInterner();
+    private static final Token unit = new Builder(1).addData("[]").build();
+
+    /*
+     * types: type of each field, STRING for the values stored as String
+     * values: INTEGER values, raw bits of REAL values, 1 / 0 for BOOLEAN values
+     * strings: interned String of STRING fields, null for primitive fields
+     * hash: hash of the fields, computed when the token is created
+     * fingerprint: 64-bit hash of the fields, computed when the token is created
+     * isPooled: true for the instance kept by the pool, pooled tokens are equal only to themselves
+     * */
+    private final Interpreter.ValueType[] types;
+    private final long[] values;
+    private final String[] strings;
+    private final int size;
+    private final int hash;
+    private final long fingerprint;
+    private transient boolean isPooled;
+
+    private Token(Interpreter.ValueType[] types, long[] values, String[] strings, int size) {
+        this.types = types;
+        this.values = values;
+        this.strings = strings;
+        this.size = size;
+        this.hash = computeHash();
+        this.fingerprint = computeFingerprint();
+    }
+
+    /**
+     * Build a token field by field, build() returns the pooled instance
+     */
+    static final class Builder {
+
+        private Interpreter.ValueType[] types;
+        private long[] values;
+        private String[] strings;
+        private int size;
+
+        Builder() {
+            this(4);
+        }
+
+        Builder(int capacity) {
+            types = new Interpreter.ValueType[capacity];
+            values = new long[capacity];
+            strings = new String[capacity];
+        }
+
+        Builder addData(String x) {
+            return addData(x, null);
+        }
+
+        /**
+         * Add a field to the token
+         *
+         * @param x            String value
+         * @param declaredType type declared by the color set of the place, null if not declared
+         * @return this builder
+         */
+        Builder addData(String x, Interpreter.ValueType declaredType) {
+
+            if (size == types.length) {
+                int capacity = Math.max(4, size * 2);
+                types = Arrays.copyOf(types, capacity);
+                values = Arrays.copyOf(values, capacity);
+                strings = Arrays.copyOf(strings, capacity);
+            }
+
+            Interpreter.ValueType type = getStoredType(x, declaredType);
+            types[size] = type;
+            values[size] = 0;
+            strings[size] = null;
+
+            switch (type) {
+                case INTEGER:
+                    values[size] = Integer.parseInt(x);
+                    break;
+                case REAL:
+                    values[size] = Double.doubleToLongBits(Double.parseDouble(x));
+                    break;
+                case BOOLEAN:
+                    values[size] = x.equals("True") ? 1 : 0;
+                    break;
+                default:
+                    strings[size] = x.intern();
+            }
+
+            size++;
+            return this;
+        }
+
+        Token build() {
+            Token token = new Token(Arrays.copyOf(types, size), Arrays.copyOf(values, size),
+                    Arrays.copyOf(strings, size), size);
+            return intern(token);
+        }
+    }
+
+    /**
+     * Return the token whose field types are taken from the values
+     *
+     * @param x values of fields, null for unit token
+     * @return pooled Token
+     */
+    static Token valueOf(List<String> x) {
+        if (x == null) return unit;
+
+        Builder builder = new Builder(x.size());
+        for (String value : x) builder.addData(value);
+        return builder.build();
+    }
+
+    /* unit token [], the token of uncolored places */
+    static Token unit() {
+        return unit;
+    }
 
-    private List<String> data;
+    private static Token intern(Token token) {
+        Token pooled = pool.intern(token);
 
-    Token() {
-        data = new ArrayList<>();
+        /* only the first instance of a value is marked, a stale false only makes equals() compare the fields */
+        if (pooled == token) token.markPooled();
+        return pooled;
     }
 
-    Token(List<String> x) {
-        data = x;
+    private Token markPooled() {
+        isPooled = true;
+        return this;
+    }
+
+    /* deserialized tokens are replaced by the pooled instance */
+    private Object readResolve() {
+        return intern(this);
     }
 
     int size() {
-        return data.size();
+        return size;
     }
 
     boolean isUnit() {
-        return data == null;
+        return this == unit || (size == 1 && "[]".equals(strings[0]));
     }
 
     String get(int index) {
-        return data.get(index);
+        checkIndex(index);
+
+        switch (types[index]) {
+            case INTEGER:
+                return Integer.toString((int) values[index]);
+            case REAL:
+                return Double.toString(Double.longBitsToDouble(values[index]));
+            case BOOLEAN:
+                return (values[index] != 0) ? "True" : "False";
+            default:
+                return strings[index];
+        }
     }
 
-    void addData(String x) {
-        data.add(x);
+    Interpreter.ValueType getType(int index) {
+        checkIndex(index);
+        return types[index];
     }
 
-    List<String> getData() {
-        return data;
+    int getInteger(int index) {
+        return (int) values[index];
+    }
+
+    double getReal(int index) {
+        return Double.longBitsToDouble(values[index]);
+    }
+
+    boolean getBoolean(int index) {
+        return values[index] != 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    /* type of the stored value: the type of x if it is declared (or nothing is declared) and x is canonical */
+    private static Interpreter.ValueType getStoredType(String x, Interpreter.ValueType declaredType) {
+
+        if (x.isEmpty()) return Interpreter.ValueType.STRING;
+
+        Interpreter.ValueType type = Interpreter.getValueType(x);
+        if (type == null || (declaredType != null && declaredType != type)) return Interpreter.ValueType.STRING;
+
+        try {
+            switch (type) {
+                case INTEGER:
+                    return Integer.toString(Integer.parseInt(x)).equals(x) ? type : Interpreter.ValueType.STRING;
+                case REAL:
+                    return Double.toString(Double.parseDouble(x)).equals(x) ? type : Interpreter.ValueType.STRING;
+                case BOOLEAN:
+                    return type;
+                default:
+                    return Interpreter.ValueType.STRING;
+            }
+        } catch (NumberFormatException e) {
+            return Interpreter.ValueType.STRING;
+        }
     }
 
     @Override
     public String toString() {
-        if (this.isUnit()) return "[]";
-
         StringBuilder s = new StringBuilder();
-        for(int i = 0; i < data.size(); i++) {
-            s.append(data.get(i));
-            if (i != data.size()) s.append(",");
+        for(int i = 0; i < size; i++) {
+            if (i > 0) s.append(",");
+            s.append(get(i));
         }
 
-        return s.toString().substring(0, s.length() - 1);
+        return s.toString();
     }
 
     @Override
     public boolean equals(Object obj) {
 
+        if (this == obj) return true;
         if (!(obj instanceof Token)) return false;
 
         Token otherToken = (Token) obj;
-        List<String> otherData = otherToken.getData();
+        if (isPooled && otherToken.isPooled) return false;
+        if (hash != otherToken.hash || size != otherToken.size) return false;
 
-        if (data.size() != otherData.size()) return false;
-        for (int i = 0; i < data.size(); i++) {
-            if (!data.get(i).equals(otherData.get(i))) return false;
+        for (int i = 0; i < size; i++) {
+            if (types[i] != otherToken.types[i] || values[i] != otherToken.values[i]) return false;
+
+            /* interned, equals() is only reached for Strings of deserialized tokens */
+            String s = strings[i];
+            if (s != otherToken.strings[i] && (s == null || !s.equals(otherToken.strings[i]))) return false;
         }
 
         return true;
@@ -77,12 +264,34 @@ public class Token implements Serializable {
 
     @Override
     public int hashCode() {
-        StringBuilder t = new StringBuilder();
-        if (data == null) return 0;
-        for (String x : data) {
-            t.append(x);
-            t.append('+');
+        return hash;
+    }
+
+    /* 64-bit hash of the fields, equal tokens have the same fingerprint */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    private long computeFingerprint() {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < size; i++) {
+            h = (h ^ types[i].ordinal()) * 0x100000001b3L;
+            if (strings[i] == null) {
+                h = (h ^ values[i]) * 0x100000001b3L;
+                continue;
+            }
+
+            h = (h ^ strings[i].length()) * 0x100000001b3L;
+            for (int c = 0; c < strings[i].length(); c++) h = (h ^ strings[i].charAt(c)) * 0x100000001b3L;
+        }
+        return Utils.mixHash64(h);
+    }
+
+    private int computeHash() {
+        int h = 1;
+        for (int i = 0; i < size; i++) {
+            h = 31 * h + ((strings[i] != null) ? strings[i].hashCode() : types[i].ordinal() * 31 + Long.hashCode(values[i]));
         }
-        return t.toString().hashCode();
+        return h;
     }
 }
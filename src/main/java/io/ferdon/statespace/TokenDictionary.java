@@ -0,0 +1,68 @@
+/*
+ * File name: TokenDictionary.java
+ * File Description:
+ *      Map each distinct Token of the state space to a small int (token ID), and back
+ *      Stored states refer to tokens by token ID only, so every distinct Token object is kept once here
+ *      Tokens are kept in an array that is replaced by a larger copy when it is full, getToken() takes no lock
+ *      TokenDictionary can be shared by several threads
+ *      Tokens are never removed: the dictionary keeps every distinct token of the exploration on the heap, so its
+ *      size grows with the number of distinct tokens, not with the number of states. This is also true for the
+ *      explorations that keep the states on disk (DiskStateStore, ExternalBFSExplorer): their heap is bounded only
+ *      for nets whose tokens take a bounded number of values.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+class TokenDictionary {
+
+    /*
+     * tokenIDs: token ~> token ID
+     * tokens: token ID ~> token, written under the lock of this dictionary, then published by the volatile write
+     * size: number of tokens
+     * */
+    private ConcurrentMap<Token, Integer> tokenIDs;
+    private volatile Token[] tokens;
+    private volatile int size;
+
+    TokenDictionary() {
+        tokenIDs = new ConcurrentHashMap<>();
+        tokens = new Token[16];
+    }
+
+    /**
+     * Return ID of token, new token receives the next token ID
+     *
+     * @param token Token
+     * @return token ID
+     */
+    int getID(Token token) {
+
+        Integer tokenID = tokenIDs.get(token);
+        if (tokenID != null) return tokenID;
+
+        return tokenIDs.computeIfAbsent(token, this::add);
+    }
+
+    private synchronized int add(Token token) {
+        Token[] newTokens = (size == tokens.length) ? Arrays.copyOf(tokens, size * 2) : tokens;
+        newTokens[size] = token;
+        tokens = newTokens;
+        return size++;
+    }
+
+    /* tokenID must have been returned by getID() */
+    Token getToken(int tokenID) {
+        return tokens[tokenID];
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -4,6 +4,8 @@
  *      Inherited from Node.java
  *      Transition is involved with most of operation in Petrinet including execute transition
  *      From a transition, we can retrieve the information of connected places and edge (variables, expressions)
+ *      Guard and output expressions are compiled once when they are added, variables used by them get a slot
+ *      Tokens produced by each output expression are cached by the values of the variables it uses
  *
  * Copyright (c) 2019 - Ferdon Vietnam Limited
  * Author: Nguyen The Thong
@@ -11,12 +13,7 @@
 
 package io.ferdon.statespace;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import static io.ferdon.statespace.Utils.generateAllBinding;
+import java.util.*;
 
 public class Transition extends Node {
     private List<Place> inPlaces;
@@ -25,7 +22,18 @@ public class Transition extends Node {
     private List<Place> outPlaces;
     private Map<Place, Edge> outEdges;
 
+    /*
+     * varSlots: variable name ~> slot in the value arrays of the compiled guard and expressions
+     * compiledGuard: whole guard, null if the guard is empty
+     * compiledExpressions: output place ~> compiled statements of the arc expression, null statement: no token
+     * expressionCaches: output place ~> cache of the tokens produced by the arc expression
+     * */
     private String guard;
+    private List<GuardConjunct> guardConjuncts;
+    private Map<String, Integer> varSlots;
+    private CompiledExpression compiledGuard;
+    private Map<Place, List<CompiledExpression>> compiledExpressions;
+    private Map<Place, ExpressionCache> expressionCaches;
 
     Transition(int nodeID) {
 
@@ -35,6 +43,9 @@ public class Transition extends Node {
         inEdges = new HashMap<>();
         outPlaces = new ArrayList<>();
         outEdges = new HashMap<>();
+        varSlots = new HashMap<>();
+        compiledExpressions = new HashMap<>();
+        expressionCaches = new HashMap<>();
     }
 
     int[] getInPlaceArray() {
@@ -55,6 +66,12 @@ public class Transition extends Node {
 
     void addGuard(String guard) {
         this.guard = guard;
+        this.guardConjuncts = GuardConjunct.split(guard, varSlots);
+        this.compiledGuard = guard.isEmpty() ? null : CompiledExpression.compile(guard, varSlots);
+    }
+
+    List<GuardConjunct> getGuardConjuncts() {
+        return (guardConjuncts == null) ? new ArrayList<>() : guardConjuncts;
     }
 
     void addInputPlace(Place place, Edge edge) {
@@ -65,6 +82,66 @@ public class Transition extends Node {
     void addOutputPlace(Place place, Edge edge) {
         outPlaces.add(place);
         outEdges.put(place, edge);
+
+        List<String> expression = edge.getData();
+        if (expression == null || expression.isEmpty()) return;
+
+        List<CompiledExpression> statements = new ArrayList<>();
+        Set<Integer> expressionSlots = new TreeSet<>();
+        for (String statement : expression.get(0).trim().split(",")) {
+            CompiledExpression compiledStatement =
+                    statement.isEmpty() ? null : CompiledExpression.compile(statement, varSlots);
+            if (compiledStatement != null) {
+                for (String varName : compiledStatement.getVars()) expressionSlots.add(varSlots.get(varName));
+            }
+            statements.add(compiledStatement);
+        }
+        compiledExpressions.put(place, statements);
+        int[] cachedSlots = expressionSlots.stream().mapToInt(Integer::intValue).toArray();
+        expressionCaches.put(place, new ExpressionCache(cachedSlots));
+    }
+
+    /**
+     * Return slot of a variable in the value arrays of the compiled guard and expressions
+     *
+     * @param varName variable name
+     * @return slot, -1 if the variable is not used by the guard or expressions
+     */
+    int getVarSlot(String varName) {
+        Integer slot = varSlots.get(varName);
+        return (slot == null) ? -1 : slot;
+    }
+
+    Collection<ExpressionCache> getExpressionCaches() {
+        return expressionCaches.values();
+    }
+
+    int getSlotNumber() {
+        return varSlots.size();
+    }
+
+    /**
+     * Put values of variables in the slots of context, for evaluating the compiled guard and expressions.
+     * Primitive fields of tokens are copied, values that cannot be parsed are left empty,
+     * evaluating them reports that the value is not provided
+     *
+     * @param b          binding, its variables must be consistent
+     * @param varMapping map: variable name ~> variable value of b
+     * @param context    evaluation context of the calling thread
+     */
+    void setSlots(Binding b, Map<String, String> varMapping, EvaluationContext context) {
+
+        context.reset(varSlots.size());
+        for (Place place : inPlaces) {
+            Token token = b.getToken(place);
+            if (token == null || token.isUnit()) continue;
+
+            List<String> varNames = getVars(place);
+            for (int varIndex = 0; varIndex < varNames.size(); varIndex++) {
+                Integer slot = varSlots.get(varNames.get(varIndex));
+                if (slot != null) context.setSlot(slot, token, varIndex, varMapping);
+            }
+        }
     }
 
     List<String> getVars(Place place) {
@@ -107,65 +184,236 @@ public class Transition extends Node {
         return result;
     }
 
-    boolean stopByGuard(Map<String, String> varMappipng, Interpreter interpreter) {
-        if (guard.isEmpty()) return false;
+    List<Marking> getPlaceMarkings(State state) {
 
-        Interpreter.Value isPass = interpreter.interpretFromString(guard, varMappipng);
-        return !isPass.getBoolean();
+        List<Marking> result = new ArrayList<>();
+        for(Place place : inPlaces) {
+            result.add(state.getMarking(place));
+        }
+
+        return result;
     }
 
-    private Token runExpression(Map<String, String> varMapping, Place place, Interpreter interpreter) {
+    boolean hasGuard() {
+        return compiledGuard != null;
+    }
 
-        Token token = new Token();
-        String[] expression = getExpression(place).get(0).trim().split(",");
+    boolean stopByGuard(EvaluationContext context) {
+        if (compiledGuard == null) return false;
+        return !compiledGuard.evaluateBoolean(context);
+    }
 
-        for(String statement: expression) {
-            if (statement.length() == 0) return null;
-            Interpreter.Value res = interpreter.interpretFromString(statement, varMapping);
-            token.addData(res.getString());
+    /**
+     * Compute the token produced for place, from the cache of the arc expression if the values of its variables
+     * have already been evaluated
+     *
+     * @param context evaluation context, slots are set with the binding
+     * @param place   output place
+     * @return Token, null if the expression gives no token
+     */
+    private Token runExpression(EvaluationContext context, Place place) {
+
+        ExpressionCache cache = expressionCaches.get(place);
+        long key = (cache == null) ? ExpressionCache.NO_KEY : cache.getKey(context);
+        if (key != ExpressionCache.NO_KEY) {
+            Token token = cache.get(context, key);
+            if (token != null) return token;
         }
 
+        Token token = evaluateExpression(context, place);
+        if (key != ExpressionCache.NO_KEY && token != null) cache.put(context, key, token);
         return token;
     }
 
-    List<Binding> getFireableBinding(Interpreter interpreter) {
+    private Token evaluateExpression(EvaluationContext context, Place place) {
 
-        List<Binding> fireableBindings = new ArrayList<>();
-        List<Marking> markings = getPlaceMarkings();
-        List<Binding> allBinding = generateAllBinding(markings, this);
+        List<CompiledExpression> statements = compiledExpressions.get(place);
+        if (statements == null) throw new IllegalArgumentException("Expression is not provided");
+
+        Token.Builder builder = new Token.Builder(statements.size());
+        ColorSet colorSet = place.getColorSet();
+        for(int i = 0; i < statements.size(); i++) {
+            CompiledExpression statement = statements.get(i);
+            if (statement == null) return null;
+            builder.addData(statement.evaluateString(context), colorSet.getFieldType(i, statements.size()));
+        }
+
+        return builder.build();
+    }
+
+    List<Binding> getFireableBinding(EvaluationContext context) {
+        return getFireableBinding(getPlaceMarkings(), context);
+    }
+
+    List<Binding> getFireableBinding(State state, EvaluationContext context) {
+        return getFireableBinding(getPlaceMarkings(state), context);
+    }
+
+    private List<Binding> getFireableBinding(List<Marking> markings, EvaluationContext context) {
 
-        for(Binding b: allBinding) {
-            Map<String, String> varMapping = b.getVarMapping();
-            if (varMapping == null) continue;
-            if (stopByGuard(varMapping, interpreter)) continue;
+        /* guard conjuncts are checked inside the enumeration */
+        List<Binding> fireableBindings = new ArrayList<>();
+        BindingIterator bindings = new BindingIterator(this, markings, context);
 
-            fireableBindings.add(b);
+        while (bindings.advance()) {
+            fireableBindings.add(bindings.getBinding());
         }
 
         return fireableBindings;
     }
 
-    void executeWithID(int bindingID, Interpreter interpreter) {
+    /**
+     * Return true if the transition has a fireable binding in state, the enumeration stops at the first one
+     *
+     * @param state   State
+     * @param context evaluation context of the calling thread
+     * @return true if the transition is enabled
+     */
+    boolean isEnabled(State state, EvaluationContext context) {
+        return new BindingIterator(this, getPlaceMarkings(state), context).advance();
+    }
+
+    void executeWithID(int bindingID, EvaluationContext context) {
 
-        List<Binding> fireableBindings = getFireableBinding(interpreter);
+        List<Binding> fireableBindings = getFireableBinding(context);
 
         bindingID %= fireableBindings.size();
-        executeWithBinding(fireableBindings.get(bindingID), interpreter);
+        executeWithBinding(fireableBindings.get(bindingID), context);
     }
 
-    void executeWithBinding(Binding b, Interpreter interpreter) {
+    void executeWithBinding(Binding b, EvaluationContext context) {
 
         Map<String, String> varMapping = b.getVarMapping();
         if (varMapping == null) return;
-        if (stopByGuard(varMapping, interpreter)) return;
+
+        setSlots(b, varMapping, context);
+        if (stopByGuard(context)) return;
 
         for(Place place: inPlaces) {
             place.removeToken(b.getToken(place), getVarNumber(place));
         }
 
         for(Place place: outPlaces) {
-            Token newToken = runExpression(varMapping, place, interpreter);
+            Token newToken = place.isCounted() ? Token.unit() : runExpression(context, place);
             if (newToken != null) place.addToken(newToken, getExpressionNumber(place));
         }
     }
+
+    /**
+     * Compute the tokens produced by firing the transition with binding b
+     *
+     * @param b       binding
+     * @param context evaluation context of the calling thread
+     * @return Firing, null if b is not fireable
+     */
+    Firing createFiring(Binding b, EvaluationContext context) {
+
+        Map<String, String> varMapping = b.getVarMapping();
+        if (varMapping == null) return null;
+
+        setSlots(b, varMapping, context);
+        if (stopByGuard(context)) return null;
+
+        Token[] consumedTokens = new Token[inPlaces.size()];
+        for (int index = 0; index < consumedTokens.length; index++) {
+            consumedTokens[index] = b.getToken(inPlaces.get(index));
+        }
+
+        Token[] producedTokens = new Token[outPlaces.size()];
+        produceTokens(context, producedTokens);
+        return new Firing(consumedTokens, producedTokens);
+    }
+
+    /**
+     * Compute the token produced for each output place, slots of context hold the values of the binding
+     *
+     * @param context        evaluation context of the calling thread
+     * @param producedTokens receives the token of each output place (in the order of the output places)
+     */
+    void produceTokens(EvaluationContext context, Token[] producedTokens) {
+        for (int index = 0; index < producedTokens.length; index++) {
+            Place place = outPlaces.get(index);
+            producedTokens[index] = place.isCounted() ? Token.unit() : runExpression(context, place);
+        }
+    }
+
+    int getNumInPlaces() {
+        return inPlaces.size();
+    }
+
+    int getNumOutPlaces() {
+        return outPlaces.size();
+    }
+
+    /**
+     * Return a cursor over the firings of all fireable bindings of the transition in state, one at a time
+     *
+     * @param state   State
+     * @param context evaluation context of the calling thread, used by the cursor until its last advance()
+     * @return FiringIterator
+     */
+    FiringIterator getFiringIterator(State state, EvaluationContext context) {
+        return new FiringIterator(this, getPlaceMarkings(state), context);
+    }
+
+    /**
+     * Compute the firings of all fireable bindings of the transition in state, e.g. for caching them
+     *
+     * @param state   State
+     * @param context evaluation context of the calling thread
+     * @return list of Firing
+     */
+    List<Firing> getFirings(State state, EvaluationContext context) {
+
+        List<Firing> firings = new ArrayList<>();
+        FiringIterator cursor = getFiringIterator(state, context);
+        while (cursor.advance()) firings.add(cursor.copyFiring());
+
+        return firings;
+    }
+
+    /**
+     * Compute the state reached by firing the transition with binding b from state.
+     * Neither state nor the places are modified, so several threads can fire at the same time.
+     *
+     * @param state       parent state
+     * @param b           binding of the tokens of state
+     * @param context     evaluation context owned by the calling thread
+     * @return child state (shares the markings of untouched places with state), null if b is not fireable
+     */
+    State fire(State state, Binding b, EvaluationContext context) {
+        Firing firing = createFiring(b, context);
+        return (firing == null) ? null : fire(state, firing);
+    }
+
+    /**
+     * Compute the state reached by applying firing to state, the input places of state must hold the consumed tokens.
+     * Only the markings of the places touched by firing are replaced (copy on write), the fingerprint of the child
+     * state is updated from the fingerprint of state with the changed tokens only.
+     *
+     * @param state  parent state
+     * @param firing Firing of this transition
+     * @return child state (shares the markings of untouched places with state)
+     */
+    State fire(State state, Firing firing) {
+
+        State.Builder builder = new State.Builder(state);
+
+        for(int index = 0; index < inPlaces.size(); index++) {
+            Place place = inPlaces.get(index);
+            Marking marking = builder.getMarking(place);
+            builder.setMarking(place, marking.removeToken(firing.getConsumedToken(index), getVarNumber(place)));
+        }
+
+        for(int index = 0; index < outPlaces.size(); index++) {
+            Token newToken = firing.getProducedToken(index);
+            if (newToken == null) continue;
+
+            Place place = outPlaces.get(index);
+            Marking marking = builder.getMarking(place);
+            builder.setMarking(place, marking.addToken(newToken, getExpressionNumber(place)));
+        }
+
+        return builder.build();
+    }
 }
@@ -9,36 +9,26 @@
 
 package io.ferdon.statespace;
 
-import com.google.common.collect.Lists;
 import org.javatuples.Pair;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 final class Utils {
 
+    /**
+     * Generate all consistent bindings of transition (shared variables have the same value on every arc)
+     *
+     * @param markings   markings of the input places of transition
+     * @param transition Transition
+     * @return list of bindings
+     */
     static List<Binding> generateAllBinding(List<Marking> markings, Transition transition) {
 
-        List<List<Token>> tokenWrapper = new ArrayList<>();
-        List<Place> places = new ArrayList<>();
-
-        for(Marking m: markings) {
-            tokenWrapper.add(m.getTokenList());
-            places.add(m.getPlace());
-        }
-
-        List<List<Token>> rawBindings = Lists.cartesianProduct(tokenWrapper);
-
         List<Binding> result = new ArrayList<>();
-        for (List<Token> tokens : rawBindings) {
-
-            Binding b = new Binding(transition);
-            for (int id = 0; id < tokens.size(); id++) {
-                b.addToken(places.get(id), tokens.get(id));
-            }
-            result.add(b);
+        BindingIterator bindings = new BindingIterator(transition, markings);
+        while (bindings.advance()) {
+            result.add(bindings.getBinding());
         }
 
         return result;
@@ -59,4 +49,35 @@ final class Utils {
 
         return new Pair<>(tokenData, number);
     }
+
+    /**
+     * Spread the bits of a hash value (finalizer of MurmurHash3), so that summing mixed values
+     * gives an order-independent hash that does not collide when values are swapped between places
+     *
+     * @param h hash value
+     * @return mixed hash value
+     */
+    static int mixHash(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Spread the bits of a 64-bit hash value (finalizer of 64-bit MurmurHash3)
+     *
+     * @param h hash value
+     * @return mixed hash value
+     */
+    static long mixHash64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
 }
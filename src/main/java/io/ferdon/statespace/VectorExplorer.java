@@ -0,0 +1,157 @@
+/*
+ * File name: VectorExplorer.java
+ * File Description:
+ *      Generate the state space of a place/transition net (all places are counted, no guard) as a vector addition
+ *      system: a marking is an int vector of the number of tokens of each place, a transition is enabled when each
+ *      input place holds at least the weight of its arc, firing adds the column of the transition in the (sparse)
+ *      incidence matrix. Bindings, evaluation contexts, States and Markings are not used.
+ *      The visited set of the StateSpace must be a VectorStore: it is the only copy of the visited markings, and
+ *      since state IDs are given in BFS order it is also the queue. States are decoded from it on demand.
+ *      Only generateStateSpace() uses VectorExplorer: the explorations with another visited set (hash compaction,
+ *      states on disk) explore place/transition nets with bindings, so the chosen visited set is respected.
+ *      States and edges are added to StateSpace in the same order as Petrinet.generateStateSpace(), so the
+ *      result is the same state space with the same state IDs.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.*;
+
+class VectorExplorer {
+
+    private StateSpace stateSpace;
+    private VectorStore store;
+    private Place[] places;
+    private int numPlaces;
+
+    /*
+     * transitions: transitions in the order of Petrinet.getTransitions()
+     * inputIndexes, inputWeights: for each transition, index (in places) of input places and weight of the arcs
+     * changedIndexes, changes: for each transition, places whose number of tokens changes and the change,
+     *                          the non-zero entries of the column of the incidence matrix
+     * */
+    private Transition[] transitions;
+    private int[][] inputIndexes;
+    private int[][] inputWeights;
+    private int[][] changedIndexes;
+    private int[][] changes;
+
+    /**
+     * @param net        Petrinet, isApplicable() must be true
+     * @param stateSpace state space whose visited set is a VectorStore of the places of net
+     */
+    VectorExplorer(Petrinet net, StateSpace stateSpace) {
+
+        this.stateSpace = stateSpace;
+        this.store = (VectorStore) stateSpace.getVisitedSet();
+        this.places = store.getPlaces();
+        this.numPlaces = places.length;
+
+        Map<Integer, Integer> placeIndexes = new HashMap<>();
+        for (int index = 0; index < numPlaces; index++) placeIndexes.put(places[index].getID(), index);
+
+        Collection<Transition> netTransitions = net.getTransitions();
+        int numTransitions = netTransitions.size();
+        this.transitions = netTransitions.toArray(new Transition[0]);
+        this.inputIndexes = new int[numTransitions][];
+        this.inputWeights = new int[numTransitions][];
+        this.changedIndexes = new int[numTransitions][];
+        this.changes = new int[numTransitions][];
+
+        for (int tranIndex = 0; tranIndex < numTransitions; tranIndex++) {
+            Transition transition = transitions[tranIndex];
+            int[] inPlaceIDs = transition.getInPlaceArray();
+            int[] change = new int[numPlaces];
+
+            inputIndexes[tranIndex] = new int[inPlaceIDs.length];
+            inputWeights[tranIndex] = new int[inPlaceIDs.length];
+            for (int i = 0; i < inPlaceIDs.length; i++) {
+                int placeIndex = placeIndexes.get(inPlaceIDs[i]);
+                int weight = transition.getVarNumber(places[placeIndex]);
+                inputIndexes[tranIndex][i] = placeIndex;
+                inputWeights[tranIndex][i] = weight;
+                change[placeIndex] -= weight;
+            }
+
+            for (int outPlaceID : transition.getOutPlaceArray()) {
+                int placeIndex = placeIndexes.get(outPlaceID);
+                change[placeIndex] += transition.getExpressionNumber(places[placeIndex]);
+            }
+
+            int numChanges = 0;
+            for (int value : change) if (value != 0) numChanges++;
+
+            changedIndexes[tranIndex] = new int[numChanges];
+            changes[tranIndex] = new int[numChanges];
+            for (int placeIndex = 0, i = 0; placeIndex < numPlaces; placeIndex++) {
+                if (change[placeIndex] == 0) continue;
+                changedIndexes[tranIndex][i] = placeIndex;
+                changes[tranIndex][i] = change[placeIndex];
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Return true if the state space of net from startState can be generated by VectorExplorer:
+     * all places are counted, markings of startState are counters and no transition has a guard
+     *
+     * @param net        Petrinet
+     * @param startState initial state
+     * @return true if net is a place/transition net
+     */
+    static boolean isApplicable(Petrinet net, State startState) {
+
+        for (Place place : net.getPlaces()) {
+            Marking marking = startState.getMarking(place);
+            if (!place.isCounted() || marking == null || !marking.isCounter()) return false;
+        }
+
+        for (Transition transition : net.getTransitions()) {
+            if (transition.hasGuard()) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Explore all states reachable from startState, states and edges are added to stateSpace, which must be empty
+     *
+     * @param startState initial state
+     */
+    void explore(State startState) {
+
+        int[] parentMarking = new int[numPlaces];
+        int[] marking = new int[numPlaces];
+        stateSpace.putIfAbsent(startState);
+
+        /* state IDs are given in BFS order, the store is the queue */
+        for (int parentID = 0; parentID < store.size(); parentID++) {
+            store.getMarking(parentID, parentMarking);
+
+            for (int tranIndex = 0; tranIndex < transitions.length; tranIndex++) {
+                if (!isEnabled(tranIndex, parentMarking)) continue;
+
+                System.arraycopy(parentMarking, 0, marking, 0, numPlaces);
+                int[] placeIndexes = changedIndexes[tranIndex];
+                int[] placeChanges = changes[tranIndex];
+                for (int i = 0; i < placeIndexes.length; i++) marking[placeIndexes[i]] += placeChanges[i];
+
+                stateSpace.addEdge(parentID, store.add(marking), transitions[tranIndex]);
+            }
+        }
+    }
+
+    private boolean isEnabled(int tranIndex, int[] marking) {
+        int[] placeIndexes = inputIndexes[tranIndex];
+        int[] weights = inputWeights[tranIndex];
+
+        for (int i = 0; i < placeIndexes.length; i++) {
+            if (marking[placeIndexes[i]] < weights[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * File name: VectorStore.java
+ * File Description:
+ *      Visited set of a place/transition net (all markings are counters), used by VectorExplorer
+ *      The marking of a state is an int vector of the number of tokens of each place: vectors are kept in one flat
+ *      int array in the order of state IDs (the BFS order of VectorExplorer, so it is also its queue) and found with
+ *      an open addressing hash table of state IDs. A state costs numPlaces ints plus 2 ints of the table, State
+ *      objects are decoded on demand by get(), with one shared Marking for each (place, number of tokens).
+ *      Offsets are computed in long: the markings array and the table are limited to MAX_ARRAY_SIZE ints, a store
+ *      that would need larger arrays (e.g. about 67M states of a 16-place net for 2^30 ints of markings) throws
+ *      IllegalStateException instead of overflowing.
+ *      VectorStore can be shared by several threads.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+import java.util.Arrays;
+
+class VectorStore implements VisitedSet {
+
+    /* largest int array that the JVMs allocate */
+    static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /*
+     * places: place of each index of the vectors
+     * markings: marking vectors of visited states, numPlaces ints per state, in the order of state IDs
+     * table: open addressing hash table, state ID + 1, 0 for empty slot
+     * counterMarkings: for each place, Marking of each number of tokens, shared by the decoded States
+     * maxArraySize: limit of the length of markings and table
+     * */
+    private Place[] places;
+    private int numPlaces;
+    private int[] markings;
+    private int numStates;
+    private int[] table;
+    private Marking[][] counterMarkings;
+    private int maxArraySize;
+
+    VectorStore(Place[] places) {
+        this(places, MAX_ARRAY_SIZE);
+    }
+
+    /* maxArraySize: smaller limit of the arrays, for testing the limit */
+    VectorStore(Place[] places, int maxArraySize) {
+        this.places = places;
+        this.maxArraySize = maxArraySize;
+        this.numPlaces = places.length;
+        this.markings = new int[Math.max(1, numPlaces) * 1024];
+        this.table = new int[2048];
+        this.counterMarkings = new Marking[numPlaces][0];
+    }
+
+    /* place of each index of the marking vectors */
+    Place[] getPlaces() {
+        return places;
+    }
+
+    /**
+     * Add state if there is no visited state with the same markings
+     *
+     * @param state new state, every place must have a counter marking
+     * @return ID of the visited state with the same markings, -1 if state is new and has been added
+     */
+    @Override
+    public synchronized int putIfAbsent(State state) {
+
+        int[] marking = new int[numPlaces];
+        for (int placeIndex = 0; placeIndex < numPlaces; placeIndex++) {
+            Marking placeMarking = state.getMarking(places[placeIndex]);
+            if (placeMarking == null || !placeMarking.isCounter()) {
+                throw new IllegalArgumentException("Marking of " + places[placeIndex] + " is not a counter");
+            }
+            marking[placeIndex] = placeMarking.size();
+        }
+
+        int h = hash(marking);
+        int stateID = find(marking, h);
+        if (stateID != -1) return stateID;
+
+        state.setID(add(marking, h));
+        return -1;
+    }
+
+    /**
+     * Return the ID of the state whose vector is marking, the marking is added with the next state ID if it has not
+     * been visited
+     *
+     * @param marking number of tokens of each place
+     * @return state ID
+     */
+    synchronized int add(int[] marking) {
+        int h = hash(marking);
+        int stateID = find(marking, h);
+        return (stateID == -1) ? add(marking, h) : stateID;
+    }
+
+    /**
+     * Copy the vector of a visited state to marking
+     *
+     * @param stateID ID of visited state
+     * @param marking array of numPlaces ints
+     */
+    synchronized void getMarking(int stateID, int[] marking) {
+        checkID(stateID);
+        System.arraycopy(markings, getOffset(stateID), marking, 0, numPlaces);
+    }
+
+    @Override
+    public synchronized State get(int stateID) {
+        checkID(stateID);
+
+        State.Builder builder = new State.Builder(new State(-1));
+        for (int placeIndex = 0; placeIndex < numPlaces; placeIndex++) {
+            int count = markings[getOffset(stateID) + placeIndex];
+            builder.setMarking(places[placeIndex], getCounterMarking(placeIndex, count));
+        }
+
+        State state = builder.build();
+        state.setID(stateID);
+        return state;
+    }
+
+    @Override
+    public synchronized int size() {
+        return numStates;
+    }
+
+    /* offset of the vector of a visited state, it fits in an int because the vector is in markings */
+    private int getOffset(int stateID) {
+        return (int) ((long) stateID * numPlaces);
+    }
+
+    private void checkID(int stateID) {
+        if (stateID < 0 || stateID >= numStates) throw new IndexOutOfBoundsException("State ID: " + stateID);
+    }
+
+    private Marking getCounterMarking(int placeIndex, int count) {
+        Marking[] placeMarkings = counterMarkings[placeIndex];
+        if (count >= placeMarkings.length) {
+            placeMarkings = Arrays.copyOf(placeMarkings, Math.max(count + 1, 2 * placeMarkings.length));
+            counterMarkings[placeIndex] = placeMarkings;
+        }
+
+        if (placeMarkings[count] == null) placeMarkings[count] = new Marking(places[placeIndex], count);
+        return placeMarkings[count];
+    }
+
+    private static int hash(int[] marking) {
+        int h = 1;
+        for (int value : marking) h = 31 * h + value;
+        return Utils.mixHash(h);
+    }
+
+    /* ID of the visited state whose vector is marking, -1 if it is not visited */
+    private int find(int[] marking, int h) {
+        int mask = table.length - 1;
+
+        for (int slot = h & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int stateID = table[slot] - 1;
+            if (isEqual(getOffset(stateID), marking)) return stateID;
+        }
+        return -1;
+    }
+
+    private boolean isEqual(int offset, int[] marking) {
+        for (int placeIndex = 0; placeIndex < numPlaces; placeIndex++) {
+            if (markings[offset + placeIndex] != marking[placeIndex]) return false;
+        }
+        return true;
+    }
+
+    private int add(int[] marking, int h) {
+
+        long length = (long) (numStates + 1) * numPlaces;
+        if (length > markings.length) {
+            checkSize(length, "markings");
+            markings = Arrays.copyOf(markings, (int) Math.max(length, Math.min(2L * markings.length, maxArraySize)));
+        }
+        if (2L * (numStates + 1) > table.length) checkSize(2L * table.length, "hash table");
+
+        int stateID = numStates++;
+        System.arraycopy(marking, 0, markings, getOffset(stateID), numPlaces);
+
+        if (2L * numStates > table.length) rehash();
+        else insert(stateID, h);
+
+        return stateID;
+    }
+
+    private void checkSize(long length, String array) {
+        if (length > maxArraySize) {
+            throw new IllegalStateException(String.format("State space too large for VectorStore: %d states of "
+                    + "%d places need a %s of %d ints, more than %d", numStates + 1, numPlaces, array, length,
+                    maxArraySize));
+        }
+    }
+
+    private void insert(int stateID, int h) {
+        int mask = table.length - 1;
+        int slot = h & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = stateID + 1;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int[] marking = new int[numPlaces];
+
+        for (int stateID = 0; stateID < numStates; stateID++) {
+            System.arraycopy(markings, getOffset(stateID), marking, 0, numPlaces);
+            insert(stateID, hash(marking));
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("VectorStore: states = %d, places = %d, memory = %d KB",
+                numStates, numPlaces, (4L * (markings.length + table.length)) >>> 10);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * File name: VisitedSet.java
+ * File Description:
+ *      Visited states of a state space exploration: duplicate detection and dense state IDs
+ *      StateStore keeps every state (decodable by ID), VectorStore keeps the states of place/transition nets as int
+ *      vectors, FingerprintSet only keeps a fingerprint of each state (hash compaction).
+ *      Implementations can be shared by several threads.
+ *
+ * Copyright (c) 2019 - Ferdon Vietnam Limited
+ * Author: Nguyen The Thong
+ */
+
+package io.ferdon.statespace;
+
+interface VisitedSet {
+
+    /**
+     * Add state if there is no visited state with the same markings
+     *
+     * @param state new state, its ID is assigned if it is added
+     * @return ID of the visited state with the same markings, -1 if state is new and has been added
+     */
+    int putIfAbsent(State state);
+
+    /**
+     * Return a visited state
+     *
+     * @param stateID ID of visited state
+     * @return State with the markings of the visited state
+     * @throws UnsupportedOperationException if the states are not kept
+     */
+    State get(int stateID);
+
+    int size();
+}
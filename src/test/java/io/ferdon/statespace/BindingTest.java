@@ -1,5 +1,286 @@
 package io.ferdon.statespace;
 
+import com.google.common.collect.HashMultiset;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
 public class BindingTest {
 
+    private Transition transition;
+    private Place place01;
+    private Place place02;
+
+    @Before
+    public void setUp() {
+        transition = new Transition(0);
+        place01 = new Place(0);
+        place02 = new Place(1);
+    }
+
+    private Token token(String... values) {
+        return Token.valueOf(Arrays.asList(values));
+    }
+
+    private Marking marking(Place place, Token... tokens) {
+        Marking marking = new Marking(place);
+        for (Token token : tokens) marking = marking.addToken(token, 1);
+        return marking;
+    }
+
+    private void addInputPlace(Place place, String... vars) {
+        transition.addInputPlace(place, new Edge(place, transition, Arrays.asList(vars), 1));
+    }
+
+    @Test
+    public void testSharedVariableJoin() {
+        addInputPlace(place01, "x", "s");
+        addInputPlace(place02, "x");
+
+        Marking marking01 = marking(place01, token("1", "'a'"), token("2", "'b'"), token("3", "'c'"));
+        Marking marking02 = marking(place02, token("1"), token("3"), token("4"));
+
+        List<Binding> bindings = Utils.generateAllBinding(Arrays.asList(marking01, marking02), transition);
+        assertEquals(2, bindings.size());
+
+        for (Binding b : bindings) {
+            Map<String, String> vars = b.getVarMapping();
+            assertNotNull(vars);
+            assertEquals(b.getToken(place02).get(0), vars.get("x"));
+        }
+    }
+
+    @Test
+    public void testIndependentPlaces() {
+        addInputPlace(place01, "x");
+        addInputPlace(place02, "y");
+
+        Marking marking01 = marking(place01, token("1"), token("2"));
+        Marking marking02 = marking(place02, token("1"), token("2"), token("3"));
+
+        List<Binding> bindings = Utils.generateAllBinding(Arrays.asList(marking01, marking02), transition);
+        assertEquals(6, bindings.size());
+    }
+
+    @Test
+    public void testRepeatedVariableOnArc() {
+        addInputPlace(place01, "x", "x");
+
+        Marking marking01 = marking(place01, token("1", "1"), token("1", "2"));
+
+        List<Binding> bindings = Utils.generateAllBinding(Arrays.asList(marking01), transition);
+        assertEquals(1, bindings.size());
+        assertEquals(token("1", "1"), bindings.get(0).getToken(place01));
+    }
+
+    @Test
+    public void testRepeatedTokenGivesOneBinding() {
+        addInputPlace(place01, "x", "s");
+
+        Marking marking01 = marking(place01, token("1", "'a'")).addToken(token("1", "'a'"), 4);
+        assertEquals(5, marking01.size());
+
+        List<Binding> bindings = Utils.generateAllBinding(Arrays.asList(marking01), transition);
+        assertEquals(1, bindings.size());
+    }
+
+    @Test
+    public void testMultiplicityLessThanArcWeight() {
+        transition.addInputPlace(place01, new Edge(place01, transition, Arrays.asList("x"), 3));
+
+        Marking marking01 = marking(place01, token("1"), token("2")).addToken(token("2"), 2);
+
+        List<Binding> bindings = Utils.generateAllBinding(Arrays.asList(marking01), transition);
+        assertEquals(1, bindings.size());
+        assertEquals(token("2"), bindings.get(0).getToken(place01));
+    }
+
+    @Test
+    public void testEmptyPlace() {
+        addInputPlace(place01, "x");
+        addInputPlace(place02, "y");
+
+        Marking marking01 = marking(place01, token("1"));
+        Marking marking02 = marking(place02);
+
+        List<Binding> bindings = Utils.generateAllBinding(Arrays.asList(marking01, marking02), transition);
+        assertTrue(bindings.isEmpty());
+    }
+
+    @Test
+    public void testNoInputPlace() {
+        List<Binding> bindings = Utils.generateAllBinding(new ArrayList<>(), transition);
+        assertEquals(1, bindings.size());
+    }
+
+    @Test
+    public void testSplitGuard() {
+        List<GuardConjunct> conjuncts = GuardConjunct.split("x 1 > x y + 5 == && s 'a' == &&");
+        assertEquals(3, conjuncts.size());
+        assertEquals("x 1 >", conjuncts.get(0).getExpression());
+        assertEquals("x y + 5 ==", conjuncts.get(1).getExpression());
+        assertEquals(new HashSet<>(Arrays.asList("x", "y")), conjuncts.get(1).getVars());
+        assertEquals("s 'a' ==", conjuncts.get(2).getExpression());
+    }
+
+    @Test
+    public void testSplitGuardWithoutConjunction() {
+        List<GuardConjunct> conjuncts = GuardConjunct.split("x 1 > x 3 < ||");
+        assertEquals(1, conjuncts.size());
+        assertEquals("x 1 > x 3 < ||", conjuncts.get(0).getExpression());
+    }
+
+    @Test
+    public void testFireableBindingWithGuard() {
+        addInputPlace(place01, "x");
+        addInputPlace(place02, "y");
+        transition.addGuard("x 1 > x y + 5 == &&");
+
+        place01.setMarking(marking(place01, token("1"), token("2"), token("3")));
+        place02.setMarking(marking(place02, token("2"), token("3"), token("4")));
+
+        List<Binding> bindings = transition.getFireableBinding(new EvaluationContext());
+        assertEquals(2, bindings.size());
+        for (Binding b : bindings) {
+            int x = Integer.parseInt(b.getToken(place01).get(0));
+            int y = Integer.parseInt(b.getToken(place02).get(0));
+            assertTrue(x > 1);
+            assertEquals(5, x + y);
+        }
+    }
+
+    @Test
+    public void testBindingIteratorCursor() {
+        addInputPlace(place01, "x");
+        addInputPlace(place02, "y");
+        transition.addGuard("x y + 5 ==");
+
+        Marking marking01 = marking(place01, token("1"), token("2"), token("3"));
+        Marking marking02 = marking(place02, token("2"), token("3"), token("7"));
+
+        /* tokens are indexed in the order of the given markings */
+        BindingIterator bindings = new BindingIterator(transition, Arrays.asList(marking02, marking01),
+                new EvaluationContext());
+        int numBindings = 0;
+        while (bindings.advance()) {
+            int x = Integer.parseInt(bindings.getToken(1).get(0));
+            int y = Integer.parseInt(bindings.getToken(0).get(0));
+            assertEquals(5, x + y);
+            assertEquals(bindings.getToken(1).get(0), bindings.getVarMapping().get("x"));
+            assertEquals(bindings.getToken(0), bindings.getBinding().getToken(place02));
+            numBindings++;
+        }
+        assertEquals(2, numBindings);
+        assertFalse(bindings.advance());
+
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking01);
+        data.put(place02, marking(place02, token("7")));
+        assertFalse(transition.isEnabled(new State(data), new EvaluationContext()));
+
+        data.put(place02, marking02);
+        assertTrue(transition.isEnabled(new State(data), new EvaluationContext()));
+    }
+
+    @Test
+    public void testFiringIteratorReusesFiring() {
+        addInputPlace(place01, "x");
+        transition.addOutputPlace(place02, new Edge(transition, place02, Arrays.asList("x 1 +"), 1));
+
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking(place01, token("1"), token("2"), token("3")));
+        data.put(place02, marking(place02));
+        State state = new State(data);
+
+        FiringIterator cursor = transition.getFiringIterator(state, new EvaluationContext());
+        List<Firing> copies = new ArrayList<>();
+        while (cursor.advance()) {
+            Firing firing = cursor.getFiring();
+            int x = Integer.parseInt(firing.getConsumedToken(0).get(0));
+            assertEquals(token(String.valueOf(x + 1)), firing.getProducedToken(0));
+            copies.add(cursor.copyFiring());
+            assertSame(firing, cursor.getFiring());
+            assertNotSame(firing, copies.get(copies.size() - 1));
+        }
+
+        assertEquals(3, copies.size());
+        assertEquals(3, new HashSet<>(Arrays.asList(copies.get(0).getConsumedToken(0),
+                copies.get(1).getConsumedToken(0), copies.get(2).getConsumedToken(0))).size());
+    }
+
+    @Test
+    public void testExpressionCacheByUsedVariables() {
+        addInputPlace(place01, "x", "s");
+        transition.addOutputPlace(place02, new Edge(transition, place02, Arrays.asList("x 1 +"), 1));
+
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking(place01, token("1", "'a'"), token("1", "'b'"), token("2", "'c'")));
+        data.put(place02, marking(place02));
+
+        List<Firing> firings = transition.getFirings(new State(data), new EvaluationContext());
+        assertEquals(3, firings.size());
+
+        List<Token> produced = new ArrayList<>();
+        for (Firing firing : firings) produced.add(firing.getProducedToken(0));
+        assertEquals(2, Collections.frequency(produced, token("2")));
+        assertEquals(1, Collections.frequency(produced, token("3")));
+
+        ExpressionCache cache = transition.getExpressionCaches().iterator().next();
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testExpressionCacheByStringSlot() {
+        addInputPlace(place01, "x", "s");
+        transition.addOutputPlace(place02, new Edge(transition, place02, Arrays.asList("s"), 1));
+
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking(place01, token("1", "'a'"), token("2", "'a'"), token("3", "'b'")));
+        data.put(place02, marking(place02));
+
+        List<Firing> firings = transition.getFirings(new State(data), new EvaluationContext());
+        assertEquals(3, firings.size());
+
+        ExpressionCache cache = transition.getExpressionCaches().iterator().next();
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testIncrementalStateHash() {
+        addInputPlace(place01, "x", "s");
+        transition.addOutputPlace(place01, new Edge(transition, place01, Arrays.asList("x 1 +, s"), 1));
+        transition.addOutputPlace(place02, new Edge(transition, place02, Arrays.asList("x"), 2));
+
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking(place01, token("1", "'a'"), token("1", "'a'"), token("2", "'b'")));
+        data.put(place02, marking(place02, token("2")));
+        State state = new State(data);
+
+        for (Firing firing : transition.getFirings(state, new EvaluationContext())) {
+            State childState = transition.fire(state, firing);
+            State copyState = new State(new HashMap<>(childState.getMarkingMap()));
+            assertEquals(copyState.hashCode(), childState.hashCode());
+            assertEquals(copyState.getFingerprint(), childState.getFingerprint());
+            assertEquals(copyState, childState);
+
+            for (Marking marking : childState.getMarkingMap().values()) {
+                Marking copy = new Marking(HashMultiset.create(marking.getTokenList()), marking.getPlace());
+                assertEquals(copy.hashCode(), marking.hashCode());
+                assertEquals(copy.getFingerprint(), marking.getFingerprint());
+            }
+        }
+    }
 }
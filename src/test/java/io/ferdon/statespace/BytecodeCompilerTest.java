@@ -0,0 +1,98 @@
+package io.ferdon.statespace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BytecodeCompilerTest {
+
+    private Map<String, String> vars = new HashMap<>();
+    private Map<String, Integer> varSlots = new HashMap<>();
+    private EvaluationContext context = new EvaluationContext();
+
+    @Before
+    public void setUp() {
+        BytecodeCompiler.setEnabled(true);
+        vars.put("a", "3");
+        vars.put("b", "2");
+        vars.put("r", "2.5");
+        vars.put("t", "True");
+    }
+
+    @After
+    public void tearDown() {
+        BytecodeCompiler.setEnabled(false);
+    }
+
+    private void bindSlots() {
+        context.reset(varSlots.size());
+        for (Map.Entry<String, Integer> varSlot : varSlots.entrySet()) {
+            context.setSlot(varSlot.getValue(), vars.get(varSlot.getKey()), vars);
+        }
+    }
+
+    private void assertSameAsInterpreter(String expression) {
+        CompiledExpression compiled = CompiledExpression.compile(expression, varSlots);
+        bindSlots();
+
+        Interpreter.Value expected = new Interpreter().interpret(expression.trim().split(" "), vars);
+        assertEquals(expression, expected.getString(), compiled.evaluateString(context));
+        assertEquals(expression, expected.getBoolean(), compiled.evaluateBoolean(context));
+        assertNotNull(expression, compiled.getCode(context));
+    }
+
+    /* expressions of InterpreterTest on integers, reals and booleans */
+    @Test
+    public void testInterpreterTestExpressions() {
+        String[] expressions = {
+                "-2 -1 +", "-2 -1 -", "-2 1 +", "-2", "-4.4 -3.99 >=", "-5.0 -10.0 <=", "-5.0 10.0 <=", "0", "0.0",
+                "1 1 == 3 if", "1 2 + 3 + 4 + 5 + 6 - 7 - 8 - 9 2 * -", "1 2 + a ==", "1 2 + a b - ==", "1 5 +",
+                "1.1 2.2 + 3.3 + 4.4 +", "10 5 <", "10.0 2 / 2 / 2 / 2 / 2 /", "10.012345 5.9999999999999999 <",
+                "1324123 1234123 + 12341234 + 12341234 12341234 + +", "2 1 1 + != 4 10 * 2 4 * ifelse",
+                "2 5 * 3 + 2 8 4 2 / / * - 3 3 * +", "2.123", "3 4 >", "3.9 4.0 >",
+                "33 32 + 432 322 917 - * 3 * + 1 - 1 - 12 12 12 12 2 - + + + +", "4 3 >=", "5 10 !=", "5 10 <=",
+                "5 10 ==", "5.0 10.0 !=", "5.0 10.0 ==", "5.3 1.2 %", "5.3 1.32 + 2.31 * 5.3 4 * - 12 + 2 -", "6 3 %",
+                "False !", "False True ! ==", "False True &&", "False True ^", "False True ||", "False isFalse",
+                "False isTrue", "False", "True True == True False != ||", "True True ^", "True"
+        };
+        for (String expression : expressions) assertSameAsInterpreter(expression);
+    }
+
+    @Test
+    public void testMixedTypes() {
+        String[] expressions = {"a r *", "r a *", "a r ==", "r 2 / a >", "t a b > && r 1.0 ifelse", "a b % 1 -"};
+        for (String expression : expressions) assertSameAsInterpreter(expression);
+    }
+
+    @Test
+    public void testSlotTypeChange() {
+        CompiledExpression compiled = CompiledExpression.compile("a 2 * 5 >", varSlots);
+        bindSlots();
+        assertTrue(compiled.evaluateBoolean(context));
+
+        /* the code is specialized for an integer a, a real a runs the primitive program */
+        vars.put("a", "2.4");
+        bindSlots();
+        assertFalse(compiled.evaluateBoolean(context));
+        assertEquals("false", compiled.evaluateString(context));
+    }
+
+    @Test
+    public void testNotCompiled() {
+        CompiledExpression compiled = CompiledExpression.compile("True True >", varSlots);
+        bindSlots();
+        assertNull(compiled.getCode(context));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testDivisionByZero() {
+        CompiledExpression compiled = CompiledExpression.compile("a b b - /", varSlots);
+        bindSlots();
+        compiled.evaluateBoolean(context);
+    }
+}
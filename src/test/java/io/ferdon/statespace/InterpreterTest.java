@@ -4,8 +4,14 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
+import java.util.EmptyStackException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -568,4 +574,119 @@ public class InterpreterTest {
         thrown.expectMessage("Syntax Error");
         Interpreter.Value res = interpreter.interpretFromString(expression, vars);
     }
+
+    @Test
+    public void testCompiledExpressionWithSlots() {
+        Map<String, Integer> varSlots = new HashMap<>();
+        CompiledExpression compiled = CompiledExpression.compile("x y + 5 == s 'a' == &&", varSlots);
+        assertEquals(3, varSlots.size());
+        assertEquals(Interpreter.ValueType.BOOLEAN, compiled.getType());
+
+        Interpreter.Value[] slots = new Interpreter.Value[varSlots.size()];
+        slots[varSlots.get("x")] = new Interpreter.IntegerExpression(2);
+        slots[varSlots.get("y")] = new Interpreter.IntegerExpression(3);
+        slots[varSlots.get("s")] = new Interpreter.StringExpression("'a'");
+        assertTrue(compiled.evaluate(slots).getBoolean());
+
+        slots[varSlots.get("y")] = new Interpreter.IntegerExpression(4);
+        assertFalse(compiled.evaluate(slots).getBoolean());
+    }
+
+    @Test
+    public void testCompiledExpressionMatchesInterpret() {
+        vars.put("a", "True");
+        vars.put("b", "'thong'");
+        vars.put("c", "c2");
+        vars.put("c2", "7");
+
+        String[] expressions = {
+                "2 5 * 3 + 2 8 4 2 / / * - 3 3 * +", "1.5 2 * 3 -", "7 2 %", "a ! b isEmpty ||",
+                "b '_nguyen' append trim", "b 1 3 substr", "c 7 == 1 2 ifelse", "1 1 == 3 if", "1 2", "+5 -3 *"
+        };
+        for (String e : expressions) {
+            Interpreter.Value compiled = interpreter.interpretFromString(e, vars);
+            Interpreter.Value interpreted = new Interpreter().interpret(e.split(" "), vars);
+            assertEquals(e, interpreted.getString(), compiled.getString());
+        }
+    }
+
+    @Test
+    public void testValueTypeGrammar() {
+        String[] tokens = {"0", "-0", "+12", "007", "1.", ".5", "-2.50", "1.2.3", "True", "'a'", "'", "[]", "_x1", "1x", "$"};
+        for (String token : tokens) {
+            Interpreter.ValueType expected = null;
+            if (token.matches("^([+-]?[1-9]\\d*|0)$")) expected = Interpreter.ValueType.INTEGER;
+            else if (token.equals("True")) expected = Interpreter.ValueType.BOOLEAN;
+            else if (token.matches("[+-]?([0-9]*[.])?[0-9]+")) expected = Interpreter.ValueType.REAL;
+            else if (token.equals("[]") || token.startsWith("'") && token.endsWith("'")) expected = Interpreter.ValueType.STRING;
+            else if (token.matches("^[a-zA-Z_$][a-zA-Z_$0-9]*$")) expected = Interpreter.ValueType.VARIABLE;
+            assertEquals(token, expected, Interpreter.getValueType(token));
+        }
+    }
+
+    @Test
+    public void testCompiledExpressionErrorOnEvaluate() {
+        CompiledExpression compiled = CompiledExpression.compile("1 +", new HashMap<>());
+        thrown.expect(EmptyStackException.class);
+        compiled.evaluate(new Interpreter.Value[0]);
+    }
+
+    @Test
+    public void testPrimitiveEvaluationMatchesTree() {
+        Map<String, Integer> varSlots = new HashMap<>();
+        String[] expressions = {
+                "x y + 5 ==", "x r * 2 /", "r x -", "x 3 % 0 != b &&", "b ! b ^", "r 2.5 > 1 2 ifelse",
+                "x y <= b ==", "b isTrue x if", "x 1.9 ==", "s 'a' ==", "x 2 1 1 == 4 if *"
+        };
+        CompiledExpression[] compiled = new CompiledExpression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) compiled[i] = CompiledExpression.compile(expressions[i], varSlots);
+
+        vars.put("x", "1");
+        vars.put("y", "4");
+        vars.put("r", "2.5");
+        vars.put("b", "True");
+        vars.put("s", "'a'");
+
+        EvaluationContext context = new EvaluationContext();
+        context.reset(varSlots.size());
+        for (Map.Entry<String, Integer> varSlot : varSlots.entrySet()) {
+            context.setSlot(varSlot.getValue(), vars.get(varSlot.getKey()), vars);
+        }
+
+        for (int i = 0; i < expressions.length; i++) {
+            Interpreter.Value expected = interpreter.interpretFromString(expressions[i], vars);
+            assertEquals(expressions[i], expected.getString(), compiled[i].evaluateString(context));
+            assertEquals(expressions[i], expected.getBoolean(), compiled[i].evaluateBoolean(context));
+        }
+    }
+
+    @Test
+    public void testPrimitiveEvaluationError() {
+        CompiledExpression compiled = CompiledExpression.compile("1 0 /", new HashMap<>());
+        thrown.expect(ArithmeticException.class);
+        compiled.evaluateBoolean(new EvaluationContext());
+    }
+
+    @Test
+    public void testSharedInterpreterFromSeveralThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        for (int thread = 0; thread < 4; thread++) {
+            int offset = thread;
+            results.add(executor.submit(() -> {
+                Map<String, String> threadVars = new HashMap<>();
+                for (int i = 0; i < 2000; i++) {
+                    threadVars.put("a", String.valueOf(i + offset));
+                    int res = interpreter.interpretFromString("a 2 * 1 +", threadVars).getInt();
+                    int stackRes = interpreter.interpret("a 3 *".split(" "), threadVars).getInt();
+                    if (res != 2 * (i + offset) + 1 || stackRes != 3 * (i + offset)) return false;
+                }
+                return true;
+            }));
+        }
+
+        for (Future<Boolean> result : results) assertTrue(result.get());
+        executor.shutdown();
+    }
 }
@@ -0,0 +1,513 @@
+package io.ferdon.statespace;
+
+import org.apache.avro.Schema;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.example.GroupReadSupport;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class PetrinetTest {
+
+    /* numCycles independent cycles of 3 places, numTokens unit tokens on the first place of each cycle */
+    private Petrinet createCycleNet(int numCycles, int numTokens) {
+        return createCycleNet(numCycles, numTokens, "");
+    }
+
+    private Petrinet createCycleNet(int numCycles, int numTokens, String guard) {
+
+        int numPlaces = 3 * numCycles;
+        String[] markings = new String[numPlaces];
+        String[] guards = new String[numPlaces];
+        Object[][][] expressions = new Object[numPlaces][][];
+        Object[][][] variables = new Object[numPlaces][][];
+
+        for (int cycle = 0; cycle < numCycles; cycle++) {
+            for (int i = 0; i < 3; i++) {
+                int placeID = 3 * cycle + i;
+                markings[placeID] = (i == 0) ? numTokens + "~[]" : "";
+                guards[placeID] = guard;
+                variables[placeID] = new Object[][]{{placeID, "[]"}};
+                expressions[placeID] = new Object[][]{{3 * cycle + (i + 1) % 3, "[]"}};
+            }
+        }
+
+        return new Petrinet(numPlaces, new HashMap<>(), new int[0][], new int[0][],
+                markings, guards, expressions, variables);
+    }
+
+    /*
+     * place/transition net: a producer and 2 consumers share a buffer of 3 slots under a mutex, a consumer takes
+     * 2 items at once (arc weight 2), 24 states and 45 edges
+     * */
+    private Petrinet createProducerConsumerNet() {
+        return new Petrinet(4, new HashMap<>(), new int[0][], new int[0][],
+                new String[]{"1~[]", "", "", "3~[]", "2~[]", "", "1~[]"},
+                new String[]{"", "", "", ""},
+                new Object[][][]{{{1, "[]"}}, {{0, "[]"}, {2, "[]"}, {6, "[]"}},
+                        {{5, "[]"}, {3, "2~[]"}, {6, "[]"}}, {{4, "[]"}}},
+                new Object[][][]{{{0, "[]"}}, {{1, "[]"}, {3, "[]"}, {6, "[]"}},
+                        {{4, "[]"}, {2, "2~[]"}, {6, "[]"}}, {{5, "[]"}}});
+    }
+
+    /*
+     * colored net with typed tokens, guards and arc expressions: a counter x is moved to a list of values,
+     * which are summed into n while the sum is less than 5, a keyed STRING token subtracts its key once,
+     * 26 states and 49 edges
+     * */
+    private Petrinet createColoredNet() {
+        Map<String, String> placeToColor = new HashMap<>();
+        placeToColor.put("0", "INT");
+        placeToColor.put("1", "INT");
+        placeToColor.put("2", "INT");
+        placeToColor.put("3", "INT*STRING");
+
+        return new Petrinet(3, placeToColor, new int[0][], new int[0][],
+                new String[]{"3", "", "0", "1,'a'"},
+                new String[]{"x 0 >", "y n + 5 <", "s 'a' =="},
+                new Object[][][]{{{0, "x 1 -"}, {1, "x"}}, {{2, "n y +"}}, {{2, "n k -"}}},
+                new Object[][][]{{{0, "x"}}, {{1, "y"}, {2, "n"}}, {{3, "k,s"}, {2, "n"}}});
+    }
+
+    /* keeps the states and edges given by an exploration, by state key (state ID or fingerprint) */
+    private static class KeyedListener implements StateSpaceListener {
+        Map<Long, State> states = new HashMap<>();
+        Map<Long, Set<Long>> edges = new HashMap<>();
+        int numEdgeCalls;
+
+        public void stateFound(long stateKey, State state) {
+            assertNull(states.put(stateKey, state));
+        }
+
+        public void edgeFound(long parentKey, long childKey, Transition transition) {
+            edges.computeIfAbsent(parentKey, k -> new HashSet<>()).add(childKey);
+            numEdgeCalls++;
+        }
+    }
+
+    /* exploration mode under test, with its own checks: states and edges go to listener or stay in StateSpace */
+    private interface Exploration {
+        void explore(Petrinet net, KeyedListener listener, StateSpace heapSpace) throws Exception;
+    }
+
+    /*
+     * explore the P/T net and the colored net with a mode, the states and edges must be those of the state space
+     * generated on the heap
+     * */
+    private void assertSameAsHeap(Exploration exploration) throws Exception {
+        List<Supplier<Petrinet>> nets = Arrays.asList(this::createProducerConsumerNet, this::createColoredNet);
+        for (Supplier<Petrinet> createNet : nets) {
+            StateSpace heapSpace = generateOnHeap(createNet.get());
+            Petrinet net = createNet.get();
+            KeyedListener listener = new KeyedListener();
+            exploration.explore(net, listener, heapSpace);
+
+            if (listener.states.isEmpty()) {
+                /* kept in StateSpace, with the state IDs of the heap */
+                assertEquals(heapSpace.getNumState(), net.getStateSpace().getNumState());
+                assertEquals(heapSpace.getEdges(), net.getStateSpace().getEdges());
+            } else {
+                assertSameGraph(heapSpace, listener);
+            }
+        }
+    }
+
+    /* same states and edges as heapSpace, keys of listener are translated to heap state IDs */
+    private void assertSameGraph(StateSpace heapSpace, KeyedListener listener) {
+        assertEquals(heapSpace.getNumState(), listener.states.size());
+
+        Map<State, Integer> heapIDs = new HashMap<>();
+        for (int stateID = 0; stateID < heapSpace.getNumState(); stateID++) {
+            heapIDs.put(heapSpace.getState(stateID), stateID);
+        }
+
+        Map<Integer, Set<Integer>> edges = new HashMap<>();
+        listener.edges.forEach((parentKey, childKeys) -> {
+            Set<Integer> childIDs = new HashSet<>();
+            for (long childKey : childKeys) childIDs.add(heapIDs.get(listener.states.get(childKey)));
+            edges.put(heapIDs.get(listener.states.get(parentKey)), childIDs);
+        });
+        assertEquals(heapSpace.getEdges(), edges);
+    }
+
+    /* net explored on the heap by generateStateSpace(), the reference of the other exploration modes */
+    private StateSpace generateOnHeap(Petrinet net) {
+        net.generateStateSpace(net.generateCurrentState());
+        return net.getStateSpace();
+    }
+
+    /* records of a parquet file, read without Avro: lists of tokens are read as groups "array" of token groups */
+    private List<Group> readParquet(Path file) throws IOException {
+        List<Group> records = new ArrayList<>();
+        try (ParquetReader<Group> reader = ParquetReader
+                .builder(new GroupReadSupport(), new org.apache.hadoop.fs.Path(file.toString())).build()) {
+            for (Group record = reader.read(); record != null; record = reader.read()) records.add(record);
+        }
+        return records;
+    }
+
+    private void deleteDirectory(Path directory) throws IOException {
+        for (File file : directory.toFile().listFiles()) Files.delete(file.toPath());
+        Files.delete(directory);
+    }
+
+    private int countEdges(StateSpace stateSpace) {
+        return countEdges(stateSpace.getEdges());
+    }
+
+    private int countEdges(Map<Integer, Set<Integer>> edges) {
+        int numEdges = 0;
+        for (Set<Integer> childIDs : edges.values()) numEdges += childIDs.size();
+        return numEdges;
+    }
+
+    private Map<Integer, Place> placesOf(Petrinet net) {
+        Map<Integer, Place> places = new HashMap<>();
+        for (Place place : net.getPlaces()) places.put(place.getID(), place);
+        return places;
+    }
+
+    @Test
+    public void testSuccessorNotModifyPlaces() {
+        Petrinet net = createCycleNet(1, 2);
+        State state = net.generateCurrentState();
+        Transition transition = net.getTransition(0);
+
+        List<Binding> bindings = transition.getFireableBinding(state, new EvaluationContext());
+        assertFalse(bindings.isEmpty());
+
+        State childState = net.successor(state, transition, bindings.get(0));
+        assertEquals(2, net.getPlace(0).getMarking().size());
+        assertEquals(2, state.getMarking(net.getPlace(0)).size());
+        assertEquals(1, childState.getMarking(net.getPlace(0)).size());
+        assertEquals(1, childState.getMarking(net.getPlace(1)).size());
+        assertSame(state.getMarking(net.getPlace(2)), childState.getMarking(net.getPlace(2)));
+    }
+
+    @Test
+    public void testGenerateStateSpace() {
+        Petrinet net = createCycleNet(2, 3);
+        net.generateStateSpace(net.generateCurrentState());
+
+        /* C(5, 2) distributions of 3 tokens over 3 places, for each cycle */
+        assertEquals(100, net.getStateSpace().getNumState());
+        assertEquals(360, countEdges(net.getStateSpace()));
+    }
+
+    @Test
+    public void testGenerateStateSpaceParallel() {
+        Petrinet sequentialNet = createCycleNet(2, 3);
+        sequentialNet.generateStateSpace(sequentialNet.generateCurrentState());
+
+        Petrinet parallelNet = createCycleNet(2, 3);
+        parallelNet.generateStateSpaceParallel(parallelNet.generateCurrentState(), 4);
+
+        StateSpace sequentialSpace = sequentialNet.getStateSpace();
+        StateSpace parallelSpace = parallelNet.getStateSpace();
+        assertEquals(sequentialSpace.getNumState(), parallelSpace.getNumState());
+        assertEquals(countEdges(sequentialSpace), countEdges(parallelSpace));
+        assertEquals(0, parallelSpace.getState(0).getID());
+    }
+
+    @Test
+    public void testUnitPlacesAreCounted() {
+        Petrinet net = createCycleNet(1, 2);
+        for (int placeID = 0; placeID < 3; placeID++) {
+            assertTrue(net.getPlace(placeID).isCounted());
+            assertTrue(net.getPlace(placeID).getMarking().isCounter());
+        }
+
+        Marking marking = net.getPlace(0).getMarking();
+        assertEquals(2, marking.getNumToken(Token.unit()));
+        assertEquals("[],[]", marking.toString());
+    }
+
+    @Test
+    public void testArcWeightOfCountedPlace() {
+        Petrinet net = new Petrinet(1, new HashMap<>(), new int[0][], new int[0][],
+                new String[]{"3~[]", ""}, new String[]{""},
+                new Object[][][]{{{1, "[]"}}}, new Object[][][]{{{0, "2~[]"}}});
+        net.generateStateSpace(net.generateCurrentState());
+
+        /* (3, 0) -> (1, 1), then 1 token is less than the weight of the arc */
+        assertEquals(2, net.getStateSpace().getNumState());
+    }
+
+    @Test
+    public void testVectorExplorerMatchesBindings() {
+        Petrinet vectorNet = createCycleNet(2, 3);
+        State startState = vectorNet.generateCurrentState();
+        assertTrue(VectorExplorer.isApplicable(vectorNet, startState));
+        vectorNet.generateStateSpace(startState);
+
+        /* a guard that always passes, the net is explored with bindings */
+        Petrinet bindingNet = createCycleNet(2, 3, "1 1 ==");
+        assertFalse(VectorExplorer.isApplicable(bindingNet, bindingNet.generateCurrentState()));
+        bindingNet.generateStateSpace(bindingNet.generateCurrentState());
+
+        StateSpace vectorSpace = vectorNet.getStateSpace();
+        StateSpace bindingSpace = bindingNet.getStateSpace();
+        assertTrue(vectorSpace.getVisitedSet() instanceof VectorStore);
+        assertEquals(bindingSpace.getNumState(), vectorSpace.getNumState());
+        assertEquals(bindingSpace.getEdges(), vectorSpace.getEdges());
+        for (int stateID = 0; stateID < vectorSpace.getNumState(); stateID++) {
+            for (int placeID = 0; placeID < vectorNet.getNumPlaces(); placeID++) {
+                Marking vectorMarking = vectorSpace.getState(stateID).getMarking(vectorNet.getPlace(placeID));
+                Marking bindingMarking = bindingSpace.getState(stateID).getMarking(bindingNet.getPlace(placeID));
+                assertEquals(bindingMarking.size(), vectorMarking.size());
+            }
+        }
+    }
+
+    @Test
+    public void testFiringCache() {
+        Petrinet net = createCycleNet(1, 2, "1 1 ==");
+        State state = net.generateCurrentState();
+        EvaluationContext context = new EvaluationContext();
+        List<Transition> transitions = new ArrayList<>(net.getTransitions());
+
+        FiringCache cache = new FiringCache(1);
+        List<Firing> firings = cache.getFirings(transitions.get(0), state, context);
+        assertSame(firings, cache.getFirings(transitions.get(0), state, context));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.getFirings(transitions.get(1), state, context);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.size());
+
+        net.generateStateSpace(state);
+        assertEquals(6, net.getStateSpace().getNumState());
+        assertTrue(net.getFiringCacheStatistics().startsWith("FiringCache:"));
+    }
+
+    @Test
+    public void testFiringCacheSharedByThreads() throws Exception {
+        Petrinet net = createCycleNet(1, 2, "1 1 ==");
+        State state = net.generateCurrentState();
+        List<Transition> transitions = new ArrayList<>(net.getTransitions());
+        FiringCache cache = new FiringCache(2);
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                EvaluationContext context = new EvaluationContext();
+                for (int j = 0; j < 1000; j++) cache.getFirings(transitions.get(j % 3), state, context);
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(4000, cache.getHitCount() + cache.getMissCount());
+        assertTrue(cache.size() <= 2);
+    }
+
+    @Test
+    public void testBitState() throws Exception {
+        assertSameAsHeap((net, listener, heapSpace) -> {
+            net.generateStateSpaceBitState(net.generateCurrentState(), 20, 3, listener);
+
+            /* keyed by fingerprint, nothing is kept in StateSpace, no omission is expected with 2^20 bits */
+            listener.states.forEach((key, state) -> assertEquals(state.getFingerprint(), (long) key));
+            assertEquals(0, net.getStateSpace().getNumState());
+            assertTrue(net.getBitStateStatistics()
+                    .startsWith("BitStateSet: states = " + heapSpace.getNumState() + ","));
+        });
+    }
+
+    @Test
+    public void testBitStateSetOmission() {
+        BitStateSet visited = new BitStateSet(6, 1);
+        assertTrue(visited.add(5, 0));
+        assertFalse(visited.add(5, 7));
+        assertFalse(visited.add(64 + 5, 0));  /* same bit: omitted */
+        assertEquals(1, visited.getNumStates());
+        assertEquals(1.0 / 64, visited.getOmissionProbability(), 1e-12);
+    }
+
+    @Test
+    public void testHashCompaction() throws Exception {
+        assertSameAsHeap((net, listener, heapSpace) -> {
+            net.generateStateSpaceHashCompaction(net.generateCurrentState());
+
+            /* also for the P/T net, whose states would otherwise be kept as int vectors */
+            assertTrue(net.getStateSpace().getVisitedSet() instanceof FingerprintSet);
+            assertTrue(net.getHashCompactionStatistics()
+                    .startsWith("FingerprintSet: states = " + heapSpace.getNumState() + ","));
+        });
+    }
+
+    @Test
+    public void testHashCompactionOnlyForItsRun() {
+        Petrinet net = createProducerConsumerNet();
+        net.generateStateSpaceHashCompaction(net.generateCurrentState());
+        net.generateStateSpace(net.generateCurrentState());
+
+        assertTrue(net.getStateSpace().getVisitedSet() instanceof VectorStore);
+        assertEquals(24, net.getStateSpace().getNumState());
+        assertEquals("", net.getHashCompactionStatistics());
+    }
+
+    @Test
+    public void testHashCompactionExport() {
+        Petrinet net = createColoredNet();
+        net.generateStateSpaceHashCompaction(net.generateCurrentState());
+
+        /* states are only fingerprints: exports fail before writing anything */
+        try {
+            net.getGraphVizJson();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("hash compaction"));
+        }
+        try {
+            net.getStateSpace().parquetWriteNode(null, "unused.parquet");
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("hash compaction"));
+        }
+        assertFalse(new File("unused.parquet").exists());
+    }
+
+    @Test
+    public void testStateSpaceOnDisk() throws Exception {
+        assertSameAsHeap((net, listener, heapSpace) -> {
+            Path directory = Files.createTempDirectory("states");
+            net.generateStateSpaceOnDisk(net.generateCurrentState(), directory.toString(), listener);
+
+            /* state IDs are those of the heap, states are read back from the files, edges are only streamed */
+            assertTrue(net.getStateSpace().getVisitedSet() instanceof DiskStateStore);
+            assertTrue(net.getStateSpace().getEdges().isEmpty());
+            for (int stateID = 0; stateID < heapSpace.getNumState(); stateID++) {
+                assertEquals(heapSpace.getState(stateID), net.getStateSpace().getState(stateID));
+                assertEquals(heapSpace.getState(stateID), listener.states.get((long) stateID));
+            }
+
+            /* the files are deleted and the state space is reset */
+            net.closeStateSpace();
+            assertEquals(0, net.getStateSpace().getNumState());
+            assertEquals(0, directory.toFile().list().length);
+            Files.delete(directory);
+        });
+    }
+
+    @Test
+    public void testExternalBFS() throws Exception {
+        assertSameAsHeap((net, listener, heapSpace) -> {
+            Path directory = Files.createTempDirectory("layers");
+
+            /* runs of 5 successors, so each layer is merged from several runs */
+            ExternalBFSExplorer explorer = new ExternalBFSExplorer(net, placesOf(net), directory, listener, 5);
+            explorer.explore(net.generateCurrentState());
+
+            /* one edge for each (parent, child), as StateSpace, and the files are deleted */
+            assertEquals(heapSpace.getNumState(), explorer.getNumStates());
+            assertEquals(countEdges(heapSpace), listener.numEdgeCalls);
+            assertEquals(0, directory.toFile().list().length);
+            Files.delete(directory);
+        });
+    }
+
+    @Test
+    public void testParquetExporterBitState() throws Exception {
+        Petrinet net = createColoredNet();
+        Path directory = Files.createTempDirectory("parquet");
+        Path netFile = directory.resolve("net.json");
+        Files.write(netFile, ("{\"placeToColor\": "
+                + "{\"0\": \"INT\", \"1\": \"INT\", \"2\": \"INT\", \"3\": \"INT*STRING\"}}").getBytes());
+
+        /* fingerprints of bitstate hashing need long keys */
+        AvroSchema avroSchema = new AvroSchema();
+        Schema nodeSchema = avroSchema.createNodeSchema(netFile.toString(), "long");
+        Schema arcSchema = avroSchema.createArcSchema("long");
+        Path nodeFile = directory.resolve("node.parquet");
+        Path arcFile = directory.resolve("arc.parquet");
+
+        KeyedListener listener = new KeyedListener();
+        try (ParquetExporter exporter = new ParquetExporter(nodeSchema, nodeFile.toString(), arcSchema,
+                arcFile.toString(), net.getNumPlaces())) {
+            net.generateStateSpaceBitState(net.generateCurrentState(), 20, 3, new StateSpaceListener() {
+                public void stateFound(long stateKey, State state) {
+                    listener.stateFound(stateKey, state);
+                    exporter.stateFound(stateKey, state);
+                }
+
+                public void edgeFound(long parentKey, long childKey, Transition transition) {
+                    listener.edgeFound(parentKey, childKey, transition);
+                    exporter.edgeFound(parentKey, childKey, transition);
+                }
+            });
+        }
+
+        List<Group> nodes = readParquet(nodeFile);
+        assertEquals(26, nodes.size());
+        for (Group node : nodes) {
+            State state = listener.states.get(node.getLong("id", 0));
+            assertNotNull(state);
+            for (int placeID = 0; placeID < 3; placeID++) {
+                Group listToken = node.getGroup("P" + placeID, 0);
+                assertEquals(state.getMarking(placeID).size(), listToken.getFieldRepetitionCount("array"));
+            }
+        }
+
+        /* typed values, the STRING value without its quotes */
+        Group startNode = nodes.get(0);
+        assertEquals(net.generateCurrentState(), listener.states.get(startNode.getLong("id", 0)));
+        Group token = startNode.getGroup("P3", 0).getGroup("array", 0);
+        assertEquals(1, token.getInteger("int_0", 0));
+        assertEquals("a", token.getString("string_1", 0));
+
+        Map<Long, Set<Long>> arcs = new HashMap<>();
+        for (Group arc : readParquet(arcFile)) {
+            arcs.computeIfAbsent(arc.getLong("src", 0), k -> new HashSet<>()).add(arc.getLong("dst", 0));
+        }
+        assertEquals(listener.edges, arcs);
+
+        /* the state space on the heap is written by the same exporter, with int state IDs */
+        StateSpace heapSpace = generateOnHeap(createColoredNet());
+        heapSpace.parquetWriteNode(avroSchema.createNodeSchema(netFile.toString()), nodeFile.toString());
+        heapSpace.parquetWriteArc(avroSchema.createArcSchema(), arcFile.toString());
+        nodes = readParquet(nodeFile);
+        assertEquals(26, nodes.size());
+        assertEquals(25, nodes.get(25).getInteger("id", 0));
+        assertEquals(countEdges(heapSpace), readParquet(arcFile).size());
+
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void testGraphVizExporterOnDisk() throws Exception {
+        Petrinet heapNet = createColoredNet();
+        heapNet.generateStateSpace(heapNet.generateCurrentState());
+        JSONObject expected = heapNet.getGraphVizJson();
+
+        Petrinet net = createColoredNet();
+        Path directory = Files.createTempDirectory("states");
+        GraphVizExporter exporter = new GraphVizExporter(net);
+        net.generateStateSpaceOnDisk(net.generateCurrentState(), directory.toString(), exporter);
+        JSONObject actual = exporter.getJson();
+
+        /* state IDs of the disk are the IDs of the heap, one child is kept for each parent */
+        assertEquals(expected.getJSONObject("nodes").toMap(), actual.getJSONObject("nodes").toMap());
+        assertEquals(expected.getJSONObject("arc").keySet(), actual.getJSONObject("arc").keySet());
+        assertArrayEquals((int[][]) expected.get("inPlaces"), (int[][]) actual.get("inPlaces"));
+
+        net.closeStateSpace();
+        Files.delete(directory);
+    }
+}
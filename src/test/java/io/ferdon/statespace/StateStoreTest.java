@@ -0,0 +1,302 @@
+package io.ferdon.statespace;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StateStoreTest {
+
+    private Place place01;
+    private Place place02;
+    private Token token01;
+    private Token token02;
+    private StateStore store;
+
+    @Before
+    public void setUp() {
+        place01 = new Place(0);
+        place02 = new Place(1);
+        token01 = Token.valueOf(Arrays.asList("1", "'a'"));
+        token02 = Token.valueOf(Arrays.asList("2", "'b'"));
+        Map<Integer, Place> places = new HashMap<>();
+        places.put(0, place01);
+        places.put(1, place02);
+        store = new StateStore(places);
+    }
+
+    private Marking marking(Place place, Token token, int num) {
+        Marking marking = new Marking(place);
+        return (num > 0) ? marking.addToken(token, num) : marking;
+    }
+
+    @Test
+    public void testPutIfAbsentDenseID() {
+        Map<Place, Marking> data01 = new HashMap<>();
+        data01.put(place01, marking(place01, token01, 1));
+        data01.put(place02, marking(place02, token02, 0));
+
+        Map<Place, Marking> data02 = new HashMap<>();
+        data02.put(place01, marking(place01, token01, 0));
+        data02.put(place02, marking(place02, token01, 1));
+
+        State state01 = new State(data01);
+        State state02 = new State(data02);
+
+        assertEquals(-1, store.putIfAbsent(state01));
+        assertEquals(-1, store.putIfAbsent(state02));
+        assertEquals(0, state01.getID());
+        assertEquals(1, state02.getID());
+        assertEquals(2, store.size());
+        assertEquals(state02, store.get(1));
+        assertEquals(1, store.get(1).getID());
+    }
+
+    @Test
+    public void testPutIfAbsentReturnStoredState() {
+        Map<Place, Marking> data01 = new LinkedHashMap<>();
+        data01.put(place01, marking(place01, token01, 2));
+        data01.put(place02, marking(place02, token02, 1));
+
+        Map<Place, Marking> data02 = new LinkedHashMap<>();
+        data02.put(place02, marking(place02, token02, 1));
+        data02.put(place01, marking(place01, token01, 2));
+
+        State state01 = new State(data01);
+        State state02 = new State(data02);
+
+        assertEquals(-1, store.putIfAbsent(state01));
+        assertEquals(0, store.putIfAbsent(state02));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testStateEqualSymmetric() {
+        Map<Place, Marking> data01 = new HashMap<>();
+        data01.put(place01, marking(place01, token01, 0));
+
+        Map<Place, Marking> data02 = new HashMap<>();
+        data02.put(place01, marking(place01, token01, 1));
+
+        State state01 = new State(data01);
+        State state02 = new State(data02);
+
+        assertNotEquals(state01, state02);
+        assertNotEquals(state02, state01);
+    }
+
+    @Test
+    public void testMarkingEqualCount() {
+        Marking marking01 = marking(place01, token01, 1);
+        Marking marking02 = marking(place01, token01, 2);
+        Marking marking03 = marking(place01, token01, 2);
+
+        assertNotEquals(marking01, marking02);
+        assertNotEquals(marking02, marking01);
+        assertEquals(marking02, marking03);
+        assertEquals(marking02.hashCode(), marking03.hashCode());
+    }
+
+    @Test
+    public void testStateHashSwappedMarkings() {
+        Map<Place, Marking> data01 = new HashMap<>();
+        data01.put(place01, marking(place01, token01, 1));
+        data01.put(place02, marking(place02, token02, 1));
+
+        Map<Place, Marking> data02 = new HashMap<>();
+        data02.put(place01, marking(place01, token02, 1));
+        data02.put(place02, marking(place02, token01, 1));
+
+        assertNotEquals(new State(data01), new State(data02));
+        assertNotEquals(new State(data01).hashCode(), new State(data02).hashCode());
+    }
+
+    @Test
+    public void testCompactStateDecode() {
+        Marking marking01 = marking(place01, token01, 3).addToken(token02, 200);
+
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking01);
+        data.put(place02, marking(place02, token02, 0));
+
+        State state = new State(data);
+        store.putIfAbsent(state);
+
+        State decodedState = store.get(0);
+        assertEquals(state, decodedState);
+        assertEquals(3, decodedState.getMarking(place01).getNumToken(token01));
+        assertEquals(200, decodedState.getMarking(place01).getNumToken(token02));
+        assertEquals(0, decodedState.getMarking(place02).size());
+    }
+
+    @Test
+    public void testCompactStateSize() {
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking(place01, token01, 1));
+        data.put(place02, marking(place02, token02, 2));
+
+        TokenDictionary tokenDictionary = new TokenDictionary();
+        CompactState compactState = CompactState.encode(new State(data), tokenDictionary);
+
+        /* 2 entries x (placeID delta, tokenID, count), 1 byte each */
+        assertEquals(6, compactState.size());
+        assertEquals(2, tokenDictionary.size());
+    }
+
+    @Test
+    public void testCompactStateMatches() {
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, marking(place01, token01, 2).addToken(token02, 1));
+        data.put(place02, marking(place02, token02, 0));
+
+        TokenDictionary tokenDictionary = new TokenDictionary();
+        CompactState compactState = CompactState.encode(new State(data), tokenDictionary);
+        assertTrue(compactState.matches(new State(data), tokenDictionary));
+
+        data.put(place01, marking(place01, token01, 2));
+        assertFalse(compactState.matches(new State(data), tokenDictionary));
+
+        data.put(place01, marking(place01, token01, 2).addToken(token02, 1));
+        data.put(place02, marking(place02, token02, 1));
+        assertFalse(compactState.matches(new State(data), tokenDictionary));
+    }
+
+    @Test
+    public void testStateFingerprint() {
+        Map<Place, Marking> data01 = new HashMap<>();
+        data01.put(place01, marking(place01, token01, 2).addToken(token02, 1));
+        data01.put(place02, marking(place02, token02, 0));
+
+        /* same markings built in another order */
+        Map<Place, Marking> data02 = new LinkedHashMap<>();
+        data02.put(place02, marking(place02, token01, 1).removeToken(token01, 1));
+        data02.put(place01, marking(place01, token02, 1).addToken(token01, 2));
+
+        assertEquals(new State(data01).getFingerprint(), new State(data02).getFingerprint());
+        assertEquals(new State(data01), new State(data02));
+
+        data02.put(place01, marking(place01, token02, 2).addToken(token01, 1));
+        assertNotEquals(new State(data01).getFingerprint(), new State(data02).getFingerprint());
+    }
+
+    @Test
+    public void testVectorStore() {
+        place01.setCounted(true);
+        place02.setCounted(true);
+        VectorStore vectorStore = new VectorStore(new Place[]{place01, place02});
+
+        Map<Place, Marking> data = new HashMap<>();
+        data.put(place01, new Marking(place01, 2));
+        data.put(place02, new Marking(place02, 0));
+        State state = new State(data);
+
+        assertEquals(-1, vectorStore.putIfAbsent(state));
+        assertEquals(0, state.getID());
+        assertEquals(0, vectorStore.add(new int[]{2, 0}));
+        assertEquals(1, vectorStore.add(new int[]{1, 1}));
+        assertEquals(1, vectorStore.putIfAbsent(vectorStore.get(1)));
+        assertEquals(2, vectorStore.size());
+
+        int[] marking = new int[2];
+        vectorStore.getMarking(1, marking);
+        assertArrayEquals(new int[]{1, 1}, marking);
+
+        /* decoded states are equal to the stored state and share the markings of the same count */
+        assertEquals(state, vectorStore.get(0));
+        assertEquals(0, vectorStore.get(0).getID());
+        assertSame(vectorStore.get(0).getMarking(place02), vectorStore.get(0).getMarking(place02));
+    }
+
+    @Test
+    public void testVectorStoreTooLarge() {
+        VectorStore vectorStore = new VectorStore(new Place[]{place01, place02}, 4096);
+        for (int i = 0; i < 2048; i++) assertEquals(i, vectorStore.add(new int[]{i, 0}));
+
+        /* 2049 states of 2 places need 4098 ints */
+        try {
+            vectorStore.add(new int[]{-1, 0});
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().startsWith("State space too large for VectorStore"));
+        }
+
+        /* the store is unchanged */
+        assertEquals(2048, vectorStore.size());
+        assertEquals(2047, vectorStore.add(new int[]{2047, 0}));
+    }
+
+    @Test
+    public void testMarkingImmutable() {
+        Marking marking01 = marking(place01, token01, 2);
+        Marking marking02 = marking01.removeToken(token01, 1);
+        Marking marking03 = marking02.addToken(token02, 1);
+
+        assertEquals(2, marking01.getNumToken(token01));
+        assertEquals(1, marking02.getNumToken(token01));
+        assertEquals(0, marking02.getNumToken(token02));
+        assertEquals(1, marking03.getNumToken(token02));
+    }
+
+    @Test
+    public void testFingerprintSet() {
+        FingerprintSet fingerprints = new FingerprintSet(4);
+
+        for (int num = 0; num < 100; num++) {
+            Map<Place, Marking> data = new HashMap<>();
+            data.put(place01, marking(place01, token01, num));
+            data.put(place02, marking(place02, token02, 1));
+
+            State state = new State(data);
+            assertEquals(-1, fingerprints.putIfAbsent(state));
+            assertEquals(num, state.getID());
+        }
+
+        Map<Place, Marking> data = new LinkedHashMap<>();
+        data.put(place02, marking(place02, token02, 1));
+        data.put(place01, marking(place01, token01, 42));
+        assertEquals(42, fingerprints.putIfAbsent(new State(data)));
+
+        assertEquals(100, fingerprints.size());
+        assertTrue(fingerprints.getCollisionProbability() < 1e-15);
+    }
+
+    @Test
+    public void testDiskStateStore() throws Exception {
+        Map<Integer, Place> places = new HashMap<>();
+        places.put(0, place01);
+        places.put(1, place02);
+        Path directory = Files.createTempDirectory("states");
+
+        try (DiskStateStore diskStore = new DiskStateStore(places, directory)) {
+            /* more states than the first index, which is rehashed */
+            for (int num = 0; num < 40000; num++) {
+                Map<Place, Marking> data = new HashMap<>();
+                data.put(place01, marking(place01, token01, num));
+                data.put(place02, marking(place02, token02, num % 3));
+
+                State state = new State(data);
+                assertEquals(-1, diskStore.putIfAbsent(state));
+                assertEquals(num, state.getID());
+            }
+
+            Map<Place, Marking> data = new LinkedHashMap<>();
+            data.put(place02, marking(place02, token02, 1));
+            data.put(place01, marking(place01, token01, 12346));
+            assertEquals(12346, diskStore.putIfAbsent(new State(data)));
+
+            assertEquals(40000, diskStore.size());
+            assertEquals(new State(data), diskStore.get(12346));
+            assertEquals(12346, diskStore.get(12346).getID());
+        }
+
+        assertFalse(Files.exists(directory.resolve("states.dat")));
+        Files.delete(directory);
+    }
+}
@@ -1,70 +1,109 @@
-//package io.ferdon.statespace;
-//
-//import org.junit.Test;
-//import java.util.List;
-//import static org.junit.Assert.*;
-//
-//public class TokenTest {
-//
-//    private Token token;
-//
-//    @Test
-//    public void testTokenConstructor01() {
-//        token = new Token();
-//        assertEquals(0,  token.size());
-//    }
-//
-//    @Test
-//    public void testTokenConstructor02() {
-//        token = new Token("");
-//        assertEquals(1,  token.size());
-//    }
-//
-//    @Test
-//    public void testTokenConstructor04() {
-//        token = new Token("  ,    , '  '");
-//        assertEquals(3,  token.size());
-//        assertEquals("", token.get(0));
-//        assertEquals("", token.get(1));
-//        assertEquals("'  '", token.get(2));
-//    }
-//
-//    @Test
-//    public void testTokenAddData() {
-//        token = new Token();
-//        token.addData("1");
-//        assertEquals(1,  token.size());
-//        token.addData("2");
-//        assertEquals(2,  token.size());
-//        token.addData("3");
-//        assertEquals(3,  token.size());
-//    }
-//
-//    @Test
-//    public void testTokenEqual01() {
-//        token = new Token("1, 2, 3, 'do'");
-//        Token otherToken = new Token("1, 2, 3, 'do'");
-//        assertEquals(token, otherToken);
-//    }
-//
-//    @Test
-//    public void testTokenEqual02() {
-//        token = new Token("1, 2, 3.0, 'do'");
-//        Token otherToken = new Token("1, 2, 3, 'do'");
-//        assertNotEquals(token, otherToken);
-//    }
-//
-//    @Test
-//    public void testTokenEqual03() {
-//        token = new Token("1, 3, 2, 'do'");
-//        Token otherToken = new Token("1, 2, 3, 'do'");
-//        assertNotEquals(token, otherToken);
-//    }
-//
-//    @Test
-//    public void testTokenEqual04() {
-//        token = new Token("");
-//        Token otherToken = new Token("");
-//        assertEquals(token, otherToken);
-//    }
-//}
+package io.ferdon.statespace;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class TokenTest {
+
+    private Token token(ColorSet colorSet, String... values) {
+        return colorSet.createToken(Arrays.asList(values));
+    }
+
+    @Test
+    public void testTypedFields() {
+        ColorSet colorSet = ColorSet.parse("INT*STRING*BOOL*DOUBLE");
+        Token token = token(colorSet, "17", "'nam'", "True", "1.72");
+
+        assertEquals(Interpreter.ValueType.INTEGER, token.getType(0));
+        assertEquals(Interpreter.ValueType.STRING, token.getType(1));
+        assertEquals(Interpreter.ValueType.BOOLEAN, token.getType(2));
+        assertEquals(Interpreter.ValueType.REAL, token.getType(3));
+
+        assertEquals(17, token.getInteger(0));
+        assertTrue(token.getBoolean(2));
+        assertEquals(1.72, token.getReal(3), 0.0);
+        assertEquals("17,'nam',True,1.72", token.toString());
+    }
+
+    @Test
+    public void testNonCanonicalValuesKeepTheirString() {
+        ColorSet colorSet = ColorSet.parse("INT*DOUBLE*STRING");
+        Token token = token(colorSet, "+5", ".5", "3");
+
+        assertEquals(Interpreter.ValueType.STRING, token.getType(0));
+        assertEquals(Interpreter.ValueType.STRING, token.getType(1));
+        assertEquals(Interpreter.ValueType.STRING, token.getType(2));
+        assertEquals("+5", token.get(0));
+        assertEquals(".5", token.get(1));
+        assertEquals("3", token.get(2));
+    }
+
+    @Test
+    public void testUnknownColorSetTakesTypeFromValue() {
+        assertEquals(Interpreter.ValueType.INTEGER, token(ColorSet.parse("UNIT"), "3").getType(0));
+        assertEquals(Interpreter.ValueType.INTEGER, token(ColorSet.parse("INT*INT"), "3").getType(0));
+        assertEquals(Interpreter.ValueType.INTEGER, token(ColorSet.parse("COLOR"), "3").getType(0));
+        assertTrue(ColorSet.parse("unit").isUnit());
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        ColorSet colorSet = ColorSet.parse("INT*STRING");
+        Token token01 = token(colorSet, "1", "'a'");
+        Token token02 = new Token.Builder()
+                .addData("1", Interpreter.ValueType.INTEGER)
+                .addData(new String("'a'"), Interpreter.ValueType.STRING)
+                .build();
+
+        assertEquals(token01, token02);
+        assertEquals(token01.hashCode(), token02.hashCode());
+        assertNotEquals(token01, token(colorSet, "2", "'a'"));
+        assertNotEquals(token01, token(colorSet, "1", "'b'"));
+        assertEquals(Token.valueOf(null), Token.unit());
+        assertNotEquals(Token.unit(), token01);
+    }
+
+    @Test
+    public void testSetSlotFromToken() {
+        Token token = token(ColorSet.parse("INT*DOUBLE*BOOL*STRING"), "7", "2.5", "False", "'s'");
+        EvaluationContext context = new EvaluationContext();
+        context.reset(4);
+        for (int i = 0; i < 4; i++) context.setSlot(i, token, i, new HashMap<>());
+
+        assertEquals(Interpreter.ValueType.INTEGER, context.slotTypes[0]);
+        assertEquals(7, context.slotLongs[0]);
+        assertEquals(2.5, context.slotDoubles[1], 0.0);
+        assertFalse(context.slotBooleans[2]);
+        assertEquals(Interpreter.ValueType.STRING, context.slotTypes[3]);
+        assertEquals("s", context.getSlotValues()[3].getString());
+    }
+
+    @Test
+    public void testTokensArePooled() {
+        Token token01 = Token.valueOf(Arrays.asList("1", "'a'", "2.5"));
+        Token token02 = token(ColorSet.UNKNOWN, "1", "'a'", "2.5");
+        assertSame(token01, token02);
+        assertNotSame(token01, Token.valueOf(Arrays.asList("1", "'a'", "2.50")));
+    }
+
+    @Test
+    public void testDeserializedTokenIsPooled() throws Exception {
+        Token token = Token.valueOf(Arrays.asList("3", "'b'", "True"));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(token);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertSame(token, in.readObject());
+        }
+    }
+}